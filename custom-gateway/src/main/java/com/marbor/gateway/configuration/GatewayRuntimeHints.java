@@ -0,0 +1,42 @@
+package com.marbor.gateway.configuration;
+
+import com.marbor.gateway.websocket.FanOutSubscription;
+import com.marbor.gateway.websocket.JettyUpstreamSessionHandler;
+import com.marbor.gateway.websocket.JettyWebSocketRelay;
+import com.marbor.gateway.websocket.WebsocketUpstreamSessionHandler;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+import org.springframework.aot.hint.TypeReference;
+
+import java.util.List;
+
+/// Reflection the gateway needs in a native image beyond what Spring AOT infers from the beans.
+///
+/// - Jetty binds the `Session.Listener` endpoints of both legs through method handles looked up on their concrete classes.
+/// - Jetty instantiates the negotiated WebSocket extensions reflectively from its extension registry.
+///
+/// The route functions are built programmatically in [RoutingConfiguration] and need no hints of their own.
+public class GatewayRuntimeHints implements RuntimeHintsRegistrar {
+
+    private static final List<TypeReference> SESSION_LISTENERS = List.of(
+            TypeReference.of(JettyWebSocketRelay.class),
+            TypeReference.of(JettyUpstreamSessionHandler.class),
+            TypeReference.of(JettyUpstreamSessionHandler.class.getName() + "$ClientRelay"),
+            TypeReference.of(WebsocketUpstreamSessionHandler.WholeMessages.class),
+            TypeReference.of(WebsocketUpstreamSessionHandler.Streaming.class),
+            TypeReference.of(FanOutSubscription.class),
+            TypeReference.of(FanOutSubscription.Subscriber.class));
+
+    private static final List<TypeReference> WEBSOCKET_EXTENSIONS = List.of(
+            TypeReference.of("org.eclipse.jetty.websocket.core.internal.PerMessageDeflateExtension"),
+            TypeReference.of("org.eclipse.jetty.websocket.core.internal.IdentityExtension"),
+            TypeReference.of("org.eclipse.jetty.websocket.core.internal.FragmentExtension"),
+            TypeReference.of("org.eclipse.jetty.websocket.core.internal.ValidationExtension"));
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        hints.reflection().registerTypes(SESSION_LISTENERS, type -> type.withMembers(MemberCategory.INVOKE_PUBLIC_METHODS));
+        hints.reflection().registerTypes(WEBSOCKET_EXTENSIONS, type -> type.withMembers(MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS));
+    }
+}
@@ -1,7 +1,10 @@
 package com.marbor.gateway.configuration;
 
 
+import com.marbor.gateway.http.HttpProxyProperties;
+import com.marbor.gateway.http.ResponseCache;
 import com.marbor.gateway.websocket.WebSocketProxyExchangeHandlerFunction;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.function.RouterFunction;
@@ -12,13 +15,15 @@ import static org.springframework.cloud.gateway.server.mvc.handler.GatewayRouter
 import static org.springframework.cloud.gateway.server.mvc.handler.HandlerFunctions.http;
 
 @Configuration
+@EnableConfigurationProperties(HttpProxyProperties.class)
 public class RoutingConfiguration {
 
     @Bean
-    public RouterFunction<ServerResponse> getRoute() {
+    public RouterFunction<ServerResponse> getRoute(ResponseCache responseCache) {
         return route("http_route")
                 .GET("/customers", http())
                 .before(uri("http://localhost:8180"))
+                .filter(responseCache.forRoute("http_route"))
                 .build();
     }
 
@@ -1,20 +1,46 @@
 package com.marbor.gateway.configuration;
 
+import com.marbor.gateway.websocket.UpstreamTls;
+import com.marbor.gateway.websocket.WebSocketProxyProperties;
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.transport.HttpClientConnectionFactory;
+import org.eclipse.jetty.client.transport.HttpClientTransportDynamic;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.transport.ClientConnectionFactoryOverHTTP2;
+import org.eclipse.jetty.io.ClientConnector;
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.compression.CompressionPool;
+import org.eclipse.jetty.util.compression.DeflaterPool;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.jetty.JettyServerCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.ImportRuntimeHints;
 
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 
 
 @Configuration
+@EnableConfigurationProperties(WebSocketProxyProperties.class)
+@ImportRuntimeHints(GatewayRuntimeHints.class)
 public class WebSocketConfiguration {
 
+    /// Speaks HTTP/1.1 by default and HTTP/2 to requests asking for it, which are WebSocket over HTTP/2 handshakes for routes with `http2` enabled,
+    /// negotiated through ALPN with `wss://` upstreams.
     @Bean
-    public HttpClient httpClient() {
-        var httpClient = new HttpClient();
-        httpClient.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    public HttpClient httpClient(UpstreamTls upstreamTls) {
+        var executor = Executors.newVirtualThreadPerTaskExecutor();
+        var clientConnector = new ClientConnector();
+        clientConnector.setExecutor(executor);
+        clientConnector.setSslContextFactory(upstreamTls.newSslContextFactory());
+        var http2 = new ClientConnectionFactoryOverHTTP2.HTTP2(new HTTP2Client(clientConnector));
+        var httpClient = new HttpClient(new HttpClientTransportDynamic(clientConnector, HttpClientConnectionFactory.HTTP11, http2));
+        httpClient.setExecutor(executor);
+        // the TLS connections take their handshake listeners from the beans of the HttpClient, not of its connector
+        httpClient.addBean(upstreamTls);
         return httpClient;
     }
 
@@ -22,4 +48,34 @@ public class WebSocketConfiguration {
     public WebSocketClient webSocketClient(HttpClient httpClient) {
         return new WebSocketClient(httpClient);
     }
+
+    /// Registers the deflater pool picked up by the Jetty WebSocket server components, so the client leg
+    /// compresses at the configured `gateway.websocket.compression-level`.
+    @Bean
+    public JettyServerCustomizer webSocketDeflaterPoolCustomizer(WebSocketProxyProperties webSocketProxyProperties) {
+        return server -> server.addBean(new DeflaterPool(CompressionPool.DEFAULT_CAPACITY, webSocketProxyProperties.getCompressionLevel(), true));
+    }
+
+    /// Spring demands the next client frame as soon as its handler returns, so the `spring` engine holds the read of a
+    /// `delay` rate limited message by sleeping on the server thread until its tokens are available.
+    /// Such routes are only started on virtual server threads, which a sleeping session does not take from the others.
+    @Bean
+    public JettyServerCustomizer rateLimitDelayThreadsCustomizer(WebSocketProxyProperties webSocketProxyProperties) {
+        return server -> {
+            List<String> delayingRoutes = webSocketProxyProperties.getRoutes().entrySet().stream()
+                    .filter(route -> isDelayedOnServerThreads(route.getValue()))
+                    .map(Map.Entry::getKey)
+                    .toList();
+            if (!delayingRoutes.isEmpty() && !VirtualThreads.isUseVirtualThreads(server.getThreadPool())) {
+                throw new IllegalStateException("Routes " + delayingRoutes + " delay rate limited messages on the server threads of the "
+                        + "spring engine, which requires spring.threads.virtual.enabled=true, or use the close policy or the jetty engine");
+            }
+        };
+    }
+
+    private static boolean isDelayedOnServerThreads(WebSocketProxyProperties.Route route) {
+        WebSocketProxyProperties.RateLimit rateLimit = route.getRateLimit();
+        return route.getEngine() == WebSocketProxyProperties.Engine.SPRING && rateLimit.isEnabled()
+                && rateLimit.getPolicy() == WebSocketProxyProperties.RateLimit.Policy.DELAY;
+    }
 }
@@ -0,0 +1,123 @@
+package com.marbor.gateway.http;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/// Holds the body back from the client while it is written, up to a limit, so it can be cached before the client
+/// downloads it. The status and headers go to the client response as they are set.
+///
+/// A body exceeding the limit is not cached: the overflow callback runs, then the body written so far and the rest of it
+/// are streamed to the client.
+final class BufferingServletResponse extends HttpServletResponseWrapper {
+
+    private final int limit;
+    private final Runnable overflow;
+    private byte[] buffered = new byte[256];
+    private int length;
+    private boolean overflowed;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    /// @param overflow run once when the body exceeds the limit, before any of it is written to the client
+    BufferingServletResponse(HttpServletResponse response, int limit, Runnable overflow) {
+        super(response);
+        this.limit = limit;
+        this.overflow = overflow;
+    }
+
+    /// @return the written body, `null` when it exceeded the limit and was streamed to the client instead
+    byte[] getBufferedBody() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        return overflowed ? null : Arrays.copyOf(buffered, length);
+    }
+
+    /// Writes the buffered body to the client, once it is complete.
+    void writeBufferedBody() throws IOException {
+        if (!overflowed) {
+            getResponse().getOutputStream().write(buffered, 0, length);
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new BufferingOutputStream(super.getOutputStream());
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), Charset.forName(getCharacterEncoding())));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (overflowed) {
+            super.flushBuffer();
+        }
+    }
+
+    private final class BufferingOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream delegate;
+
+        private BufferingOutputStream(ServletOutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            if (!overflowed && length + count > limit) {
+                overflowed = true;
+                overflow.run();
+                delegate.write(buffered, 0, length);
+                buffered = null;
+            }
+            if (overflowed) {
+                delegate.write(bytes, offset, count);
+                return;
+            }
+            if (length + count > buffered.length) {
+                buffered = Arrays.copyOf(buffered, Math.min(limit, Math.max(length + count, buffered.length * 2)));
+            }
+            System.arraycopy(bytes, offset, buffered, length, count);
+            length += count;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (overflowed) {
+                delegate.flush();
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            delegate.setWriteListener(writeListener);
+        }
+    }
+}
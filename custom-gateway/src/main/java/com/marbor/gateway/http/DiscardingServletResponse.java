@@ -0,0 +1,101 @@
+package com.marbor.gateway.http;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/// Lets an upstream response that is not relayed, e.g. the `304 Not Modified` of a revalidation, be written so the gateway
+/// releases its upstream connection, without touching the client response.
+final class DiscardingServletResponse extends HttpServletResponseWrapper {
+
+    private static final ServletOutputStream DISCARDING_STREAM = new ServletOutputStream() {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) {
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+    };
+
+    DiscardingServletResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        return DISCARDING_STREAM;
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        return new PrintWriter(Writer.nullWriter());
+    }
+
+    @Override
+    public void setStatus(int status) {
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+    }
+
+    @Override
+    public void setContentType(String type) {
+    }
+
+    @Override
+    public void setContentLength(int length) {
+    }
+
+    @Override
+    public void setContentLengthLong(long length) {
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+    }
+
+    @Override
+    public void flushBuffer() {
+    }
+}
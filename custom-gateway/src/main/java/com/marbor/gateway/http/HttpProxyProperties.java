@@ -0,0 +1,99 @@
+package com.marbor.gateway.http;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/// Per-route HTTP proxy settings, keyed by the gateway route id:
+///
+/// ```yaml
+/// gateway:
+///   http:
+///     routes:
+///       http_route:
+///         cache:
+///           enabled: true
+///           ttl: 30s
+/// ```
+///
+/// Routes without an entry use the defaults.
+@ConfigurationProperties(prefix = "gateway.http")
+public class HttpProxyProperties {
+
+    private static final Route DEFAULT_ROUTE = new Route();
+    private final Map<String, Route> routes = new LinkedHashMap<>();
+
+    public Map<String, Route> getRoutes() {
+        return routes;
+    }
+
+    public Route getRoute(String routeId) {
+        return routes.getOrDefault(routeId, DEFAULT_ROUTE);
+    }
+
+    public static class Route {
+
+        private final Cache cache = new Cache();
+
+        public Cache getCache() {
+            return cache;
+        }
+    }
+
+    /// Shared cache of the route's `GET` responses, see [ResponseCache].
+    public static class Cache {
+
+        private boolean enabled = false;
+        /// Freshness of responses without a `max-age` or `s-maxage` directive.
+        private Duration ttl = Duration.ofSeconds(60);
+        /// Body bytes of all cached responses of the route, the least recently used ones are evicted beyond it.
+        private DataSize maxSize = DataSize.ofMegabytes(64);
+        /// Larger responses are relayed without being cached.
+        private DataSize maxEntrySize = DataSize.ofMegabytes(1);
+        /// Keep the bodies in direct buffers outside the heap, which then needs `-XX:MaxDirectMemorySize` above `max-size`.
+        private boolean offHeap = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getTtl() {
+            return ttl;
+        }
+
+        public void setTtl(Duration ttl) {
+            this.ttl = ttl;
+        }
+
+        public DataSize getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(DataSize maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public DataSize getMaxEntrySize() {
+            return maxEntrySize;
+        }
+
+        public void setMaxEntrySize(DataSize maxEntrySize) {
+            this.maxEntrySize = maxEntrySize;
+        }
+
+        public boolean isOffHeap() {
+            return offHeap;
+        }
+
+        public void setOffHeap(boolean offHeap) {
+            this.offHeap = offHeap;
+        }
+    }
+}
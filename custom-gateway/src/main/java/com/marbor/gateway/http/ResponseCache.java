@@ -0,0 +1,432 @@
+package com.marbor.gateway.http;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.cloud.gateway.server.mvc.handler.GatewayServerResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.function.HandlerFilterFunction;
+import org.springframework.web.servlet.function.HandlerFunction;
+import org.springframework.web.servlet.function.ServerRequest;
+import org.springframework.web.servlet.function.ServerResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/// Shared cache of the `GET` responses of HTTP routes with [HttpProxyProperties.Cache] enabled, applied as a filter
+/// of the route's `http()` handler.
+///
+/// Responses are cached by path and query, following the shared cache rules of `Cache-Control`:
+/// - only `200` responses without `no-store`, `private`, `Set-Cookie` or `Vary` are stored, and requests carrying
+///   `Authorization` or `Cache-Control: no-store` bypass the cache;
+/// - a response is fresh for its `s-maxage` or `max-age`, otherwise for the route's `ttl`, and `no-cache` responses
+///   are stored only to be revalidated on every request;
+/// - a stale response with an `ETag` is revalidated with `If-None-Match`, a `304 Not Modified` refreshing it without
+///   transferring the body again, and clients whose own `If-None-Match` matches get a `304` from the gateway.
+///
+/// Concurrent misses of the same key are coalesced: the first request loads the response from the upstream and the others
+/// wait for it, so a popular expired entry causes a single upstream call. The first request reads the whole upstream body
+/// and caches it before relaying it to its client, so the waiting requests are not held up by that client's download,
+/// and a load whose response is never written ends with its request. The least recently used entries are evicted beyond
+/// the route's `max-size`.
+///
+/// | Meter | Type | Tags |
+/// |---|---|---|
+/// | `gateway.http.cache.requests` | counter | `route`, `outcome` (`hit`, `miss`, `revalidated`, `coalesced`, `bypassed`) |
+/// | `gateway.http.cache.evictions` | counter | `route` |
+/// | `gateway.http.cache.size` | gauge (bytes) | `route` |
+@Component
+public class ResponseCache {
+
+    private static final HandlerFilterFunction<ServerResponse, ServerResponse> PASS_THROUGH = (request, next) -> next.handle(request);
+    /// Waiting requests load the response themselves once the first request took longer.
+    private static final Duration COALESCING_TIMEOUT = Duration.ofSeconds(30);
+    /// Upstream responses write their body themselves, without message converters.
+    private static final ServerResponse.Context NO_CONVERTERS = List::of;
+    private final HttpProxyProperties httpProxyProperties;
+    private final MeterRegistry meterRegistry;
+
+    public ResponseCache(HttpProxyProperties httpProxyProperties, MeterRegistry meterRegistry) {
+        this.httpProxyProperties = httpProxyProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /// The filter caching the responses of the route, passing its requests through when the route's cache is disabled.
+    public HandlerFilterFunction<ServerResponse, ServerResponse> forRoute(String routeId) {
+        HttpProxyProperties.Cache cache = httpProxyProperties.getRoute(routeId).getCache();
+        return cache.isEnabled() ? new RouteCache(cache, Tags.of("route", routeId)) : PASS_THROUGH;
+    }
+
+    private final class RouteCache implements HandlerFilterFunction<ServerResponse, ServerResponse> {
+
+        private final Duration ttl;
+        private final long maxSize;
+        private final int maxEntrySize;
+        private final boolean offHeap;
+        /// Least recently used first, guarded by itself.
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+        private volatile long size;
+        private final Counter hits;
+        private final Counter misses;
+        private final Counter revalidated;
+        private final Counter coalesced;
+        private final Counter bypassed;
+        private final Counter evictions;
+
+        private RouteCache(HttpProxyProperties.Cache properties, Tags tags) {
+            this.ttl = properties.getTtl();
+            this.maxSize = properties.getMaxSize().toBytes();
+            this.maxEntrySize = Math.toIntExact(properties.getMaxEntrySize().toBytes());
+            this.offHeap = properties.isOffHeap();
+            this.hits = requests(tags, "hit");
+            this.misses = requests(tags, "miss");
+            this.revalidated = requests(tags, "revalidated");
+            this.coalesced = requests(tags, "coalesced");
+            this.bypassed = requests(tags, "bypassed");
+            this.evictions = Counter.builder("gateway.http.cache.evictions")
+                    .description("Cached responses evicted to stay within the route's max size")
+                    .tags(tags)
+                    .register(meterRegistry);
+            Gauge.builder("gateway.http.cache.size", this, cache -> cache.size)
+                    .description("Body bytes of the route's cached responses")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .register(meterRegistry);
+        }
+
+        private Counter requests(Tags tags, String outcome) {
+            return Counter.builder("gateway.http.cache.requests")
+                    .description("GET requests of the route, by how the response cache answered them")
+                    .tags(tags)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry);
+        }
+
+        @Override
+        public ServerResponse filter(ServerRequest request, HandlerFunction<ServerResponse> next) throws Exception {
+            if (!HttpMethod.GET.equals(request.method()) || !request.headers().header(HttpHeaders.AUTHORIZATION).isEmpty()) {
+                bypassed.increment();
+                return next.handle(request);
+            }
+            Directives directives = Directives.parse(request.headers().header(HttpHeaders.CACHE_CONTROL));
+            if (directives.noStore()) {
+                bypassed.increment();
+                return next.handle(request);
+            }
+            String key = request.uri().getRawPath() + '?' + Objects.toString(request.uri().getRawQuery(), "");
+            Entry entry = get(key);
+            if (entry != null && entry.isFresh() && !directives.noCache()) {
+                hits.increment();
+                return serve(entry, request, null);
+            }
+            var load = new CompletableFuture<Entry>();
+            CompletableFuture<Entry> inFlight = loading.putIfAbsent(key, load);
+            if (inFlight != null) {
+                return awaitLoad(inFlight, request, next);
+            }
+            // completes a load whose response was not written, e.g. because the client went away
+            RequestContextHolder.currentRequestAttributes().registerDestructionCallback(ResponseCache.class.getName() + '.' + key,
+                    () -> finishLoad(key, load, null), RequestAttributes.SCOPE_REQUEST);
+            try {
+                return load(key, entry, request, next, load);
+            } catch (Throwable failure) {
+                finishLoad(key, load, null);
+                throw failure;
+            }
+        }
+
+        /// Serves the response loaded by a concurrent request, or loads it once that response turned out not to be cacheable.
+        private ServerResponse awaitLoad(CompletableFuture<Entry> inFlight, ServerRequest request, HandlerFunction<ServerResponse> next) throws Exception {
+            Entry loaded;
+            try {
+                loaded = inFlight.get(COALESCING_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException notLoaded) {
+                loaded = null;
+            }
+            if (loaded == null) {
+                misses.increment();
+                return next.handle(request);
+            }
+            coalesced.increment();
+            return serve(loaded, request, null);
+        }
+
+        private ServerResponse load(String key, Entry stale, ServerRequest request, HandlerFunction<ServerResponse> next,
+                                    CompletableFuture<Entry> load) throws Exception {
+            boolean revalidating = stale != null && stale.etag != null;
+            ServerResponse response = next.handle(revalidating
+                    ? ServerRequest.from(request).headers(headers -> headers.setIfNoneMatch(stale.etag)).build()
+                    : request);
+            if (revalidating && response.statusCode().value() == HttpStatus.NOT_MODIFIED.value()) {
+                // a 304 may omit the Cache-Control, which then stays the one of the cached response
+                HttpHeaders freshnessHeaders = response.headers().getCacheControl() != null ? response.headers() : stale.headers;
+                Duration freshness = freshness(freshnessHeaders, stale.etag);
+                stale.revalidated(freshness != null ? freshness : Duration.ZERO);
+                revalidated.increment();
+                finishLoad(key, load, stale);
+                return serve(stale, request, response);
+            }
+            misses.increment();
+            Duration freshness = isStorable(response) ? freshness(response.headers(), response.headers().getETag()) : null;
+            if (freshness == null) {
+                finishLoad(key, load, null);
+                return response;
+            }
+            return new BufferingResponse(response, body -> finishLoad(key, load, body != null ? store(key, response.headers(), body, freshness) : null));
+        }
+
+        /// Idempotent, only the first call completes the load.
+        private void finishLoad(String key, CompletableFuture<Entry> load, Entry entry) {
+            loading.remove(key, load);
+            load.complete(entry);
+        }
+
+        private static boolean isStorable(ServerResponse response) {
+            HttpHeaders headers = response.headers();
+            return response.statusCode().value() == HttpStatus.OK.value()
+                    && !headers.containsHeader(HttpHeaders.SET_COOKIE)
+                    && !headers.containsHeader(HttpHeaders.VARY)
+                    && response.cookies().isEmpty();
+        }
+
+        /// @return how long the response is fresh, `null` when it must not be stored
+        private Duration freshness(HttpHeaders headers, String etag) {
+            Directives directives = Directives.parse(headers.get(HttpHeaders.CACHE_CONTROL));
+            if (directives.noStore() || directives.isPrivate()) {
+                return null;
+            }
+            if (directives.noCache()) {
+                return etag != null ? Duration.ZERO : null;
+            }
+            if (directives.sharedMaxAge() != null) {
+                return directives.sharedMaxAge();
+            }
+            return directives.maxAge() != null ? directives.maxAge() : ttl;
+        }
+
+        private Entry store(String key, HttpHeaders responseHeaders, byte[] body, Duration freshness) {
+            HttpHeaders headers = HttpHeaders.copyOf(responseHeaders);
+            headers.remove(HttpHeaders.CONTENT_LENGTH);
+            headers.remove(HttpHeaders.TRANSFER_ENCODING);
+            headers.remove(HttpHeaders.CONNECTION);
+            ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(body.length).put(body).flip() : ByteBuffer.wrap(body);
+            var entry = new Entry(HttpHeaders.readOnlyHttpHeaders(headers), buffer.asReadOnlyBuffer(), headers.getETag(), freshness);
+            put(key, entry);
+            return entry;
+        }
+
+        private Entry get(String key) {
+            synchronized (entries) {
+                return entries.get(key);
+            }
+        }
+
+        private void put(String key, Entry entry) {
+            synchronized (entries) {
+                long newSize = size + entry.body.remaining();
+                Entry replaced = entries.put(key, entry);
+                if (replaced != null) {
+                    newSize -= replaced.body.remaining();
+                }
+                Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+                while (newSize > maxSize && leastRecentlyUsed.hasNext()) {
+                    newSize -= leastRecentlyUsed.next().body.remaining();
+                    leastRecentlyUsed.remove();
+                    evictions.increment();
+                }
+                size = newSize;
+            }
+        }
+
+        /// @param upstreamResponse the `304` of the revalidation, written away to release its upstream connection
+        private ServerResponse serve(Entry entry, ServerRequest request, ServerResponse upstreamResponse) {
+            boolean notModified = entry.etag != null && matches(request.headers().header(HttpHeaders.IF_NONE_MATCH), entry.etag);
+            ServerResponse.BodyBuilder builder;
+            if (notModified) {
+                builder = GatewayServerResponse.status(HttpStatus.NOT_MODIFIED)
+                        .eTag(entry.etag);
+                if (entry.headers.getCacheControl() != null) {
+                    builder.header(HttpHeaders.CACHE_CONTROL, entry.headers.getCacheControl());
+                }
+            } else {
+                builder = GatewayServerResponse.status(HttpStatus.OK)
+                        .headers(headers -> headers.addAll(entry.headers))
+                        .contentLength(entry.body.remaining());
+            }
+            return builder.header(HttpHeaders.AGE, Long.toString(entry.getAge().toSeconds()))
+                    .build((servletRequest, servletResponse) -> {
+                        if (upstreamResponse != null) {
+                            upstreamResponse.writeTo(servletRequest, new DiscardingServletResponse(servletResponse), NO_CONVERTERS);
+                        }
+                        if (!notModified) {
+                            Channels.newChannel(servletResponse.getOutputStream()).write(entry.body.duplicate());
+                        }
+                        return null;
+                    });
+        }
+
+        private static boolean matches(List<String> ifNoneMatch, String etag) {
+            String opaqueTag = weakless(etag);
+            for (String value : ifNoneMatch) {
+                for (String candidate : value.split(",")) {
+                    String tag = candidate.trim();
+                    if (tag.equals("*") || weakless(tag).equals(opaqueTag)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /// `If-None-Match` uses the weak comparison, ignoring the `W/` prefix.
+        private static String weakless(String etag) {
+            return etag.startsWith("W/") ? etag.substring(2) : etag;
+        }
+
+        /// Relays the upstream response to the client, handing over its body once read from the upstream and before writing
+        /// it to the client, `null` when it exceeded the route's `max-entry-size` or failed to be read.
+        private final class BufferingResponse implements ServerResponse {
+
+            private final ServerResponse delegate;
+            private final Consumer<byte[]> loaded;
+
+            private BufferingResponse(ServerResponse delegate, Consumer<byte[]> loaded) {
+                this.delegate = delegate;
+                this.loaded = loaded;
+            }
+
+            @Override
+            public HttpStatusCode statusCode() {
+                return delegate.statusCode();
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return delegate.headers();
+            }
+
+            @Override
+            public MultiValueMap<String, Cookie> cookies() {
+                return delegate.cookies();
+            }
+
+            @Override
+            public ModelAndView writeTo(HttpServletRequest request, HttpServletResponse response, Context context) throws ServletException, IOException {
+                var buffering = new BufferingServletResponse(response, maxEntrySize, () -> loaded.accept(null));
+                byte[] body = null;
+                ModelAndView modelAndView;
+                try {
+                    modelAndView = delegate.writeTo(request, buffering, context);
+                    body = buffering.getBufferedBody();
+                } finally {
+                    loaded.accept(body);
+                }
+                buffering.writeBufferedBody();
+                return modelAndView;
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final HttpHeaders headers;
+        private final ByteBuffer body;
+        private final String etag;
+        private volatile long storedNanos;
+        private volatile long expiresNanos;
+
+        private Entry(HttpHeaders headers, ByteBuffer body, String etag, Duration freshness) {
+            this.headers = headers;
+            this.body = body;
+            this.etag = etag;
+            revalidated(freshness);
+        }
+
+        private void revalidated(Duration freshness) {
+            long now = System.nanoTime();
+            storedNanos = now;
+            expiresNanos = now + freshness.toNanos();
+        }
+
+        private boolean isFresh() {
+            return System.nanoTime() - expiresNanos < 0;
+        }
+
+        private Duration getAge() {
+            return Duration.ofNanos(System.nanoTime() - storedNanos);
+        }
+    }
+
+    /// The `Cache-Control` directives the cache acts on.
+    private record Directives(boolean noStore, boolean noCache, boolean isPrivate, Duration maxAge, Duration sharedMaxAge) {
+
+        private static final Directives NONE = new Directives(false, false, false, null, null);
+
+        static Directives parse(List<String> values) {
+            if (values == null || values.isEmpty()) {
+                return NONE;
+            }
+            boolean noStore = false;
+            boolean noCache = false;
+            boolean isPrivate = false;
+            Duration maxAge = null;
+            Duration sharedMaxAge = null;
+            for (String value : values) {
+                for (String directive : value.split(",")) {
+                    int separator = directive.indexOf('=');
+                    String name = (separator < 0 ? directive : directive.substring(0, separator)).trim().toLowerCase();
+                    String argument = separator < 0 ? null : directive.substring(separator + 1).trim().replace("\"", "");
+                    switch (name) {
+                        case "no-store" -> noStore = true;
+                        case "no-cache" -> noCache = true;
+                        case "private" -> isPrivate = true;
+                        case "max-age" -> maxAge = seconds(argument);
+                        case "s-maxage" -> sharedMaxAge = seconds(argument);
+                        default -> {
+                        }
+                    }
+                }
+            }
+            return new Directives(noStore, noCache, isPrivate, maxAge, sharedMaxAge);
+        }
+
+        /// @return the delta-seconds argument, `null` when missing or malformed so the directive is ignored
+        private static Duration seconds(String argument) {
+            if (argument == null) {
+                return null;
+            }
+            try {
+                return Duration.ofSeconds(Math.max(0, Long.parseLong(argument)));
+            } catch (NumberFormatException malformed) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.websocket.api.Callback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/// Bounded per-session queue of upstream messages waiting to be written to the client.
+///
+/// A single drain task at a time writes the queued messages, so the client receives them in arrival order.
+/// Upstream demand is driven by the queue depth: the next upstream frame is demanded while the depth is
+/// below the high watermark, and once the high watermark is reached demand is suspended until the drain task
+/// brings the depth down to the low watermark. With explicit demand the depth never exceeds the high watermark.
+class ClientOutboundQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(ClientOutboundQueue.class);
+    private final Queue<PendingMessage> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean demandSuspended = new AtomicBoolean();
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final Executor executor;
+    private final Runnable demand;
+    private final BiConsumer<WebSocketMessage<?>, Callback> sender;
+
+    ClientOutboundQueue(WebSocketProxyProperties.Backpressure backpressure, Executor executor, Runnable demand, BiConsumer<WebSocketMessage<?>, Callback> sender) {
+        Assert.isTrue(backpressure.getLowWatermark() >= 0, "Low watermark must not be negative");
+        Assert.isTrue(backpressure.getLowWatermark() < backpressure.getHighWatermark(), "Low watermark must be lower than the high watermark");
+        this.highWatermark = backpressure.getHighWatermark();
+        this.lowWatermark = backpressure.getLowWatermark();
+        this.executor = executor;
+        this.demand = demand;
+        this.sender = sender;
+    }
+
+    /// Queues the message and demands the next upstream frame unless the high watermark is reached.
+    /// The callback is completed once the message is written to the client.
+    void enqueue(WebSocketMessage<?> message, Callback callback) {
+        messages.offer(new PendingMessage(message, callback));
+        if (depth.incrementAndGet() < highWatermark) {
+            demand.run();
+        } else {
+            log.debug("Client outbound queue reached the high watermark ({}), suspending upstream demand", highWatermark);
+            demandSuspended.set(true);
+            // the drain task may have passed the low watermark before demand was marked as suspended
+            if (depth.get() <= lowWatermark) {
+                resumeDemand();
+            }
+        }
+        scheduleDrain();
+    }
+
+    int getDepth() {
+        return depth.get();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        do {
+            PendingMessage pending;
+            while ((pending = messages.poll()) != null) {
+                sender.accept(pending.message(), pending.callback());
+                if (depth.decrementAndGet() <= lowWatermark) {
+                    resumeDemand();
+                }
+            }
+            draining.set(false);
+        } while (!messages.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    private void resumeDemand() {
+        if (demandSuspended.compareAndSet(true, false)) {
+            log.debug("Client outbound queue drained to the low watermark ({}), resuming upstream demand", lowWatermark);
+            demand.run();
+        }
+    }
+
+    private record PendingMessage(WebSocketMessage<?> message, Callback callback) {
+    }
+}
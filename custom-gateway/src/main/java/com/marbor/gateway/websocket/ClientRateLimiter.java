@@ -0,0 +1,149 @@
+package com.marbor.gateway.websocket;
+
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import org.springframework.web.servlet.function.ServerRequest;
+
+import java.security.Principal;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// Token bucket rate limits of the messages clients send to the upstream, see [WebSocketProxyProperties.RateLimit].
+///
+/// Each client key, or each session with the `session` key source, has a message bucket and a byte bucket.
+/// The buckets are GCRA buckets: a single theoretical arrival time per bucket, advanced by a compare-and-set
+/// per message, so taking tokens neither locks nor allocates, and only sessions sharing a client key share a bucket.
+/// Buckets of a client key are kept while the key has open sessions.
+@Component
+public class ClientRateLimiter {
+
+    /// Returned by [Limit#acquire] when the message must be rejected.
+    public static final long REJECTED = -1;
+    private final Map<String, Buckets> clients = new ConcurrentHashMap<>();
+
+    /// The limit of the handshake's client, to be [released][Limit#release] once its session pair closes or its handshake fails,
+    /// `null` when the route is not rate limited.
+    public Limit forClient(String routeId, WebSocketProxyProperties.RateLimit rateLimit, ServerRequest serverRequest) {
+        if (!rateLimit.isEnabled()) {
+            return null;
+        }
+        Assert.isTrue(rateLimit.getMessagesPerSecond() > 0 || rateLimit.getBytesPerSecond() != null, "Rate limit without a rate");
+        String clientKey = clientKey(serverRequest, rateLimit.getClientKey());
+        if (clientKey == null) {
+            return new Limit(null, new Buckets(rateLimit));
+        }
+        String key = routeId + ' ' + clientKey;
+        Buckets buckets = clients.compute(key, (newKey, existing) -> {
+            Buckets keyBuckets = existing != null ? existing : new Buckets(rateLimit);
+            keyBuckets.sessions++;
+            return keyBuckets;
+        });
+        return new Limit(key, buckets);
+    }
+
+    /// The value identifying the client, `null` when the session is limited on its own: with the `session` source, and for
+    /// clients without the header or principal, which would otherwise all share one bucket and throttle each other.
+    private static String clientKey(ServerRequest serverRequest, WebSocketProxyProperties.ClientKey clientKey) {
+        return switch (clientKey.getSource()) {
+            case SESSION -> null;
+            case HEADER -> serverRequest.headers().firstHeader(clientKey.getName());
+            case REMOTE_ADDRESS -> serverRequest.servletRequest().getRemoteAddr();
+            case PRINCIPAL -> serverRequest.principal().map(Principal::getName).orElse(null);
+        };
+    }
+
+    /// Rate limit of one session, on its own buckets or on the buckets shared by its client key.
+    public final class Limit {
+
+        private final String key;
+        private final Buckets buckets;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Limit(String key, Buckets buckets) {
+            this.key = key;
+            this.buckets = buckets;
+        }
+
+        /// Takes the tokens of a message fragment, the message itself being counted on its last fragment.
+        /// @return `0` when the fragment may be sent right away, the nanoseconds to wait before sending it
+        /// with the `delay` policy, or [#REJECTED] with the `close` policy
+        public long acquire(int length, boolean last) {
+            long now = System.nanoTime();
+            long wait = 0;
+            if (last && buckets.messages != null) {
+                wait = buckets.messages.take(1, now, buckets.delay);
+            }
+            if (buckets.bytes != null && wait != REJECTED) {
+                long bytesWait = buckets.bytes.take(length, now, buckets.delay);
+                wait = bytesWait == REJECTED ? REJECTED : Math.max(wait, bytesWait);
+            }
+            return wait;
+        }
+
+        /// Stops counting the session on its client key, safe to call more than once.
+        public void release() {
+            if (key != null && released.compareAndSet(false, true)) {
+                clients.computeIfPresent(key, (releasedKey, keyBuckets) -> --keyBuckets.sessions == 0 ? null : keyBuckets);
+            }
+        }
+    }
+
+    private static final class Buckets {
+
+        private final TokenBucket messages;
+        private final TokenBucket bytes;
+        private final boolean delay;
+        /// Open sessions of a client key, only changed within the map's `compute` of the key.
+        private int sessions;
+
+        private Buckets(WebSocketProxyProperties.RateLimit rateLimit) {
+            this.messages = TokenBucket.of(rateLimit.getMessagesPerSecond(), rateLimit.getBurst());
+            this.bytes = TokenBucket.of(rateLimit.getBytesPerSecond() != null ? rateLimit.getBytesPerSecond().toBytes() : 0, rateLimit.getBurst());
+            this.delay = rateLimit.getPolicy() == WebSocketProxyProperties.RateLimit.Policy.DELAY;
+        }
+    }
+
+    /// Generic cell rate algorithm bucket: tokens are emitted at `perSecond`, and up to `tolerance` worth of tokens
+    /// may be taken ahead of time.
+    private static final class TokenBucket {
+
+        private final long perSecond;
+        private final long toleranceNanos;
+        /// Time at which the bucket is full again.
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+        private TokenBucket(long perSecond, long toleranceNanos) {
+            this.perSecond = perSecond;
+            this.toleranceNanos = toleranceNanos;
+        }
+
+        /// @return `null` for a rate of `0`, i.e. no limit
+        private static TokenBucket of(long perSecond, Duration burst) {
+            if (perSecond <= 0) {
+                return null;
+            }
+            return new TokenBucket(perSecond, burst.toNanos());
+        }
+
+        /// @param takeLate whether tokens not available yet are taken anyway, the caller waiting for them
+        private long take(long tokens, long now, boolean takeLate) {
+            // computed per take rather than from a per-token interval, which truncates to whole nanoseconds at high byte rates
+            long cost = tokens * TimeUnit.SECONDS.toNanos(1) / perSecond;
+            while (true) {
+                long current = theoreticalArrival.get();
+                long next = Math.max(current, now) + cost;
+                long wait = next - toleranceNanos - now;
+                if (wait > 0 && !takeLate) {
+                    return REJECTED;
+                }
+                if (theoreticalArrival.compareAndSet(current, next)) {
+                    return Math.max(0, wait);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.websocket.api.ExtensionConfig;
+
+import java.util.List;
+
+/// Decides the `permessage-deflate` negotiation of both legs from the route's [WebSocketProxyProperties.Compression].
+///
+/// The client's `Sec-WebSocket-Extensions` offer is never copied to the upstream as is,
+/// and the upstream's answer is never copied back, so the two handshakes cannot disagree.
+final class CompressionNegotiation {
+
+    static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+    private CompressionNegotiation() {
+    }
+
+    /// Extensions offered to the upstream for the given client offer.
+    static List<ExtensionConfig> upstreamOffer(WebSocketProxyProperties.Compression compression, List<ExtensionConfig> clientOffer) {
+        return switch (compression.getMode()) {
+            case MIRROR -> deflate(clientOffer);
+            case TERMINATE, DISABLED -> List.of();
+        };
+    }
+
+    /// Extensions accepted on the client leg for the given client offer and the extensions the upstream accepted.
+    static List<ExtensionConfig> clientAccept(WebSocketProxyProperties.Compression compression, List<ExtensionConfig> clientOffer,
+                                              List<ExtensionConfig> upstreamAccepted) {
+        return switch (compression.getMode()) {
+            case MIRROR -> deflate(upstreamAccepted);
+            case TERMINATE -> deflate(clientOffer).isEmpty() ? List.of() : List.of(terminated(compression));
+            case DISABLED -> List.of();
+        };
+    }
+
+    private static List<ExtensionConfig> deflate(List<ExtensionConfig> extensions) {
+        return extensions.stream()
+                .filter(extension -> PERMESSAGE_DEFLATE.equalsIgnoreCase(extension.getName()))
+                .limit(1)
+                .toList();
+    }
+
+    private static ExtensionConfig terminated(WebSocketProxyProperties.Compression compression) {
+        var extension = new StringBuilder(PERMESSAGE_DEFLATE);
+        if (compression.isClientNoContextTakeover()) {
+            extension.append("; client_no_context_takeover");
+        }
+        if (compression.isServerNoContextTakeover()) {
+            extension.append("; server_no_context_takeover");
+        }
+        return ExtensionConfig.parse(extension.toString());
+    }
+}
@@ -0,0 +1,324 @@
+package com.marbor.gateway.websocket;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.eclipse.jetty.websocket.api.Callback;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.core.CoreSession;
+import org.eclipse.jetty.websocket.core.Frame;
+import org.eclipse.jetty.websocket.core.OpCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/// One gateway ↔ upstream session shared by the clients of a fan-out route subscribing with the same key,
+/// see [WebSocketProxyProperties.FanOut] and [FanOutSubscriptions].
+///
+/// The upstream handshake is made once, with the request of the first subscriber, and every later subscriber is answered
+/// with its status and headers, except the headers issued to the first client such as `Set-Cookie`. The credentials of
+/// a request are part of its subscription key, so clients are only attached to an upstream session opened with the same
+/// credentials. Each upstream message is encoded once into a frame payload shared read-only by all
+/// subscribers and written to each client through Jetty's core session, so a broadcast costs one frame header per client.
+/// The next upstream message is demanded once the message was handed to every subscriber rather than once it was written,
+/// so a slow subscriber does not hold up the others; a subscriber with more than `max-pending-messages` unwritten messages
+/// is closed with `1013 Try Again Later`. Client messages are not forwarded, the subscription is defined by its handshake.
+///
+/// The upstream session is closed with the last subscriber, and its subscribers are closed with it.
+public class FanOutSubscription implements Session.Listener {
+
+    private static final Logger log = LoggerFactory.getLogger(FanOutSubscription.class);
+    private final String key;
+    private final URI upstreamUrl;
+    private final WebSocketProxyProperties.Route routeProperties;
+    private final WebSocketProxyMetrics.Route metrics;
+    private final WebSocketUpgradeResponseListener upgradeListener = new WebSocketUpgradeResponseListener();
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final CompletableFuture<Session> upstreamSession = new CompletableFuture<>();
+    private final AtomicBoolean connecting = new AtomicBoolean();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private volatile Session session;
+    private int references;
+    private boolean released;
+
+    public FanOutSubscription(String key, URI upstreamUrl, WebSocketProxyProperties.Route routeProperties, WebSocketProxyMetrics.Route metrics) {
+        this.key = key;
+        this.upstreamUrl = upstreamUrl;
+        this.routeProperties = routeProperties;
+        this.metrics = metrics;
+    }
+
+    /// Starts the upstream handshake unless another subscriber already did.
+    /// @return whether this call started it, i.e. the upstream handshake is made with this subscriber's request
+    boolean connect(Supplier<CompletableFuture<Session>> connector) {
+        if (!connecting.compareAndSet(false, true)) {
+            return false;
+        }
+        connector.get().whenComplete((session, failure) -> {
+            if (failure != null) {
+                upstreamSession.completeExceptionally(failure);
+            } else {
+                upstreamSession.complete(session);
+            }
+        });
+        return true;
+    }
+
+    /// Counts one more client, `false` once the subscription is closed.
+    synchronized boolean retain() {
+        if (released) {
+            return false;
+        }
+        references++;
+        return true;
+    }
+
+    /// Stops counting a client, closing the subscription with the last one.
+    synchronized void release() {
+        if (!released && --references == 0) {
+            close(StatusCode.NORMAL, "No subscribers");
+        }
+    }
+
+    /// A subscriber for a client whose handshake is being completed, counted by an earlier [#retain()].
+    /// It is detached, releasing that count, unless its client is upgraded within `upgradeTimeout`, e.g. when the client
+    /// went away or its async request timed out before the handshake response was written.
+    Subscriber newSubscriber(Scheduler scheduler, Duration upgradeTimeout) {
+        var subscriber = new Subscriber();
+        subscriber.expiry = scheduler.schedule(subscriber::expire, upgradeTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        return subscriber;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public URI getUpstreamUrl() {
+        return upstreamUrl;
+    }
+
+    public WebSocketUpgradeResponseListener getUpgradeListener() {
+        return upgradeListener;
+    }
+
+    public CompletableFuture<Session> getUpstreamSession() {
+        return upstreamSession;
+    }
+
+    /// Completes once the subscription has no subscribers left or its upstream session closed.
+    public CompletableFuture<Void> getClosed() {
+        return closed;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    @Override
+    public void onWebSocketOpen(Session session) {
+        this.session = session;
+        WebSocketAdmissionControl.limitMessageSize(session, routeProperties.getLimits());
+        session.demand();
+    }
+
+    @Override
+    public void onWebSocketText(String message) {
+        ByteBuffer payload = BufferUtil.toBuffer(message, StandardCharsets.UTF_8);
+        broadcast(OpCode.TEXT, payload, payload.remaining());
+    }
+
+    @Override
+    public void onWebSocketBinary(ByteBuffer payload, Callback callback) {
+        ByteBuffer copy = BufferUtil.copy(payload);
+        callback.succeed();
+        broadcast(OpCode.BINARY, copy, copy.remaining());
+    }
+
+    private void broadcast(byte opCode, ByteBuffer payload, int payloadLength) {
+        ByteBuffer shared = payload.asReadOnlyBuffer();
+        int receivers = 0;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.send(opCode, shared)) {
+                receivers++;
+            }
+        }
+        metrics.upstreamToClient().broadcast(payloadLength, receivers);
+        session.demand();
+    }
+
+    @Override
+    public void onWebSocketError(Throwable exception) {
+        if (session == null) {
+            // a failed handshake attempt, answered by the exchange handler, which may retry it with this listener
+            return;
+        }
+        log.error("Transport error on the fan-out subscription {} to {}", key, upstreamUrl, exception);
+        close(StatusCode.SERVER_ERROR, exception.getLocalizedMessage());
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason, Callback callback) {
+        close(statusCode, reason);
+        callback.succeed();
+    }
+
+    private synchronized boolean isReleased() {
+        return released;
+    }
+
+    private void close(int statusCode, String reason) {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+        }
+        subscribers.forEach(subscriber -> subscriber.closePair(statusCode, reason));
+        upstreamSession.thenAccept(session -> {
+            if (session.isOpen()) {
+                session.close(statusCode, reason, Callback.NOOP);
+            }
+        });
+        closed.complete(null);
+    }
+
+    /// Client leg of one subscriber. Closing the pair only closes the client, the upstream session is shared.
+    public final class Subscriber implements Session.Listener, SessionPair {
+
+        private final AtomicInteger pendingMessages = new AtomicInteger();
+        private final AtomicBoolean upgrading = new AtomicBoolean();
+        private final AtomicBoolean detached = new AtomicBoolean();
+        private final CompletableFuture<Void> subscriberClosed = new CompletableFuture<>();
+        private final SessionActivity activity = new SessionActivity();
+        private final org.eclipse.jetty.util.Callback written = org.eclipse.jetty.util.Callback.from(pendingMessages::decrementAndGet,
+                failure -> log.debug("Failed to write a fan-out message to a subscriber of {}", key, failure));
+        private volatile Session session;
+        private volatile CoreSession coreSession;
+        private volatile Scheduler.Task expiry;
+
+        private Subscriber() {
+        }
+
+        /// Upgrades the client connection, negotiating the client's compression against the shared upstream session.
+        void upgrade(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+            if (!upgrading.compareAndSet(false, true)) {
+                throw new IllegalStateException("Subscriber of " + key + " expired before the client upgrade");
+            }
+            expiry.cancel();
+            try {
+                JettyServerUpgrade.upgrade(httpServletRequest, httpServletResponse, (upgradeRequest, upgradeResponse) -> {
+                    upgradeResponse.setExtensions(CompressionNegotiation.clientAccept(routeProperties.getCompression(),
+                            upgradeRequest.getExtensions(), upstreamSession.join().getUpgradeResponse().getExtensions()));
+                    return this;
+                });
+            } catch (IOException | RuntimeException upgradeException) {
+                detach();
+                throw new RuntimeException("Problem occurred when client <-> gateway connection upgrade", upgradeException);
+            }
+        }
+
+        @Override
+        public void onWebSocketOpen(Session session) {
+            this.session = session;
+            this.coreSession = ((WebSocketSession) session).getCoreSession();
+            metrics.sessionOpened();
+            subscribers.add(this);
+            // the subscription may have closed while the client handshake completed
+            if (isReleased()) {
+                closePair(StatusCode.SHUTDOWN, "Subscription closed");
+            }
+            session.demand();
+        }
+
+        @Override
+        public void onWebSocketText(String message) {
+            session.demand();
+        }
+
+        @Override
+        public void onWebSocketBinary(ByteBuffer payload, Callback callback) {
+            callback.succeed();
+            session.demand();
+        }
+
+        /// @return whether the message was handed to the client, `false` when the subscriber is closed as too slow
+        private boolean send(byte opCode, ByteBuffer payload) {
+            if (pendingMessages.incrementAndGet() > routeProperties.getFanOut().getMaxPendingMessages()) {
+                pendingMessages.decrementAndGet();
+                closePair(StatusCode.TRY_AGAIN_LATER, "Subscriber too slow");
+                return false;
+            }
+            coreSession.sendFrame(new Frame(opCode, payload.slice()), written, false);
+            activity.upstreamToClient(payload.remaining());
+            return true;
+        }
+
+        @Override
+        public void onWebSocketError(Throwable exception) {
+            log.debug("Transport error on a subscriber of {}", key, exception);
+            detach();
+        }
+
+        @Override
+        public void onWebSocketClose(int statusCode, String reason, Callback callback) {
+            detach();
+            callback.succeed();
+        }
+
+        private void expire() {
+            if (upgrading.compareAndSet(false, true)) {
+                log.debug("Client of {} was not upgraded in time, detaching its subscriber", key);
+                detach();
+            }
+        }
+
+        private void detach() {
+            if (detached.compareAndSet(false, true)) {
+                if (subscribers.remove(this)) {
+                    metrics.sessionClosed();
+                }
+                subscriberClosed.complete(null);
+                release();
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> getClosed() {
+            return subscriberClosed;
+        }
+
+        /// Only the shared upstream messages handed to this client are counted, client messages are discarded.
+        @Override
+        public SessionActivity getActivity() {
+            return activity;
+        }
+
+        @Override
+        public int getBacklog() {
+            return pendingMessages.get();
+        }
+
+        @Override
+        public void closePair(int statusCode, String reason) {
+            Session clientSession = session;
+            if (clientSession != null && clientSession.isOpen()) {
+                clientSession.close(statusCode, reason, Callback.NOOP);
+            }
+        }
+    }
+}
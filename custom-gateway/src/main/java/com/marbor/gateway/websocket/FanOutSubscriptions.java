@@ -0,0 +1,40 @@
+package com.marbor.gateway.websocket;
+
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/// Live [FanOutSubscription]s of all fan-out routes, by subscription key.
+///
+/// The gateway does not keep shared upstream sessions alive itself, so routes enabling both `fan-out` and `keepalive`
+/// are rejected at startup rather than silently left without keepalive.
+@Component
+public class FanOutSubscriptions {
+
+    private final Map<String, FanOutSubscription> subscriptions = new ConcurrentHashMap<>();
+
+    public FanOutSubscriptions(WebSocketProxyProperties webSocketProxyProperties) {
+        webSocketProxyProperties.getRoutes().forEach((routeId, route) -> Assert.isTrue(!route.getFanOut().isEnabled() || !route.getKeepalive().isEnabled(),
+                () -> "Keepalive does not apply to the fan-out route " + routeId));
+    }
+
+    /// The live subscription of the key, created by the factory when there is none, counted for one more client.
+    /// The factory must not start the upstream handshake, see [FanOutSubscription#connect].
+    public FanOutSubscription subscribe(String key, Function<String, FanOutSubscription> factory) {
+        while (true) {
+            FanOutSubscription subscription = subscriptions.computeIfAbsent(key, newKey -> {
+                FanOutSubscription created = factory.apply(newKey);
+                created.getClosed().thenRun(() -> subscriptions.remove(newKey, created));
+                return created;
+            });
+            if (subscription.retain()) {
+                return subscription;
+            }
+            // closed by its last subscriber after the lookup
+            subscriptions.remove(key, subscription);
+        }
+    }
+}
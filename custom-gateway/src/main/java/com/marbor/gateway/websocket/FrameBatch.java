@@ -0,0 +1,102 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.eclipse.jetty.websocket.api.Callback;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.core.CoreSession;
+import org.eclipse.jetty.websocket.core.Frame;
+import org.eclipse.jetty.websocket.core.OpCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Coalesces the frames written to a Jetty session into fewer, larger writes.
+///
+/// Data frames are handed to Jetty's core session as batched frames, so Jetty aggregates them in its batch buffer
+/// instead of writing each one on its own; control frames sent through the session flush the batch with them. The batch is flushed as soon as it holds [WebSocketProxyProperties.Batching#getMaxBytes],
+/// otherwise by a timer armed by the first frame of the batch, so no frame waits longer than the linger time.
+///
+/// Frames handed to the session but not yet written are counted as in flight, so the relays can keep reading
+/// while the batch has room and fall back to demanding after each write once it is full.
+class FrameBatch {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameBatch.class);
+    private final CoreSession coreSession;
+    private final Scheduler scheduler;
+    private final int maxBytes;
+    private final long lingerNanos;
+    private final AtomicInteger unflushedBytes = new AtomicInteger();
+    private final AtomicInteger inFlightBytes = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final org.eclipse.jetty.util.Callback flushCallback = org.eclipse.jetty.util.Callback.from(() -> { },
+            failure -> log.debug("Failed to flush WebSocket frame batch", failure));
+    /// Whether the last data frame sent did not end its message, written by the single relay of the direction.
+    private boolean continuing;
+
+    private FrameBatch(CoreSession coreSession, WebSocketProxyProperties.Batching batching, Scheduler scheduler) {
+        Assert.isTrue(batching.getMaxBytes() > 0, "Batch max bytes must be positive");
+        this.coreSession = coreSession;
+        this.scheduler = scheduler;
+        this.maxBytes = batching.getMaxBytes();
+        this.lingerNanos = batching.getLinger().toNanos();
+    }
+
+    /// @return the batch of the session, `null` when the route does not batch frames
+    static FrameBatch create(Session session, WebSocketProxyProperties.Batching batching, Scheduler scheduler) {
+        return batching.isEnabled() ? new FrameBatch(((WebSocketSession) session).getCoreSession(), batching, scheduler) : null;
+    }
+
+    /// Sends a text frame into the batch, as a continuation when a previous frame did not end its message.
+    void sendText(String payload, boolean last, Callback callback) {
+        send(new Frame(opCode(OpCode.TEXT, last), last, payload), callback);
+    }
+
+    /// Sends a binary frame into the batch, as a continuation when a previous frame did not end its message.
+    /// The payload must stay untouched until the callback completes.
+    void sendBinary(ByteBuffer payload, boolean last, Callback callback) {
+        send(new Frame(opCode(OpCode.BINARY, last), last, payload), callback);
+    }
+
+    private byte opCode(byte messageOpCode, boolean last) {
+        byte opCode = continuing ? OpCode.CONTINUATION : messageOpCode;
+        continuing = !last;
+        return opCode;
+    }
+
+    private void send(Frame frame, Callback callback) {
+        coreSession.sendFrame(frame, org.eclipse.jetty.util.Callback.from(callback::succeed, callback::fail), true);
+    }
+
+    /// Whether a next frame may be read before the frames in flight are written.
+    boolean hasRoom() {
+        return inFlightBytes.get() < maxBytes;
+    }
+
+    /// Counts a frame handed to the session and flushes the batch once full, or arms the linger timer for its first frame.
+    void added(int length) {
+        inFlightBytes.addAndGet(length);
+        if (unflushedBytes.addAndGet(length) >= maxBytes) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::flush, lingerNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /// Counts a frame of the batch as written.
+    void written(int length) {
+        inFlightBytes.addAndGet(-length);
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (unflushedBytes.getAndSet(0) > 0 && coreSession.isOutputOpen()) {
+            coreSession.flush(flushCallback);
+        }
+    }
+}
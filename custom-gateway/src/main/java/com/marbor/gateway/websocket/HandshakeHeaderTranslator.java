@@ -0,0 +1,138 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.util.Index;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.function.ServerResponse;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/// Copies the handshake headers between the two legs: the client's request headers to the upstream upgrade request
+/// and the upstream's response headers to the client handshake response.
+///
+/// The rules of every configured route, see [WebSocketProxyProperties.Headers], are compiled at startup together with
+/// the headers that never cross the gateway into a case-insensitive index per direction. Copying a handshake is then
+/// a single pass over the source headers with one index lookup per header name, without lowercasing names or building
+/// intermediate maps. Headers with repeated names are copied with all their values, in order.
+/// HTTP/2 pseudo-headers belong to the leg they arrived on and are never copied.
+@Component
+public class HandshakeHeaderTranslator {
+
+    static final String SEC_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+    /// Negotiated per leg by [CompressionNegotiation], never copied between the handshakes.
+    private static final List<String> REQUEST_RENEGOTIATED = List.of(SEC_WEBSOCKET_EXTENSIONS);
+    /// Connection-specific headers of the client's HTTP/1.1 upgrade, not allowed on an HTTP/2 extended `CONNECT`.
+    private static final List<String> HTTP1_UPGRADE_HEADERS = List.of(HttpHeaders.UPGRADE, HttpHeaders.CONNECTION, HttpHeaders.HOST, "Keep-Alive", "Sec-WebSocket-Key");
+    /// Generated by the gateway's own handshake with the client.
+    private static final List<String> RESPONSE_HOP_BY_HOP = List.of(HttpHeaders.UPGRADE, HttpHeaders.CONNECTION, "Sec-WebSocket-Accept", HttpHeaders.DATE, SEC_WEBSOCKET_EXTENSIONS);
+    /// Issued to the client whose handshake opened a shared fan-out upstream session, never to the later subscribers.
+    private static final List<String> PER_CLIENT_RESPONSE_HEADERS = List.of(HttpHeaders.SET_COOKIE, "Authentication-Info");
+    /// Part of the WebSocket handshake itself, forwarded even when a route only allows listed headers.
+    private static final List<String> HANDSHAKE_HEADERS = List.of("Sec-WebSocket-Protocol", "Sec-WebSocket-Version");
+
+    private final Map<String, Policy> policies = new HashMap<>();
+    private final Policy defaultPolicy = new Policy(new WebSocketProxyProperties.Headers());
+
+    public HandshakeHeaderTranslator(WebSocketProxyProperties webSocketProxyProperties) {
+        webSocketProxyProperties.getRoutes().forEach((routeId, route) -> policies.put(routeId, new Policy(route.getHeaders())));
+    }
+
+    public Policy forRoute(String routeId) {
+        return policies.getOrDefault(routeId, defaultPolicy);
+    }
+
+    /// Compiled header rules of one route.
+    public static final class Policy {
+
+        private final Rules http1Request;
+        private final Rules http2Request;
+        private final Rules response;
+        private final Rules subscriberResponse;
+
+        private Policy(WebSocketProxyProperties.Headers headers) {
+            this.http1Request = new Rules(headers.getRequest(), REQUEST_RENEGOTIATED);
+            this.http2Request = new Rules(headers.getRequest(), REQUEST_RENEGOTIATED, HTTP1_UPGRADE_HEADERS);
+            this.response = new Rules(headers.getResponse(), RESPONSE_HOP_BY_HOP);
+            this.subscriberResponse = new Rules(headers.getResponse(), RESPONSE_HOP_BY_HOP, PER_CLIENT_RESPONSE_HEADERS);
+        }
+
+        public void copyRequestHeaders(HttpHeaders clientHeaders, ClientUpgradeRequest upstreamUpgradeRequest, HttpVersion httpVersion) {
+            Rules rules = httpVersion == HttpVersion.HTTP_2 ? http2Request : http1Request;
+            for (Map.Entry<String, List<String>> header : clientHeaders.headerSet()) {
+                String name = rules.translate(header.getKey());
+                if (name != null) {
+                    upstreamUpgradeRequest.setHeader(name, header.getValue());
+                }
+            }
+        }
+
+        public void copyResponseHeaders(HttpFields upstreamHeaders, ServerResponse.BodyBuilder gatewayResponseBuilder) {
+            copyResponseHeaders(response, upstreamHeaders, gatewayResponseBuilder);
+        }
+
+        /// Copies the response headers of a shared fan-out upstream handshake to a client that did not make it,
+        /// without the headers issued to the first client, such as its cookies.
+        public void copySubscriberResponseHeaders(HttpFields upstreamHeaders, ServerResponse.BodyBuilder gatewayResponseBuilder) {
+            copyResponseHeaders(subscriberResponse, upstreamHeaders, gatewayResponseBuilder);
+        }
+
+        private static void copyResponseHeaders(Rules rules, HttpFields upstreamHeaders, ServerResponse.BodyBuilder gatewayResponseBuilder) {
+            for (HttpField header : upstreamHeaders) {
+                String name = rules.translate(header.getName());
+                if (name != null) {
+                    gatewayResponseBuilder.header(name, header.getValue());
+                }
+            }
+        }
+    }
+
+    /// Rules of one direction: the name each listed header is forwarded with, or [Translation#DROP].
+    private static final class Rules {
+
+        private final Index<Translation> translations;
+        private final boolean forwardUnlisted;
+
+        @SafeVarargs
+        private Rules(WebSocketProxyProperties.HeaderRules headerRules, List<String>... dropped) {
+            // later entries take precedence, so dropped headers cannot be re-enabled by the route's rules
+            Map<String, Translation> rules = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            if (!headerRules.getAllow().isEmpty()) {
+                HANDSHAKE_HEADERS.forEach(name -> rules.put(name, new Translation(name)));
+            }
+            headerRules.getAllow().forEach(name -> rules.put(name, new Translation(name)));
+            headerRules.getRename().forEach((name, rename) -> rules.put(name, new Translation(rename)));
+            headerRules.getDeny().forEach(name -> rules.put(name, Translation.DROP));
+            for (List<String> names : dropped) {
+                names.forEach(name -> rules.put(name, Translation.DROP));
+            }
+            var index = new Index.Builder<Translation>().caseSensitive(false);
+            rules.forEach(index::with);
+            this.translations = index.build();
+            this.forwardUnlisted = headerRules.getAllow().isEmpty();
+        }
+
+        /// @return the name to forward the header with, `null` to drop it
+        private String translate(String name) {
+            if (name.startsWith(":")) {
+                return null;
+            }
+            Translation translation = translations.get(name);
+            if (translation == null) {
+                return forwardUnlisted ? name : null;
+            }
+            return translation.name();
+        }
+    }
+
+    private record Translation(String name) {
+
+        private static final Translation DROP = new Translation(null);
+    }
+}
@@ -0,0 +1,64 @@
+package com.marbor.gateway.websocket;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.websocket.api.ExtensionConfig;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.adapter.jetty.JettyWebSocketHandlerAdapter;
+import org.springframework.web.socket.adapter.jetty.JettyWebSocketSession;
+import org.springframework.web.socket.server.HandshakeFailureException;
+import org.springframework.web.socket.server.RequestUpgradeStrategy;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/// Spring's Jetty upgrade strategy, except that the client leg's extensions are chosen by the proxy
+/// (see [CompressionNegotiation]) instead of being negotiated by Jetty from the client's offer alone.
+class JettyExtensionNegotiatingUpgradeStrategy implements RequestUpgradeStrategy {
+
+    private static final String[] SUPPORTED_VERSIONS = {"13"};
+    private final UnaryOperator<List<ExtensionConfig>> clientExtensions;
+
+    /// @param clientExtensions maps the client's extension offer to the extensions accepted on the client leg
+    JettyExtensionNegotiatingUpgradeStrategy(UnaryOperator<List<ExtensionConfig>> clientExtensions) {
+        this.clientExtensions = clientExtensions;
+    }
+
+    @Override
+    public String[] getSupportedVersions() {
+        return SUPPORTED_VERSIONS;
+    }
+
+    /// Extensions are negotiated in [#upgrade], so none are selected by Spring.
+    @Override
+    public List<WebSocketExtension> getSupportedExtensions(ServerHttpRequest request) {
+        return List.of();
+    }
+
+    @Override
+    public void upgrade(ServerHttpRequest request, ServerHttpResponse response, String selectedProtocol, List<WebSocketExtension> selectedExtensions,
+                        Principal user, WebSocketHandler handler, Map<String, Object> attributes) throws HandshakeFailureException {
+        HttpServletRequest servletRequest = ((ServletServerHttpRequest) request).getServletRequest();
+        HttpServletResponse servletResponse = ((ServletServerHttpResponse) response).getServletResponse();
+        var handlerAdapter = new JettyWebSocketHandlerAdapter(handler, new JettyWebSocketSession(attributes, user));
+        try {
+            JettyServerUpgrade.upgrade(servletRequest, servletResponse, (upgradeRequest, upgradeResponse) -> {
+                if (selectedProtocol != null) {
+                    upgradeResponse.setAcceptedSubProtocol(selectedProtocol);
+                }
+                upgradeResponse.setExtensions(clientExtensions.apply(upgradeRequest.getExtensions()));
+                return handlerAdapter;
+            });
+        } catch (IOException | RuntimeException exception) {
+            throw new HandshakeFailureException("Failed to upgrade", exception);
+        }
+    }
+}
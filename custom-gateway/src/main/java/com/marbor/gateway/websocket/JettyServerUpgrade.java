@@ -0,0 +1,29 @@
+package com.marbor.gateway.websocket;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.ee11.websocket.server.JettyWebSocketCreator;
+import org.eclipse.jetty.ee11.websocket.server.JettyWebSocketServerContainer;
+
+import java.io.IOException;
+
+/// Upgrades the client connection with Jetty's native server WebSocket API.
+///
+/// The gateway runs in Jetty's servlet environment, whose context holds the servlet flavour of the container,
+/// the one Spring's own Jetty upgrade strategy uses too.
+final class JettyServerUpgrade {
+
+    private JettyServerUpgrade() {
+    }
+
+    static void upgrade(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, JettyWebSocketCreator webSocketCreator)
+            throws IOException {
+        JettyWebSocketServerContainer container = JettyWebSocketServerContainer.getContainer(httpServletRequest.getServletContext());
+        if (container == null) {
+            throw new IllegalStateException("Jetty WebSocket server container is not available, the gateway requires the Jetty server");
+        }
+        if (!container.upgrade(webSocketCreator, httpServletRequest, httpServletResponse)) {
+            throw new IOException("Not a WebSocket upgrade request: " + httpServletRequest.getRequestURI());
+        }
+    }
+}
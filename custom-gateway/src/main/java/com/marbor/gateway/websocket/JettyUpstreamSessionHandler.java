@@ -0,0 +1,112 @@
+package com.marbor.gateway.websocket;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.eclipse.jetty.websocket.api.Callback;
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/// Gateway ↔ upstream leg of the [WebSocketProxyProperties.Engine#JETTY] engine.
+///
+/// Once the upstream session is open, the client connection is upgraded with Jetty's native server WebSocket API,
+/// so both legs are Jetty sessions and frames are relayed between them by a pair of [JettyWebSocketRelay]s,
+/// without Spring's `WebSocketSession` and `WebSocketMessage` adapters or per-handshake Spring handler objects.
+public class JettyUpstreamSessionHandler extends JettyWebSocketRelay implements UpstreamSessionListener {
+
+    private final JettyWebSocketRelay clientRelay;
+    private final WebSocketProxyProperties.Route routeProperties;
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private final SessionActivity activity = new SessionActivity();
+
+    /// @param rateLimit limits the client frames, `null` when the route is not rate limited
+    /// @param frameFilters filters the frames of the session pair, `null` when the route has no filters
+    public JettyUpstreamSessionHandler(WebSocketProxyProperties.Route routeProperties, Scheduler scheduler, KeepaliveWheel keepaliveWheel,
+                                       ClientRateLimiter.Limit rateLimit, WebSocketFrameFilters.Chain frameFilters, WebSocketProxyMetrics.Route metrics) {
+        super("gateway <-> upstream", metrics.upstreamToClient(), routeProperties, scheduler, keepaliveWheel, null,
+                frameFilters, WebSocketFrameFilter.Direction.UPSTREAM_TO_CLIENT);
+        this.routeProperties = routeProperties;
+        this.clientRelay = new ClientRelay(routeProperties, scheduler, keepaliveWheel, rateLimit, frameFilters, metrics);
+        pair(clientRelay, activity);
+    }
+
+    @Override
+    public void upgradeClient(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+        try {
+            JettyServerUpgrade.upgrade(httpServletRequest, httpServletResponse, (upgradeRequest, upgradeResponse) -> {
+                upgradeResponse.setExtensions(CompressionNegotiation.clientAccept(routeProperties.getCompression(),
+                        upgradeRequest.getExtensions(), getSession().getUpgradeResponse().getExtensions()));
+                return clientRelay;
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Problem occurred when client <-> gateway connection upgrade", e);
+        }
+    }
+
+    @Override
+    public void onWebSocketError(Throwable exception) {
+        if (getSession() == null) {
+            // a failed handshake attempt, answered by the exchange handler, which may retry it with this listener
+            return;
+        }
+        super.onWebSocketError(exception);
+        closed.complete(null);
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason, Callback callback) {
+        super.onWebSocketClose(statusCode, reason, callback);
+        closed.complete(null);
+    }
+
+    @Override
+    public void handshakeFailed() {
+        closed.complete(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> getClosed() {
+        return closed;
+    }
+
+    @Override
+    public SessionActivity getActivity() {
+        return activity;
+    }
+
+    @Override
+    public void closePair(int statusCode, String reason) {
+        Session clientSession = clientRelay.getSession();
+        Session session = clientSession != null && clientSession.isOpen() ? clientSession : getSession();
+        if (session != null) {
+            session.close(statusCode, reason, Callback.NOOP);
+        }
+    }
+
+    /// Client leg relay, counting the proxied session pair while the client session is open.
+    private static final class ClientRelay extends JettyWebSocketRelay {
+
+        private final WebSocketProxyMetrics.Route metrics;
+
+        private ClientRelay(WebSocketProxyProperties.Route routeProperties, Scheduler scheduler, KeepaliveWheel keepaliveWheel,
+                            ClientRateLimiter.Limit rateLimit, WebSocketFrameFilters.Chain frameFilters, WebSocketProxyMetrics.Route metrics) {
+            super("client <-> gateway", metrics.clientToUpstream(), routeProperties, scheduler, keepaliveWheel, rateLimit,
+                    frameFilters, WebSocketFrameFilter.Direction.CLIENT_TO_UPSTREAM);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void onWebSocketOpen(Session session) {
+            metrics.sessionOpened();
+            super.onWebSocketOpen(session);
+        }
+
+        @Override
+        public void onWebSocketClose(int statusCode, String reason, Callback callback) {
+            metrics.sessionClosed();
+            super.onWebSocketClose(statusCode, reason, callback);
+        }
+    }
+}
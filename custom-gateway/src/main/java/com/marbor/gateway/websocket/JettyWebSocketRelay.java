@@ -0,0 +1,308 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.eclipse.jetty.websocket.api.Callback;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/// Relays frames from one Jetty WebSocket session to its peer, one instance per leg of the
+/// [WebSocketProxyProperties.Engine#JETTY] engine.
+///
+/// Frames, including continuation frames, are sent to the peer session as they arrive.
+/// Payload buffers are not copied: the read callback, which releases the buffer, completes once the peer write has finished.
+/// Frames are demanded explicitly, the first one once both sessions are open and each next one after the previous frame
+/// was written to the peer, so a slow peer slows down reading on the other leg.
+///
+/// With [WebSocketProxyProperties.Batching] enabled, frames written to each session are coalesced by a [FrameBatch].
+/// Binary payloads are then copied, as a batched write completes only once the batch is flushed, and the next frame
+/// is demanded right away while the peer's batch has room.
+///
+/// With [WebSocketProxyProperties.Keepalive] enabled, each leg is kept alive by the [KeepaliveWheel]
+/// and answers the pings of its peer itself, so control frames no longer cross the gateway.
+///
+/// With [WebSocketProxyProperties.RateLimit] enabled, data frames read on the client leg are relayed once their
+/// [ClientRateLimiter] tokens are available. As the next frame is demanded only after a frame was relayed,
+/// a delayed frame pauses reading on the leg without holding a thread.
+///
+/// With `frame-filters` configured, data frames pass the route's [WebSocketFrameFilters.Chain] before being relayed.
+public class JettyWebSocketRelay implements Session.Listener {
+
+    private static final Logger log = LoggerFactory.getLogger(JettyWebSocketRelay.class);
+    private final String leg;
+    private final WebSocketProxyMetrics.Direction metrics;
+    private final WebSocketProxyProperties.Route routeProperties;
+    private final Scheduler scheduler;
+    private final KeepaliveWheel keepaliveWheel;
+    private final ClientRateLimiter.Limit rateLimit;
+    private final WebSocketFrameFilters.Chain frameFilters;
+    private final WebSocketFrameFilter.Direction direction;
+    private final CompletableFuture<Session> opened = new CompletableFuture<>();
+    private volatile JettyWebSocketRelay peer;
+    private SessionActivity activity;
+    private volatile Session session;
+    private volatile FrameBatch batch;
+    private volatile KeepaliveWheel.Leg keepalive;
+
+    /// @param metrics meters of the direction of the frames read on this leg
+    /// @param scheduler flushes the batches of routes with batching enabled and relays rate limited frames
+    /// @param rateLimit limits the frames read on this leg, `null` when they are not rate limited
+    /// @param frameFilters filters the frames of the session pair, `null` when the route has no filters
+    /// @param direction direction of the frames read on this leg
+    public JettyWebSocketRelay(String leg, WebSocketProxyMetrics.Direction metrics, WebSocketProxyProperties.Route routeProperties,
+                               Scheduler scheduler, KeepaliveWheel keepaliveWheel, ClientRateLimiter.Limit rateLimit,
+                               WebSocketFrameFilters.Chain frameFilters, WebSocketFrameFilter.Direction direction) {
+        this.leg = leg;
+        this.metrics = metrics;
+        this.routeProperties = routeProperties;
+        this.scheduler = scheduler;
+        this.keepaliveWheel = keepaliveWheel;
+        this.rateLimit = rateLimit;
+        this.frameFilters = frameFilters;
+        this.direction = direction;
+    }
+
+    /// @param activity counts the frames relayed by both relays of the pair
+    void pair(JettyWebSocketRelay peer, SessionActivity activity) {
+        this.peer = peer;
+        this.activity = activity;
+        peer.peer = this;
+        peer.activity = activity;
+    }
+
+    @Override
+    public void onWebSocketOpen(Session session) {
+        this.session = session;
+        WebSocketAdmissionControl.limitMessageSize(session, routeProperties.getLimits());
+        this.batch = FrameBatch.create(session, routeProperties.getBatching(), scheduler);
+        this.keepalive = keepaliveWheel.register(routeProperties.getKeepalive(),
+                () -> session.sendPing(BufferUtil.EMPTY_BUFFER, Callback.NOOP),
+                () -> session.close(StatusCode.SHUTDOWN, "Idle timeout", Callback.NOOP));
+        if (keepalive != null) {
+            // the gateway's keepalive closes idle legs, Jetty's own idle timeout is only a backstop
+            session.setIdleTimeout(routeProperties.getKeepalive().getIdleTimeout().plus(KeepaliveWheel.TICK));
+        }
+        opened.complete(session);
+        peer.opened.thenRun(session::demand);
+    }
+
+    @Override
+    public void onWebSocketPartialText(String frame, boolean last) {
+        keepaliveRead();
+        String payload = frameFilters != null ? filterText(frame, last) : frame;
+        if (payload == null) {
+            return;
+        }
+        int payloadLength = WebSocketHelper.utf8Length(payload);
+        metrics.relayed(payloadLength);
+        countRelayed(payloadLength);
+        relayLimited(payloadLength, last, Callback.NOOP, sent -> {
+            FrameBatch peerBatch = peer.batch;
+            if (peerBatch != null) {
+                peerBatch.sendText(payload, last, sent);
+            } else {
+                peerSession().sendPartialText(payload, last, sent);
+            }
+        });
+    }
+
+    /// A replaced payload is relayed with the read callback, which then only releases the frame's buffer once written.
+    @Override
+    public void onWebSocketPartialBinary(ByteBuffer frame, boolean last, Callback callback) {
+        keepaliveRead();
+        ByteBuffer payload = frameFilters != null ? filterBinary(frame, last) : frame;
+        if (payload == null) {
+            callback.succeed();
+            return;
+        }
+        metrics.relayed(payload.remaining());
+        countRelayed(payload.remaining());
+        FrameBatch peerBatch = peer.batch;
+        if (peerBatch != null) {
+            ByteBuffer copy = BufferUtil.copy(payload);
+            callback.succeed();
+            relayLimited(copy.remaining(), last, Callback.NOOP, sent -> peerBatch.sendBinary(copy, last, sent));
+        } else {
+            relayLimited(payload.remaining(), last, callback, sent -> peerSession().sendPartialBinary(payload, last, sent));
+        }
+    }
+
+    /// Control frame payloads are only valid during the call, so the (at most 125 bytes) payload is copied.
+    @Override
+    public void onWebSocketPing(ByteBuffer payload) {
+        ByteBuffer copy = BufferUtil.copy(payload);
+        if (keepaliveRead()) {
+            session.sendPong(copy, Callback.NOOP);
+            session.demand();
+            return;
+        }
+        relay(copy.remaining(), Callback.NOOP, sent -> peerSession().sendPing(copy, sent));
+    }
+
+    @Override
+    public void onWebSocketPong(ByteBuffer payload) {
+        if (keepaliveRead()) {
+            session.demand();
+            return;
+        }
+        ByteBuffer copy = BufferUtil.copy(payload);
+        relay(copy.remaining(), Callback.NOOP, sent -> peerSession().sendPong(copy, sent));
+    }
+
+    /// @return whether the gateway keeps this leg alive
+    private boolean keepaliveRead() {
+        KeepaliveWheel.Leg current = keepalive;
+        if (current == null) {
+            return false;
+        }
+        current.read();
+        return true;
+    }
+
+    private void countRelayed(int length) {
+        if (direction == WebSocketFrameFilter.Direction.CLIENT_TO_UPSTREAM) {
+            activity.clientToUpstream(length);
+        } else {
+            activity.upstreamToClient(length);
+        }
+    }
+
+    /// @return the text to relay, `null` when a filter dropped the frame, the next one being demanded, or rejected it
+    private String filterText(String frame, boolean last) {
+        try {
+            String filtered = frameFilters.filterText(direction, frame, last);
+            if (filtered == null) {
+                session.demand();
+            }
+            return filtered;
+        } catch (WebSocketFrameFilter.Rejected rejected) {
+            session.close(rejected.getStatusCode(), rejected.getMessage(), Callback.NOOP);
+            return null;
+        }
+    }
+
+    /// @return the payload to relay, `null` when a filter dropped the frame, the next one being demanded, or rejected it
+    private ByteBuffer filterBinary(ByteBuffer frame, boolean last) {
+        try {
+            ByteBuffer filtered = frameFilters.filter(direction, false, last, frame);
+            if (filtered == null) {
+                session.demand();
+            }
+            return filtered;
+        } catch (WebSocketFrameFilter.Rejected rejected) {
+            session.close(rejected.getStatusCode(), rejected.getMessage(), Callback.NOOP);
+            return null;
+        }
+    }
+
+    /// Relays a data frame once its rate limit tokens are available, or closes the leg when the route rejects over-limit frames.
+    private void relayLimited(int length, boolean last, Callback readCallback, Consumer<Callback> send) {
+        long waitNanos = rateLimit != null ? rateLimit.acquire(length, last) : 0;
+        if (waitNanos == 0) {
+            relay(length, readCallback, send);
+            return;
+        }
+        boolean rejected = waitNanos == ClientRateLimiter.REJECTED;
+        metrics.rateLimited(rejected);
+        if (rejected) {
+            readCallback.succeed();
+            session.close(StatusCode.POLICY_VIOLATION, "Rate limit exceeded", Callback.NOOP);
+            return;
+        }
+        scheduler.schedule(() -> relay(length, readCallback, send), waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /// Writes a frame to the peer and demands the next one, once per frame: right away while the peer's batch has room,
+    /// otherwise once the write has finished.
+    private void relay(int length, Callback readCallback, Consumer<Callback> send) {
+        FrameBatch peerBatch = peer.batch;
+        if (peerBatch == null) {
+            send.accept(new RelayCallback(readCallback, null, 0, true));
+            return;
+        }
+        boolean demandNow = peerBatch.hasRoom();
+        send.accept(new RelayCallback(readCallback, peerBatch, length, !demandNow));
+        peerBatch.added(length);
+        if (demandNow) {
+            session.demand();
+        }
+    }
+
+    @Override
+    public void onWebSocketError(Throwable exception) {
+        log.error("Transport error on {}", leg, exception);
+        cancelKeepalive();
+        closePeer(StatusCode.SERVER_ERROR, exception.getLocalizedMessage());
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason, Callback callback) {
+        cancelKeepalive();
+        closePeer(statusCode, reason);
+        callback.succeed();
+    }
+
+    private void cancelKeepalive() {
+        KeepaliveWheel.Leg current = keepalive;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    private void closePeer(int statusCode, String reason) {
+        Session peerSession = peer.session;
+        if (peerSession != null && peerSession.isOpen()) {
+            peerSession.close(statusCode, reason, Callback.NOOP);
+        }
+    }
+
+    protected Session getSession() {
+        return session;
+    }
+
+    private Session peerSession() {
+        return peer.session;
+    }
+
+    /// Completes the read callback, and demands the next frame unless already demanded, once the peer write has finished.
+    private final class RelayCallback implements Callback {
+
+        private final Callback readCallback;
+        private final FrameBatch peerBatch;
+        private final int length;
+        private final boolean demand;
+        private final long startNanos = System.nanoTime();
+
+        private RelayCallback(Callback readCallback, FrameBatch peerBatch, int length, boolean demand) {
+            this.readCallback = readCallback;
+            this.peerBatch = peerBatch;
+            this.length = length;
+            this.demand = demand;
+        }
+
+        @Override
+        public void succeed() {
+            metrics.sendCompleted(startNanos);
+            if (peerBatch != null) {
+                peerBatch.written(length);
+            }
+            readCallback.succeed();
+            if (demand) {
+                session.demand();
+            }
+        }
+
+        @Override
+        public void fail(Throwable throwable) {
+            log.error("Failed to relay WebSocket frame from {}", leg, throwable);
+            readCallback.fail(throwable);
+        }
+    }
+}
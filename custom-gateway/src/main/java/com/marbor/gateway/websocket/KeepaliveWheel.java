@@ -0,0 +1,166 @@
+package com.marbor.gateway.websocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/// Gateway-side keepalive of the legs of routes with [WebSocketProxyProperties.Keepalive] enabled.
+///
+/// A single thread drives a hashed timing wheel holding one entry per leg, instead of one timer per session.
+/// Each tick checks only the legs due in its slot: a leg that read nothing for the ping interval is pinged by the gateway,
+/// and a leg that read nothing, not even a pong, for the idle timeout is closed, without relying on the peer's own timeouts.
+/// Reads stamp the leg with the time of the current tick, so recording activity is a single volatile write,
+/// and deadlines are precise to one [#TICK].
+@Component
+public class KeepaliveWheel implements SmartLifecycle {
+
+    static final Duration TICK = Duration.ofSeconds(1);
+    private static final Logger log = LoggerFactory.getLogger(KeepaliveWheel.class);
+    private static final int SLOTS = 512;
+    private static final long TICK_NANOS = TICK.toNanos();
+    @SuppressWarnings("unchecked")
+    private final Queue<Leg>[] wheel = new Queue[SLOTS];
+    private final long startNanos = System.nanoTime();
+    private volatile long currentTick;
+    private volatile Thread ticker;
+
+    public KeepaliveWheel() {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            wheel[slot] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /// Starts keeping the leg alive, `null` when the route has no gateway keepalive.
+    /// @param ping sends a ping to the peer of the leg
+    /// @param idle closes the session pair of the idle leg
+    public Leg register(WebSocketProxyProperties.Keepalive keepalive, Runnable ping, Runnable idle) {
+        if (!keepalive.isEnabled()) {
+            return null;
+        }
+        var leg = new Leg(ticks(keepalive.getPingInterval()), ticks(keepalive.getIdleTimeout()), ping, idle);
+        schedule(leg, leg.lastReadTick + Math.min(leg.pingIntervalTicks, leg.idleTimeoutTicks));
+        return leg;
+    }
+
+    private static long ticks(Duration duration) {
+        return Math.max(1, (duration.toNanos() + TICK_NANOS - 1) / TICK_NANOS);
+    }
+
+    private void schedule(Leg leg, long dueTick) {
+        leg.dueTick = Math.max(dueTick, currentTick + 1);
+        wheel[(int) (leg.dueTick % SLOTS)].offer(leg);
+    }
+
+    /// Advances the wheel by one tick, called by the ticker thread every [#TICK].
+    void tick() {
+        long tick = currentTick + 1;
+        currentTick = tick;
+        Queue<Leg> slot = wheel[(int) (tick % SLOTS)];
+        List<Leg> later = new ArrayList<>();
+        Leg leg;
+        while ((leg = slot.poll()) != null) {
+            if (leg.cancelled) {
+                continue;
+            }
+            if (leg.dueTick > tick) {
+                later.add(leg);
+                continue;
+            }
+            try {
+                check(leg, tick);
+            } catch (RuntimeException exception) {
+                log.error("WebSocket keepalive check failed", exception);
+            }
+        }
+        slot.addAll(later);
+    }
+
+    private void check(Leg leg, long tick) {
+        long lastReadTick = leg.lastReadTick;
+        long idleTicks = tick - lastReadTick;
+        if (idleTicks >= leg.idleTimeoutTicks) {
+            leg.cancelled = true;
+            leg.idle.run();
+            return;
+        }
+        long idleDeadline = lastReadTick + leg.idleTimeoutTicks;
+        if (idleTicks >= leg.pingIntervalTicks) {
+            leg.ping.run();
+            schedule(leg, Math.min(tick + leg.pingIntervalTicks, idleDeadline));
+        } else {
+            schedule(leg, Math.min(lastReadTick + leg.pingIntervalTicks, idleDeadline));
+        }
+    }
+
+    private void run() {
+        long nextTickNanos = startNanos + TICK_NANOS;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long waitNanos = nextTickNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+                tick();
+                nextTickNanos += TICK_NANOS;
+            }
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void start() {
+        ticker = Thread.ofVirtual().name("websocket-keepalive").start(this::run);
+    }
+
+    @Override
+    public void stop() {
+        Thread thread = ticker;
+        if (thread != null) {
+            thread.interrupt();
+            ticker = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return ticker != null;
+    }
+
+    /// Keepalive entry of one leg.
+    public final class Leg {
+
+        private final long pingIntervalTicks;
+        private final long idleTimeoutTicks;
+        private final Runnable ping;
+        private final Runnable idle;
+        private volatile long lastReadTick = currentTick;
+        private volatile boolean cancelled;
+        private long dueTick;
+
+        private Leg(long pingIntervalTicks, long idleTimeoutTicks, Runnable ping, Runnable idle) {
+            this.pingIntervalTicks = pingIntervalTicks;
+            this.idleTimeoutTicks = idleTimeoutTicks;
+            this.ping = ping;
+            this.idle = idle;
+        }
+
+        /// Records a frame read on the leg.
+        public void read() {
+            lastReadTick = currentTick;
+        }
+
+        /// Stops keeping the leg alive, once its session is closed.
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.marbor.gateway.websocket;
+
+/// What a session pair relayed so far, sampled by the [WebSocketProxyEvents.SessionSample] JFR event.
+///
+/// Frames of a direction are delivered by one thread at a time, as the next frame is demanded only after the previous one
+/// was handled, so each direction's counters are plain fields: counting costs the relay path two additions,
+/// and the sampler's unsynchronized reads may at worst miss the latest frames.
+public final class SessionActivity {
+
+    private long clientToUpstreamMessages;
+    private long clientToUpstreamBytes;
+    private long upstreamToClientMessages;
+    private long upstreamToClientBytes;
+
+    void clientToUpstream(int payloadLength) {
+        clientToUpstreamMessages++;
+        clientToUpstreamBytes += payloadLength;
+    }
+
+    void upstreamToClient(int payloadLength) {
+        upstreamToClientMessages++;
+        upstreamToClientBytes += payloadLength;
+    }
+
+    public long getClientToUpstreamMessages() {
+        return clientToUpstreamMessages;
+    }
+
+    public long getClientToUpstreamBytes() {
+        return clientToUpstreamBytes;
+    }
+
+    public long getUpstreamToClientMessages() {
+        return upstreamToClientMessages;
+    }
+
+    public long getUpstreamToClientBytes() {
+        return upstreamToClientBytes;
+    }
+}
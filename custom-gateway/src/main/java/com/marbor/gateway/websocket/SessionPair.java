@@ -0,0 +1,21 @@
+package com.marbor.gateway.websocket;
+
+import java.util.concurrent.CompletableFuture;
+
+/// A proxied client session together with its upstream leg, as tracked by [WebSocketProxySessionRegistry].
+public interface SessionPair {
+
+    /// Completes once the pair is closed.
+    CompletableFuture<Void> getClosed();
+
+    /// Closes the proxied session pair, starting with the client leg so the client receives the status and reason.
+    void closePair(int statusCode, String reason);
+
+    /// Messages and payload relayed by the pair so far.
+    SessionActivity getActivity();
+
+    /// Messages of the pair waiting to be written, in both directions.
+    default int getBacklog() {
+        return 0;
+    }
+}
@@ -0,0 +1,269 @@
+package com.marbor.gateway.websocket;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cloud.gateway.server.mvc.handler.GatewayServerResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import org.springframework.web.servlet.function.ServerResponse;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/// Circuit breakers of the upstream instances, keyed by `host:port`, driven by the outcomes of the upstream handshakes.
+///
+/// Each breaker keeps the outcomes of the last [WebSocketProxyProperties.CircuitBreaker#getWindowSize] handshakes.
+/// A handshake fails when the client is answered with a `5xx` status, i.e. the upstream was unreachable, timed out or
+/// failed the upgrade, and it is slow when it took longer than the slow handshake threshold. Once enough handshakes
+/// were recorded and the share of failed or slow ones reaches the threshold, the circuit opens: handshakes are rejected
+/// right away with a `503 Service Unavailable`, built once per second of `Retry-After`, until the open duration has passed.
+/// The circuit is then half-open and lets a few probe handshakes through, closing on a successful probe and opening
+/// again on a failed one. Each permit belongs to the state it was taken in, so handshakes permitted before a state change
+/// neither count as probes nor reopen or close the circuit.
+///
+/// Open circuits, and half-open ones without a free probe slot, are skipped by [UpstreamLoadBalancer]. An open circuit
+/// is available again once its open duration has passed, so the balancer sends it the probe that closes it.
+/// The states are published as the `gateway.websocket.upstream.circuit` gauge (`0` closed, `1` half-open, `2` open).
+@Component
+public class UpstreamCircuitBreakers {
+
+    private static final Logger log = LoggerFactory.getLogger(UpstreamCircuitBreakers.class);
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private final WebSocketProxyProperties.CircuitBreaker properties;
+    private final MeterRegistry meterRegistry;
+    private final Clock clock;
+
+    @Autowired
+    public UpstreamCircuitBreakers(WebSocketProxyProperties webSocketProxyProperties, MeterRegistry meterRegistry) {
+        this(webSocketProxyProperties, meterRegistry, Clock.systemUTC());
+    }
+
+    UpstreamCircuitBreakers(WebSocketProxyProperties webSocketProxyProperties, MeterRegistry meterRegistry, Clock clock) {
+        this.properties = webSocketProxyProperties.getCircuitBreaker();
+        this.meterRegistry = meterRegistry;
+        this.clock = clock;
+        Assert.isTrue(properties.getMinimumHandshakes() <= properties.getWindowSize(), "Minimum handshakes must not exceed the window size");
+        Assert.isTrue(properties.getHalfOpenProbes() > 0, "Half-open probes must be positive");
+    }
+
+    public CircuitBreaker forUpstream(String upstream) {
+        return circuitBreakers.computeIfAbsent(upstream, this::create);
+    }
+
+    /// Whether a new handshake would currently be let through to the upstream instance, without taking a probe slot.
+    public boolean isAvailable(String upstream) {
+        if (!properties.isEnabled()) {
+            return true;
+        }
+        CircuitBreaker circuitBreaker = circuitBreakers.get(upstream);
+        return circuitBreaker == null || circuitBreaker.isAvailable();
+    }
+
+    public Map<String, State> getStates() {
+        return circuitBreakers.values().stream()
+                .collect(Collectors.toMap(CircuitBreaker::getUpstream, CircuitBreaker::getState));
+    }
+
+    private CircuitBreaker create(String upstream) {
+        var circuitBreaker = new CircuitBreaker(upstream);
+        Gauge.builder("gateway.websocket.upstream.circuit", circuitBreaker, breaker -> breaker.getState().ordinal())
+                .description("Upstream handshake circuit state, 0 closed, 1 half-open, 2 open")
+                .tag("upstream", upstream)
+                .register(meterRegistry);
+        return circuitBreaker;
+    }
+
+    public enum State {
+        CLOSED,
+        HALF_OPEN,
+        OPEN
+    }
+
+    /// Circuit breaker of one upstream instance. State changes are rare and cheap, so they are simply synchronized.
+    public final class CircuitBreaker {
+
+        private final String upstream;
+        private final boolean[] unhealthy = new boolean[properties.getWindowSize()];
+        private int recorded;
+        private int next;
+        private int unhealthyCount;
+        private volatile State state = State.CLOSED;
+        /// Incremented on every state change, outdating the permits taken before it.
+        private long generation;
+        private Instant openUntil = Instant.MIN;
+        private int probesInFlight;
+        private ServerResponse rejection;
+        private long rejectionRetryAfter;
+        private final Permit unrestricted = new Permit(-1);
+
+        private CircuitBreaker(String upstream) {
+            this.upstream = upstream;
+        }
+
+        /// Takes a permission for a handshake, `null` when the handshake must be rejected with [#rejection()].
+        /// A permitted handshake must be completed with [Permit#record], or [Permit#release] when it has no outcome.
+        public synchronized Permit tryAcquire() {
+            if (!properties.isEnabled()) {
+                return unrestricted;
+            }
+            if (state == State.OPEN) {
+                if (clock.instant().isBefore(openUntil)) {
+                    return null;
+                }
+                transition(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN) {
+                if (probesInFlight >= properties.getHalfOpenProbes()) {
+                    return null;
+                }
+                probesInFlight++;
+            }
+            return new Permit(generation);
+        }
+
+        /// Whether [#tryAcquire()] would permit a handshake, the open to half-open transition being left to it.
+        synchronized boolean isAvailable() {
+            return switch (state) {
+                case CLOSED -> true;
+                case HALF_OPEN -> probesInFlight < properties.getHalfOpenProbes();
+                case OPEN -> !clock.instant().isBefore(openUntil);
+            };
+        }
+
+        private synchronized void record(Permit permit, boolean failed) {
+            if (permit.generation != generation) {
+                // permitted before the last state change, which already reflects the upstream's health
+                return;
+            }
+            switch (state) {
+                case HALF_OPEN -> {
+                    probesInFlight--;
+                    if (failed) {
+                        open();
+                    } else {
+                        transition(State.CLOSED);
+                    }
+                }
+                case CLOSED -> {
+                    add(failed);
+                    if (recorded >= properties.getMinimumHandshakes()
+                            && unhealthyCount >= properties.getFailureRateThreshold() * recorded) {
+                        open();
+                    }
+                }
+                case OPEN -> {
+                    // permits are outdated by the transition to open
+                }
+            }
+        }
+
+        private synchronized void release(Permit permit) {
+            if (permit.generation == generation && state == State.HALF_OPEN) {
+                probesInFlight--;
+            }
+        }
+
+        /// The response to handshakes rejected while the circuit is open, with the remaining open time as `Retry-After`.
+        public synchronized ServerResponse rejection() {
+            long remainingMillis = Duration.between(clock.instant(), openUntil).toMillis();
+            long retryAfter = Math.max(1, (remainingMillis + 999) / 1000);
+            if (rejection == null || retryAfter != rejectionRetryAfter) {
+                rejection = GatewayServerResponse.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, Long.toString(retryAfter))
+                        .body("Upstream " + upstream + " is unavailable, retry later");
+                rejectionRetryAfter = retryAfter;
+            }
+            return rejection;
+        }
+
+        public String getUpstream() {
+            return upstream;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        private void add(boolean failed) {
+            if (recorded == unhealthy.length) {
+                if (unhealthy[next]) {
+                    unhealthyCount--;
+                }
+            } else {
+                recorded++;
+            }
+            unhealthy[next] = failed;
+            if (failed) {
+                unhealthyCount++;
+            }
+            next = (next + 1) % unhealthy.length;
+        }
+
+        private void open() {
+            openUntil = clock.instant().plus(properties.getOpenDuration());
+            transition(State.OPEN);
+        }
+
+        private void transition(State newState) {
+            if (state != newState) {
+                log.warn("Upstream {} handshake circuit {} -> {}", upstream, state, newState);
+            }
+            state = newState;
+            generation++;
+            if (newState != State.HALF_OPEN) {
+                probesInFlight = 0;
+            }
+            if (newState == State.CLOSED) {
+                recorded = 0;
+                next = 0;
+                unhealthyCount = 0;
+                Arrays.fill(unhealthy, false);
+            }
+        }
+
+        /// Permission for one handshake, taken in the state of its generation.
+        public final class Permit {
+
+            private final long generation;
+            private boolean completed;
+
+            private Permit(long generation) {
+                this.generation = generation;
+            }
+
+            /// Records the outcome of the handshake by the status the client was answered with.
+            public void record(Duration handshakeTime, HttpStatusCode status) {
+                if (this == unrestricted || !complete()) {
+                    return;
+                }
+                CircuitBreaker.this.record(this, status.is5xxServerError() || handshakeTime.compareTo(properties.getSlowHandshakeThreshold()) > 0);
+            }
+
+            /// Gives the permission back without an outcome, e.g. when the handshake ended without a response.
+            public void release() {
+                if (this != unrestricted && complete()) {
+                    CircuitBreaker.this.release(this);
+                }
+            }
+
+            private synchronized boolean complete() {
+                if (completed) {
+                    return false;
+                }
+                completed = true;
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.marbor.gateway.websocket;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/// Lists the handshake circuit state of every upstream instance (`host:port`) handshakes were proxied to,
+/// at `/actuator/websocketupstreams`.
+@Component
+@Endpoint(id = "websocketupstreams")
+public class UpstreamCircuitEndpoint {
+
+    private final UpstreamCircuitBreakers upstreamCircuitBreakers;
+
+    public UpstreamCircuitEndpoint(UpstreamCircuitBreakers upstreamCircuitBreakers) {
+        this.upstreamCircuitBreakers = upstreamCircuitBreakers;
+    }
+
+    @ReadOperation
+    public Map<String, UpstreamCircuitBreakers.State> circuits() {
+        return upstreamCircuitBreakers.getStates();
+    }
+}
@@ -0,0 +1,78 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.http.HttpVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.net.ssl.SSLException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.channels.UnresolvedAddressException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+/// Chooses the HTTP version of the gateway ↔ upstream handshake.
+///
+/// Routes with `http2` enabled open their upstream sessions with an RFC 8441 extended `CONNECT`,
+/// so many proxied sessions share a few multiplexed HTTP/2 connections.
+/// An upstream that does not support extended `CONNECT` falls back to HTTP/1.1 and is probed again with HTTP/2 after
+/// [#HTTP2_RETRY_INTERVAL]. Handshakes the upstream refused or that timed out fail as they would over HTTP/1.1, without fallback.
+@Component
+public class UpstreamHttpVersionSelector {
+
+    private static final Logger log = LoggerFactory.getLogger(UpstreamHttpVersionSelector.class);
+    static final Duration HTTP2_RETRY_INTERVAL = Duration.ofMinutes(5);
+    private final Map<String, Instant> http1OnlyUpstreams = new ConcurrentHashMap<>();
+    private final Clock clock;
+
+    public UpstreamHttpVersionSelector() {
+        this(Clock.systemUTC());
+    }
+
+    UpstreamHttpVersionSelector(Clock clock) {
+        this.clock = clock;
+    }
+
+    public HttpVersion select(WebSocketProxyProperties.Route routeProperties, URI upstreamUrl) {
+        if (!routeProperties.isHttp2()) {
+            return HttpVersion.HTTP_1_1;
+        }
+        Instant retryAt = http1OnlyUpstreams.get(upstreamUrl.getAuthority());
+        if (retryAt != null && clock.instant().isBefore(retryAt)) {
+            return HttpVersion.HTTP_1_1;
+        }
+        return HttpVersion.HTTP_2;
+    }
+
+    /// Whether a failed HTTP/2 handshake means the upstream does not support extended `CONNECT`, so HTTP/1.1 may succeed:
+    /// it answered `405 Method Not Allowed` or `501 Not Implemented`, or failed the stream without answering, e.g. because
+    /// it reset the stream with a protocol error.
+    /// An answer over HTTP/1.1 counts as well: when the upstream does not enable `SETTINGS_ENABLE_CONNECT_PROTOCOL`,
+    /// Jetty's dynamic transport sends the request again over HTTP/1.1 but without the upgrade headers, typically answered
+    /// with `426 Upgrade Required`.
+    /// Any other answer is the upstream's decision, and timeouts and connectivity or TLS failures would recur over HTTP/1.1.
+    public boolean isExtendedConnectUnsupported(Throwable failure, WebSocketUpgradeResponseListener http2UpgradeListener) {
+        if (http2UpgradeListener.isHandshakeResponseReady()) {
+            int status = http2UpgradeListener.getHandshakeStatus();
+            return status == 405 || status == 501 || http2UpgradeListener.getHandshakeVersion() != HttpVersion.HTTP_2;
+        }
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException || cause instanceof SocketTimeoutException || cause instanceof ConnectException
+                    || cause instanceof UnresolvedAddressException || cause instanceof SSLException) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void http2Failed(URI upstreamUrl, Throwable failure) {
+        log.warn("WebSocket over HTTP/2 handshake with upstream {} failed, falling back to HTTP/1.1: {}", upstreamUrl.getAuthority(), failure.getMessage());
+        http1OnlyUpstreams.put(upstreamUrl.getAuthority(), clock.instant().plus(HTTP2_RETRY_INTERVAL));
+    }
+}
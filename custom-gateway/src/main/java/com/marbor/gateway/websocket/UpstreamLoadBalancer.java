@@ -0,0 +1,216 @@
+package com.marbor.gateway.websocket;
+
+import jakarta.servlet.http.Cookie;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import org.springframework.web.servlet.function.ServerRequest;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Picks the upstream instance of each proxied session for routes with a `load-balancing` pool,
+/// see [WebSocketProxyProperties.LoadBalancing].
+///
+/// Sessions are long-lived, so instances are balanced by the sessions the gateway currently holds with them rather than
+/// by requests: a session is counted from the moment its upstream is chosen until its upstream session closes or its
+/// handshake fails. With consistent-hash affinity, requests carrying the same affinity key reach the same instance,
+/// and adding or removing an instance only moves the keys of its share of the hash ring.
+///
+/// Instances being drained or whose [UpstreamCircuitBreakers] circuit lets no handshake through are skipped while other instances
+/// are available; a circuit past its open duration lets a probe through again.
+@Component
+public class UpstreamLoadBalancer {
+
+    private static final Lease UNPOOLED = new Lease(null, null);
+    private final Map<String, Pool> pools = new HashMap<>();
+
+    public UpstreamLoadBalancer(WebSocketProxyProperties webSocketProxyProperties, UpstreamCircuitBreakers upstreamCircuitBreakers) {
+        webSocketProxyProperties.getRoutes().forEach((routeId, route) -> {
+            if (!route.getLoadBalancing().getUpstreams().isEmpty()) {
+                pools.put(routeId, new Pool(route.getLoadBalancing(), upstreamCircuitBreakers));
+            }
+        });
+    }
+
+    /// Chooses the upstream instance of a new session and counts the session on it until the lease is released.
+    /// Routes without a pool get a lease without a URI, proxying to the route's own `uri`.
+    public Lease acquire(String routeId, ServerRequest serverRequest) {
+        Pool pool = pools.get(routeId);
+        if (pool == null) {
+            return UNPOOLED;
+        }
+        Upstream upstream = pool.choose(serverRequest);
+        upstream.activeSessions.incrementAndGet();
+        return new Lease(upstream, new AtomicBoolean());
+    }
+
+    /// Excludes the upstream instance (`host:port`) from, or includes it again in, the choice for new sessions.
+    public void setDraining(String routeId, String upstream, boolean draining) {
+        Pool pool = pools.get(routeId);
+        if (pool != null) {
+            for (Upstream candidate : pool.upstreams) {
+                if (candidate.uri.getAuthority().equals(upstream)) {
+                    candidate.draining = draining;
+                }
+            }
+        }
+    }
+
+    public void resumeAll(String routeId) {
+        Pool pool = pools.get(routeId);
+        if (pool != null) {
+            for (Upstream upstream : pool.upstreams) {
+                upstream.draining = false;
+            }
+        }
+    }
+
+    /// Number of upstream instances in the route's pool, `0` for routes without a pool.
+    public int getUpstreamCount(String routeId) {
+        Pool pool = pools.get(routeId);
+        return pool != null ? pool.upstreams.length : 0;
+    }
+
+    /// The value of the key in the request, `null` when the request does not carry it.
+    static String requestKey(ServerRequest serverRequest, WebSocketProxyProperties.AffinityKey affinityKey) {
+        String name = affinityKey.getName();
+        return switch (affinityKey.getSource()) {
+            case HEADER -> serverRequest.headers().firstHeader(name);
+            case QUERY_PARAMETER -> serverRequest.param(name).orElse(null);
+            case COOKIE -> {
+                Cookie[] cookies = serverRequest.servletRequest().getCookies();
+                if (cookies != null) {
+                    for (Cookie cookie : cookies) {
+                        if (cookie.getName().equals(name)) {
+                            yield cookie.getValue();
+                        }
+                    }
+                }
+                yield null;
+            }
+        };
+    }
+
+    /// A session held with an upstream instance.
+    public static final class Lease {
+
+        private final Upstream upstream;
+        private final AtomicBoolean released;
+
+        private Lease(Upstream upstream, AtomicBoolean released) {
+            this.upstream = upstream;
+            this.released = released;
+        }
+
+        /// The chosen upstream instance, `null` for routes without a pool.
+        public URI getUri() {
+            return upstream != null ? upstream.uri : null;
+        }
+
+        /// Stops counting the session, safe to call more than once.
+        public void release() {
+            if (upstream != null && released.compareAndSet(false, true)) {
+                upstream.activeSessions.decrementAndGet();
+            }
+        }
+    }
+
+    private static final class Upstream {
+
+        private final URI uri;
+        private final AtomicInteger activeSessions = new AtomicInteger();
+        private volatile boolean draining;
+
+        private Upstream(URI uri) {
+            this.uri = uri;
+        }
+    }
+
+    private static final class Pool {
+
+        private final Upstream[] upstreams;
+        private final WebSocketProxyProperties.LoadBalancing loadBalancing;
+        private final NavigableMap<Long, Upstream> ring = new TreeMap<>();
+        private final AtomicInteger nextStart = new AtomicInteger();
+        private final UpstreamCircuitBreakers upstreamCircuitBreakers;
+
+        private Pool(WebSocketProxyProperties.LoadBalancing loadBalancing, UpstreamCircuitBreakers upstreamCircuitBreakers) {
+            List<URI> uris = loadBalancing.getUpstreams();
+            Assert.isTrue(loadBalancing.getVirtualNodes() > 0, "Virtual nodes must be positive");
+            Assert.isTrue(loadBalancing.getStrategy() != WebSocketProxyProperties.LoadBalancing.Strategy.CONSISTENT_HASH
+                    || loadBalancing.getAffinityKey().getName() != null, "Consistent hashing requires an affinity key name");
+            this.loadBalancing = loadBalancing;
+            this.upstreamCircuitBreakers = upstreamCircuitBreakers;
+            this.upstreams = uris.stream().map(Upstream::new).toArray(Upstream[]::new);
+            for (Upstream upstream : upstreams) {
+                for (int virtualNode = 0; virtualNode < loadBalancing.getVirtualNodes(); virtualNode++) {
+                    ring.put(hash(upstream.uri + "#" + virtualNode), upstream);
+                }
+            }
+        }
+
+        private Upstream choose(ServerRequest serverRequest) {
+            if (loadBalancing.getStrategy() == WebSocketProxyProperties.LoadBalancing.Strategy.CONSISTENT_HASH) {
+                String affinityKey = requestKey(serverRequest, loadBalancing.getAffinityKey());
+                if (affinityKey != null) {
+                    return ringOwner(hash(affinityKey));
+                }
+            }
+            return leastActiveSessions();
+        }
+
+        /// The first available instance clockwise from the key, so only the keys of an unavailable instance move.
+        private Upstream ringOwner(long keyHash) {
+            for (Upstream owner : ring.tailMap(keyHash, true).values()) {
+                if (isAvailable(owner)) {
+                    return owner;
+                }
+            }
+            for (Upstream owner : ring.headMap(keyHash, false).values()) {
+                if (isAvailable(owner)) {
+                    return owner;
+                }
+            }
+            Map.Entry<Long, Upstream> owner = ring.ceilingEntry(keyHash);
+            return (owner != null ? owner : ring.firstEntry()).getValue();
+        }
+
+        /// Ties are broken by a rotating start position, so idle instances share the sessions of a reconnect burst.
+        /// Unavailable instances are chosen only when no instance is available.
+        private Upstream leastActiveSessions() {
+            int start = Math.floorMod(nextStart.getAndIncrement(), upstreams.length);
+            Upstream least = null;
+            for (int i = 0; i < upstreams.length; i++) {
+                Upstream candidate = upstreams[(start + i) % upstreams.length];
+                if (isAvailable(candidate) && (least == null || candidate.activeSessions.get() < least.activeSessions.get())) {
+                    least = candidate;
+                }
+            }
+            return least != null ? least : upstreams[start];
+        }
+
+        private boolean isAvailable(Upstream upstream) {
+            return !upstream.draining && upstreamCircuitBreakers.isAvailable(upstream.uri.getAuthority());
+        }
+
+        /// 64-bit FNV-1a followed by a finalizer mix, so similar keys spread over the whole ring.
+        private static long hash(String key) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b;
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.marbor.gateway.websocket;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.websocket.api.Session;
+
+/// Gateway ↔ upstream endpoint of a proxy engine.
+/// Once the upstream session is open, it upgrades the client connection and relays frames between both legs.
+/// The pair is closed once the gateway ↔ upstream session is closed.
+public interface UpstreamSessionListener extends Session.Listener, SessionPair {
+
+    /// Upgrades the client connection, called on the client request once the upstream session is open.
+    void upgradeClient(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse);
+
+    /// Completes [#getClosed()] for a handshake that failed before the upstream session opened,
+    /// as Jetty only reports the failures of handshake attempts, which may be retried, to the listener.
+    void handshakeFailed();
+}
@@ -0,0 +1,143 @@
+package com.marbor.gateway.websocket;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.eclipse.jetty.io.ssl.SslHandshakeListener;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ssl.SslBundle;
+import org.springframework.boot.ssl.SslBundleKey;
+import org.springframework.boot.ssl.SslBundles;
+import org.springframework.boot.ssl.SslOptions;
+import org.springframework.boot.ssl.SslStoreBundle;
+import org.springframework.stereotype.Component;
+
+import javax.net.ssl.SSLEngine;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// TLS of the `wss://` upstream connections, configured by [WebSocketProxyProperties.Tls].
+///
+/// A full TLS handshake for every upstream session dominates the gateway's CPU during reconnect storms, so the client keeps
+/// the sessions of the upstream instances for resumption: a reconnect to the same `host:port` resumes the session
+/// (TLS 1.2 session IDs, TLS 1.3 session tickets) with an abbreviated handshake, skipping the certificate exchange
+/// and verification. Routes with `http2` enabled negotiate `h2` through ALPN, so their sessions also share the TLS
+/// connections.
+///
+/// Handshakes are counted by the `gateway.websocket.upstream.tls.handshakes` counter, tagged by `upstream` and by `outcome`:
+/// `full`, `resumed` or `failed`. The JDK does not flag resumed sessions, so a handshake counts as resumed when its session
+/// was created before the handshake's engine, i.e. by an earlier handshake.
+@Component
+public class UpstreamTls implements SslHandshakeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(UpstreamTls.class);
+    private final WebSocketProxyProperties.Tls properties;
+    private final SslBundles sslBundles;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Handshakes> handshakes = new ConcurrentHashMap<>();
+    /// Creation time of the engines whose handshake is in progress, weakly held as failed connects leave theirs behind.
+    private final Map<SSLEngine, Long> engineCreationTimes = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public UpstreamTls(WebSocketProxyProperties webSocketProxyProperties, SslBundles sslBundles, MeterRegistry meterRegistry) {
+        this.properties = webSocketProxyProperties.getTls();
+        this.sslBundles = sslBundles;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /// The TLS configuration of the Jetty client, whose `HttpClient` must also have this listener as a bean to count the handshakes.
+    public SslContextFactory.Client newSslContextFactory() {
+        var sslContextFactory = new SslContextFactory.Client() {
+            @Override
+            public void customize(SSLEngine sslEngine) {
+                super.customize(sslEngine);
+                engineCreationTimes.put(sslEngine, System.currentTimeMillis());
+            }
+        };
+        if (properties.getBundle() != null) {
+            configureBundle(sslContextFactory, sslBundles.getBundle(properties.getBundle()));
+        }
+        if (properties.getProvider() != null) {
+            sslContextFactory.setProvider(properties.getProvider());
+        }
+        if (!properties.isVerifyHostname()) {
+            sslContextFactory.setEndpointIdentificationAlgorithm(null);
+        }
+        sslContextFactory.setSslSessionCacheSize(properties.getSessionCacheSize());
+        sslContextFactory.setSslSessionTimeout(Math.toIntExact(properties.getSessionTimeout().toSeconds()));
+        return sslContextFactory;
+    }
+
+    private static void configureBundle(SslContextFactory.Client sslContextFactory, SslBundle bundle) {
+        SslStoreBundle stores = bundle.getStores();
+        if (stores.getKeyStore() != null) {
+            sslContextFactory.setKeyStore(stores.getKeyStore());
+            if (stores.getKeyStorePassword() != null) {
+                sslContextFactory.setKeyStorePassword(stores.getKeyStorePassword());
+            }
+            SslBundleKey key = bundle.getKey();
+            if (key.getPassword() != null) {
+                sslContextFactory.setKeyManagerPassword(key.getPassword());
+            }
+            if (key.getAlias() != null) {
+                sslContextFactory.setCertAlias(key.getAlias());
+            }
+        }
+        if (stores.getTrustStore() != null) {
+            sslContextFactory.setTrustStore(stores.getTrustStore());
+        }
+        sslContextFactory.setProtocol(bundle.getProtocol());
+        SslOptions options = bundle.getOptions();
+        if (options.getCiphers() != null) {
+            sslContextFactory.setIncludeCipherSuites(options.getCiphers());
+        }
+        if (options.getEnabledProtocols() != null) {
+            sslContextFactory.setIncludeProtocols(options.getEnabledProtocols());
+        }
+    }
+
+    @Override
+    public void handshakeSucceeded(Event event) {
+        SSLEngine sslEngine = event.getSSLEngine();
+        Long engineCreationTime = engineCreationTimes.remove(sslEngine);
+        boolean resumed = engineCreationTime != null && sslEngine.getSession().getCreationTime() < engineCreationTime;
+        Handshakes upstream = forUpstream(sslEngine);
+        (resumed ? upstream.resumed : upstream.full).increment();
+    }
+
+    @Override
+    public void handshakeFailed(Event event, Throwable failure) {
+        SSLEngine sslEngine = event.getSSLEngine();
+        engineCreationTimes.remove(sslEngine);
+        log.debug("TLS handshake with the upstream {}:{} failed", sslEngine.getPeerHost(), sslEngine.getPeerPort(), failure);
+        forUpstream(sslEngine).failed.increment();
+    }
+
+    private Handshakes forUpstream(SSLEngine sslEngine) {
+        return handshakes.computeIfAbsent(sslEngine.getPeerHost() + ':' + sslEngine.getPeerPort(), Handshakes::new);
+    }
+
+    /// Handshake counters of one upstream instance.
+    private final class Handshakes {
+
+        private final Counter full;
+        private final Counter resumed;
+        private final Counter failed;
+
+        private Handshakes(String upstream) {
+            this.full = counter(upstream, "full");
+            this.resumed = counter(upstream, "resumed");
+            this.failed = counter(upstream, "failed");
+        }
+
+        private Counter counter(String upstream, String outcome) {
+            return Counter.builder("gateway.websocket.upstream.tls.handshakes")
+                    .description("TLS handshakes with the upstream instance")
+                    .tag("upstream", upstream)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.marbor.gateway.websocket;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/// Client messages of a session handed to the asynchronous upstream writes but not written yet.
+///
+/// While the pending writes reach the message or byte limit, the client read is held by blocking the container thread
+/// delivering the client message, until write completions bring them below the limit again. The container does not read
+/// the next client frame meanwhile, so TCP flow control slows the client down instead of Jetty queueing its messages.
+/// Counting is lock-free, only a blocked reader and the write completion waking it take the lock.
+final class UpstreamWriteWindow {
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final AtomicInteger messages = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition room = lock.newCondition();
+    private volatile boolean waiting;
+
+    UpstreamWriteWindow(WebSocketProxyProperties.Backpressure backpressure) {
+        Assert.isTrue(backpressure.getMaxPendingUpstreamWrites() > 0, "Max pending upstream writes must be positive");
+        this.maxMessages = backpressure.getMaxPendingUpstreamWrites();
+        this.maxBytes = backpressure.getMaxPendingUpstreamBytes().toBytes();
+    }
+
+    /// Counts a write handed to the upstream session, which must be [written][#written] once completed or failed.
+    /// @return the pending writes
+    int added(int length) {
+        bytes.addAndGet(length);
+        return messages.incrementAndGet();
+    }
+
+    void written(int length) {
+        bytes.addAndGet(-length);
+        messages.decrementAndGet();
+        // the reader marks itself waiting before checking the window again, so either side sees the other
+        if (waiting) {
+            lock.lock();
+            try {
+                room.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /// Blocks the client read while the window is full. Failed writes complete too, so a closing upstream releases the read.
+    void awaitRoom() throws InterruptedException {
+        if (!isFull()) {
+            return;
+        }
+        lock.lock();
+        try {
+            waiting = true;
+            while (isFull()) {
+                room.await();
+            }
+        } finally {
+            waiting = false;
+            lock.unlock();
+        }
+    }
+
+    int getPendingWrites() {
+        return messages.get();
+    }
+
+    private boolean isFull() {
+        return messages.get() >= maxMessages || bytes.get() >= maxBytes;
+    }
+}
@@ -0,0 +1,127 @@
+package com.marbor.gateway.websocket;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.eclipse.jetty.websocket.api.Session;
+import org.springframework.cloud.gateway.server.mvc.handler.GatewayServerResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.function.ServerResponse;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/// Keeps the gateway's memory use predictable: bounded sessions per route, bounded message sizes
+/// and bounded payload buffered per session and for the whole gateway, see [WebSocketProxyProperties.Limits].
+///
+/// Buffered payload is counted where messages wait for a write, the client outbound queue and the asynchronous
+/// upstream writes of the `spring` engine. The `jetty` engine holds at most one frame per direction, or one batch,
+/// thanks to explicit demand. Each session counts its own bytes in an [AtomicLong], and the gateway total is a striped
+/// [LongAdder] so that sessions do not contend on a single counter. Summing it walks the stripes, so a session only checks
+/// the gateway total once it buffers more than [#GATEWAY_CHECK_BYTES], the gateway overshooting its budget by at most
+/// that much per session. A session exceeding its own budget, or buffering past that threshold while the gateway is over
+/// its budget, is closed with `1013 Try Again Later`, and new handshakes are answered with `503 Service Unavailable`
+/// until the gateway is below its budget again.
+@Component
+public class WebSocketAdmissionControl {
+
+    /// Payload a session buffers before checking the gateway total, above what a pair keeping up with its peers holds.
+    static final long GATEWAY_CHECK_BYTES = 64 * 1024;
+    private final LongAdder bufferedBytes = new LongAdder();
+    private final Map<String, AtomicInteger> routeSessions = new ConcurrentHashMap<>();
+    private final long maxBufferedBytes;
+
+    public WebSocketAdmissionControl(WebSocketProxyProperties webSocketProxyProperties, MeterRegistry meterRegistry) {
+        this.maxBufferedBytes = webSocketProxyProperties.getMaxBufferedBytes().toBytes();
+        Gauge.builder("gateway.websocket.buffered", bufferedBytes, LongAdder::sum)
+                .description("Payload buffered by the gateway for all sessions, waiting to be written")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /// Takes a session slot of the route for a new handshake.
+    /// @return the slot, to be released once the session pair closes or its handshake fails,
+    /// or `null` when the route is at its session limit or the gateway over its buffer budget
+    public Admission admit(String routeId, WebSocketProxyProperties.Limits limits) {
+        if (bufferedBytes.sum() > maxBufferedBytes) {
+            return null;
+        }
+        AtomicInteger sessions = routeSessions.computeIfAbsent(routeId, id -> new AtomicInteger());
+        if (sessions.incrementAndGet() > limits.getMaxSessions() && limits.getMaxSessions() > 0) {
+            sessions.decrementAndGet();
+            return null;
+        }
+        return new Admission(sessions);
+    }
+
+    /// Answer to a handshake that was not admitted.
+    public ServerResponse rejectHandshake() {
+        return GatewayServerResponse.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body("WebSocket gateway is at capacity, retry later");
+    }
+
+    public SessionBuffer sessionBuffer(WebSocketProxyProperties.Limits limits) {
+        return new SessionBuffer(limits.getMaxBufferedBytes().toBytes());
+    }
+
+    /// Applies the route's message size limit to a leg, Jetty closing it with `1009 Message Too Big` once exceeded.
+    static void limitMessageSize(Session session, WebSocketProxyProperties.Limits limits) {
+        if (limits.getMaxMessageSize() != null) {
+            long maxMessageSize = limits.getMaxMessageSize().toBytes();
+            session.setMaxTextMessageSize(maxMessageSize);
+            session.setMaxBinaryMessageSize(maxMessageSize);
+            session.setMaxFrameSize(maxMessageSize);
+        }
+    }
+
+    /// A session slot of a route.
+    public static final class Admission {
+
+        private final AtomicInteger sessions;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Admission(AtomicInteger sessions) {
+            this.sessions = sessions;
+        }
+
+        /// Frees the slot, safe to call more than once.
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                sessions.decrementAndGet();
+            }
+        }
+    }
+
+    /// Payload buffered by one session pair.
+    public final class SessionBuffer {
+
+        private final AtomicLong sessionBytes = new AtomicLong();
+        private final long maxSessionBytes;
+
+        private SessionBuffer(long maxSessionBytes) {
+            this.maxSessionBytes = maxSessionBytes;
+        }
+
+        /// Counts payload starting to wait for a write, which must be [removed][#removed] once written or failed.
+        /// @return `false` when the session or the gateway is over its budget and the session pair must be closed
+        public boolean added(int length) {
+            bufferedBytes.add(length);
+            long bytes = sessionBytes.addAndGet(length);
+            if (bytes > maxSessionBytes) {
+                return false;
+            }
+            return bytes <= GATEWAY_CHECK_BYTES || bufferedBytes.sum() <= maxBufferedBytes;
+        }
+
+        public void removed(int length) {
+            sessionBytes.addAndGet(-length);
+            bufferedBytes.add(-length);
+        }
+    }
+}
@@ -1,69 +1,283 @@
 package com.marbor.gateway.websocket;
 
 import com.marbor.gateway.websocket.WebSocketHelper.GeneralCallback;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.websocket.api.Callback;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
 import org.springframework.web.socket.PongMessage;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.marbor.gateway.websocket.WebSocketHelper.payloadLength;
 import static com.marbor.gateway.websocket.WebSocketHelper.safeClose;
 
 public class WebSocketClientSessionHandler implements WebSocketHandler {
 
     private static final Logger log = LoggerFactory.getLogger(WebSocketClientSessionHandler.class);
     private final Session upstreamSession;
+    private final FrameBatch upstreamBatch;
+    private final WebSocketAdmissionControl.SessionBuffer sessionBuffer;
+    private final ClientRateLimiter.Limit rateLimit;
+    private final WebSocketFrameFilters.Chain frameFilters;
+    private final SessionActivity activity;
+    private final UpstreamWriteWindow upstreamWrites;
+    private final boolean streaming;
+    private final WebSocketProxyMetrics.Route metrics;
+    private final WebSocketProxyMetrics.Direction clientToUpstream;
+    private final WebSocketProxyProperties.Keepalive keepaliveProperties;
+    private final KeepaliveWheel keepaliveWheel;
+    private final WebSocketProxyProperties.Limits limits;
     private volatile WebSocketSession clientSession;
+    private volatile KeepaliveWheel.Leg keepalive;
 
-    public WebSocketClientSessionHandler(Session upstreamSession) {
+    /// @param upstreamBatch batch of the frames written to the upstream, `null` when the route does not batch frames
+    /// @param sessionBuffer counts the client messages waiting for an asynchronous upstream write
+    /// @param rateLimit limits the client messages, `null` when the route is not rate limited
+    /// @param frameFilters filters the messages of the session pair, `null` when the route has no filters
+    /// @param activity counts the messages of the session pair, shared with its upstream leg
+    public WebSocketClientSessionHandler(Session upstreamSession, FrameBatch upstreamBatch, WebSocketAdmissionControl.SessionBuffer sessionBuffer,
+                                         ClientRateLimiter.Limit rateLimit, WebSocketFrameFilters.Chain frameFilters, SessionActivity activity,
+                                         WebSocketProxyProperties.Route routeProperties, KeepaliveWheel keepaliveWheel, WebSocketProxyMetrics.Route metrics) {
         this.upstreamSession = upstreamSession;
+        this.upstreamBatch = upstreamBatch;
+        this.sessionBuffer = sessionBuffer;
+        this.rateLimit = rateLimit;
+        this.frameFilters = frameFilters;
+        this.activity = activity;
+        this.upstreamWrites = routeProperties.getBackpressure().isEnabled() ? new UpstreamWriteWindow(routeProperties.getBackpressure()) : null;
+        this.limits = routeProperties.getLimits();
+        this.streaming = routeProperties.isStreaming();
+        this.metrics = metrics;
+        this.clientToUpstream = metrics.clientToUpstream();
+        this.keepaliveProperties = routeProperties.getKeepalive();
+        this.keepaliveWheel = keepaliveWheel;
     }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) {
         this.clientSession = session;
+        metrics.sessionOpened();
+        Session jettySession = session instanceof NativeWebSocketSession nativeSession ? nativeSession.getNativeSession(Session.class) : null;
+        if (jettySession != null) {
+            WebSocketAdmissionControl.limitMessageSize(jettySession, limits);
+        }
+        if (keepaliveProperties.isEnabled() && jettySession != null) {
+            // pinged through the native session, so the keepalive thread never blocks on a client write
+            jettySession.setIdleTimeout(keepaliveProperties.getIdleTimeout().plus(KeepaliveWheel.TICK));
+            this.keepalive = keepaliveWheel.register(keepaliveProperties,
+                    () -> jettySession.sendPing(BufferUtil.EMPTY_BUFFER, Callback.NOOP),
+                    () -> safeClose(session, new CloseStatus(StatusCode.SHUTDOWN, "Client idle timeout")));
+        }
+        // upstream frames are relayed only once there is a client session to relay them to
+        upstreamSession.demand();
     }
 
     @Override
-    public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) {
+    public void handleMessage(WebSocketSession session, WebSocketMessage<?> clientMessage) {
+        KeepaliveWheel.Leg clientKeepalive = keepalive;
+        if (clientKeepalive != null) {
+            clientKeepalive.read();
+            if (clientMessage instanceof PongMessage) {
+                // answer to a gateway ping, Jetty answers the client's pings itself
+                return;
+            }
+        }
+        WebSocketMessage<?> message = frameFilters != null ? filter(clientMessage) : clientMessage;
+        if (message == null) {
+            return;
+        }
+        if (rateLimit != null && (message instanceof TextMessage || message instanceof BinaryMessage) && !awaitRateLimit(message)) {
+            return;
+        }
         forwardToUpstream(message);
     }
 
+    /// @return the message to forward, `null` when a filter dropped it or rejected it, closing the session pair
+    private WebSocketMessage<?> filter(WebSocketMessage<?> message) {
+        try {
+            return frameFilters.filterMessage(WebSocketFrameFilter.Direction.CLIENT_TO_UPSTREAM, message);
+        } catch (WebSocketFrameFilter.Rejected rejected) {
+            safeClose(clientSession, new CloseStatus(rejected.getStatusCode(), rejected.getMessage()));
+            return null;
+        }
+    }
+
+    /// Holds the client read until the data message's tokens are available, so an over-limit client is slowed down by TCP
+    /// flow control, or closes the session pair with the `close` policy.
+    /// Spring demands the next frame once the handler returns, so the read is held by sleeping, on a virtual server thread
+    /// as required at startup by the `rateLimitDelayThreadsCustomizer` of the `WebSocketConfiguration`.
+    /// @return whether the message may be forwarded
+    private boolean awaitRateLimit(WebSocketMessage<?> message) {
+        long waitNanos = rateLimit.acquire(payloadLength(message), message.isLast());
+        if (waitNanos == 0) {
+            return true;
+        }
+        boolean rejected = waitNanos == ClientRateLimiter.REJECTED;
+        clientToUpstream.rateLimited(rejected);
+        if (rejected) {
+            safeClose(clientSession, CloseStatus.POLICY_VIOLATION.withReason("Rate limit exceeded"));
+            return false;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+            return true;
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     private void forwardToUpstream(WebSocketMessage<?> message) {
         if (upstreamSession.isOpen()) {
+            int payloadLength = payloadLength(message);
+            clientToUpstream.relayed(payloadLength);
+            activity.clientToUpstream(payloadLength);
+            // text and batched messages are written asynchronously, so they are buffered until written
+            if ((upstreamBatch != null || message instanceof TextMessage) && !sessionBuffer.added(payloadLength)) {
+                sessionBuffer.removed(payloadLength);
+                safeClose(clientSession, CloseStatus.SERVICE_OVERLOAD.withReason("Gateway buffer limit exceeded"));
+                return;
+            }
+            if (upstreamBatch != null) {
+                forwardBatched(message, payloadLength);
+                awaitUpstreamWrites();
+                return;
+            }
             switch (message) {
-                case TextMessage text -> upstreamSession.sendText(text.getPayload(), new GeneralCallback());
-                case BinaryMessage binary -> upstreamSession.sendBinary(binary.getPayload(), new GeneralCallback());
-                case PongMessage pong -> upstreamSession.sendPong(pong.getPayload(), new GeneralCallback());
+                case TextMessage text when streaming -> {
+                    writeStarted(payloadLength);
+                    upstreamSession.sendPartialText(text.getPayload(), text.isLast(), new GeneralCallback(clientToUpstream, () -> writeCompleted(payloadLength)));
+                    awaitUpstreamWrites();
+                }
+                case TextMessage text -> {
+                    writeStarted(payloadLength);
+                    upstreamSession.sendText(text.getPayload(), new GeneralCallback(clientToUpstream, () -> writeCompleted(payloadLength)));
+                    awaitUpstreamWrites();
+                }
+                case BinaryMessage binary when streaming -> sendAndAwait(callback -> upstreamSession.sendPartialBinary(binary.getPayload(), binary.isLast(), callback));
+                case BinaryMessage binary -> sendAndAwait(callback -> upstreamSession.sendBinary(binary.getPayload(), callback));
+                case PingMessage ping -> sendAndAwait(callback -> upstreamSession.sendPing(ping.getPayload(), callback));
+                case PongMessage pong -> sendAndAwait(callback -> upstreamSession.sendPong(pong.getPayload(), callback));
                 default -> throw new RuntimeException("WebSocket message type not handled");
             }
         }
     }
 
+    /// A batched write completes only once its batch is flushed, so binary payloads are copied rather than holding the client read.
+    private void forwardBatched(WebSocketMessage<?> message, int payloadLength) {
+        long startNanos = System.nanoTime();
+        writeStarted(payloadLength);
+        Callback sent = Callback.from(() -> {
+            clientToUpstream.sendCompleted(startNanos);
+            upstreamBatch.written(payloadLength);
+            writeCompleted(payloadLength);
+        }, failure -> {
+            upstreamBatch.written(payloadLength);
+            writeCompleted(payloadLength);
+            log.error("Failed to send WebSocket message to the upstream {}", upstreamSession.getUpgradeRequest(), failure);
+        });
+        switch (message) {
+            case TextMessage text when streaming -> upstreamBatch.sendText(text.getPayload(), text.isLast(), sent);
+            case TextMessage text -> upstreamBatch.sendText(text.getPayload(), true, sent);
+            case BinaryMessage binary when streaming -> upstreamBatch.sendBinary(BufferUtil.copy(binary.getPayload()), binary.isLast(), sent);
+            case BinaryMessage binary -> upstreamBatch.sendBinary(BufferUtil.copy(binary.getPayload()), true, sent);
+            case PingMessage ping -> upstreamSession.sendPing(BufferUtil.copy(ping.getPayload()), sent);
+            case PongMessage pong -> upstreamSession.sendPong(BufferUtil.copy(pong.getPayload()), sent);
+            default -> throw new RuntimeException("WebSocket message type not handled");
+        }
+        upstreamBatch.added(payloadLength);
+    }
+
+    /// Counts an asynchronous upstream write in the backpressure window, before it is handed to the upstream session.
+    private void writeStarted(int payloadLength) {
+        if (upstreamWrites != null) {
+            metrics.upstreamPendingWrites(upstreamWrites.added(payloadLength));
+        }
+    }
+
+    private void writeCompleted(int payloadLength) {
+        sessionBuffer.removed(payloadLength);
+        if (upstreamWrites != null) {
+            upstreamWrites.written(payloadLength);
+        }
+    }
+
+    /// Holds the client read while the backpressure window of pending upstream writes is full.
+    private void awaitUpstreamWrites() {
+        if (upstreamWrites != null) {
+            try {
+                upstreamWrites.awaitRoom();
+            } catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /// Binary payloads are the container's read buffers, which are recycled once `handleMessage` returns.
+    /// They are handed to the upstream session without copying, and the client read is held until the upstream write completes.
+    private void sendAndAwait(Consumer<Callback> send) {
+        var sent = new Callback.Completable();
+        long startNanos = System.nanoTime();
+        send.accept(sent);
+        try {
+            sent.get();
+            clientToUpstream.sendCompleted(startNanos);
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while sending a WebSocket message to the upstream", interruptedException);
+        } catch (ExecutionException executionException) {
+            log.error("Failed to send WebSocket message to the upstream {}", upstreamSession.getUpgradeRequest(), executionException.getCause());
+        }
+    }
+
     @Override
     public void handleTransportError(WebSocketSession clientSession, Throwable exception) {
         log.error("Transport error on client <-> gateway {}", clientSession.getId(), exception);
+        cancelKeepalive();
         safeClose(clientSession, CloseStatus.SERVER_ERROR);
         upstreamSession.close(CloseStatus.PROTOCOL_ERROR.getCode(), exception.getLocalizedMessage(), new GeneralCallback());
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        cancelKeepalive();
+        metrics.sessionClosed();
         upstreamSession.close(status.getCode(), status.getReason(), new GeneralCallback());
     }
 
+    private void cancelKeepalive() {
+        KeepaliveWheel.Leg clientKeepalive = keepalive;
+        if (clientKeepalive != null) {
+            clientKeepalive.cancel();
+        }
+    }
+
     @Override
     public boolean supportsPartialMessages() {
-        return false;
+        return streaming;
     }
 
     public WebSocketSession getClientSession() {
         return clientSession;
     }
+
+    /// Client messages waiting for their upstream write, always `0` without backpressure.
+    public int getPendingUpstreamWrites() {
+        UpstreamWriteWindow window = this.upstreamWrites;
+        return window != null ? window.getPendingWrites() : 0;
+    }
 }
 
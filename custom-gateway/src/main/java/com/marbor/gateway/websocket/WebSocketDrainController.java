@@ -0,0 +1,207 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cloud.gateway.server.mvc.handler.GatewayServerResponse;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import org.springframework.web.servlet.function.ServerResponse;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/// Drains proxied sessions gradually, so their clients do not all reconnect at the same instant.
+///
+/// A draining route answers new handshakes with `503 Service Unavailable` and a jittered `Retry-After`,
+/// and its session pairs are closed with `1001 Going Away` at [WebSocketProxyProperties.Drain#getRate] pairs per second.
+/// The close reason carries a jittered reconnect hint, `reconnect-after-ms=<delay>`, so well-behaved clients spread
+/// their reconnects as well. The same gradual closing sheds a share of the sessions of an upstream instance,
+/// e.g. one that is being rolled out or that holds more than its share of the sessions after a scale-out.
+///
+/// On gateway shutdown all routes are drained before the web server stops, within [WebSocketProxyProperties.Drain#getTimeout].
+@Component
+public class WebSocketDrainController implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(WebSocketDrainController.class);
+    private static final Duration SHUTDOWN_POLL_INTERVAL = Duration.ofMillis(100);
+    private final WebSocketProxySessionRegistry sessionRegistry;
+    private final UpstreamLoadBalancer upstreamLoadBalancer;
+    private final WebSocketProxyProperties.Drain drainProperties;
+    private final Set<String> drainingRoutes = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<WebSocketProxySessionRegistry.ProxiedSession> pendingCloses = new LinkedBlockingQueue<>();
+    private volatile boolean drainingAll;
+    private volatile Thread closer;
+
+    public WebSocketDrainController(WebSocketProxySessionRegistry sessionRegistry, UpstreamLoadBalancer upstreamLoadBalancer,
+                                    WebSocketProxyProperties webSocketProxyProperties) {
+        this.sessionRegistry = sessionRegistry;
+        this.upstreamLoadBalancer = upstreamLoadBalancer;
+        this.drainProperties = webSocketProxyProperties.getDrain();
+        Assert.isTrue(drainProperties.getRate() > 0, "Drain rate must be positive");
+        Assert.isTrue(drainProperties.getReconnectHintMin().compareTo(drainProperties.getReconnectHintMax()) <= 0,
+                "Minimal reconnect hint must not be greater than the maximal one");
+    }
+
+    public boolean isDraining(String routeId) {
+        return drainingAll || drainingRoutes.contains(routeId);
+    }
+
+    /// Answer to a handshake on a draining route.
+    public ServerResponse rejectHandshake() {
+        long retryAfterSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(reconnectHintMillis()));
+        return GatewayServerResponse.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds))
+                .body("WebSocket route is draining, retry later");
+    }
+
+    /// Stops new handshakes on the route and closes its session pairs gradually.
+    public void drain(String routeId) {
+        log.info("Draining WebSocket route {}", routeId);
+        drainingRoutes.add(routeId);
+        enqueue(sessionRegistry.sessions(routeId).toList());
+    }
+
+    /// Accepts new handshakes on the route again. Pairs already queued for closing are still closed.
+    public void resume(String routeId) {
+        log.info("Resuming WebSocket route {}", routeId);
+        drainingRoutes.remove(routeId);
+        upstreamLoadBalancer.resumeAll(routeId);
+    }
+
+    /// Stops choosing the upstream instance for new sessions of the route and closes its session pairs gradually.
+    public void drainUpstream(String routeId, String upstream) {
+        log.info("Draining upstream {} of WebSocket route {}", upstream, routeId);
+        upstreamLoadBalancer.setDraining(routeId, upstream, true);
+        shed(routeId, upstream, 1.0);
+    }
+
+    /// Closes the given share of the upstream instance's session pairs gradually.
+    /// @return the number of pairs queued for closing
+    public int shed(String routeId, String upstream, double share) {
+        Assert.isTrue(share >= 0 && share <= 1, "Share must be between 0 and 1");
+        List<WebSocketProxySessionRegistry.ProxiedSession> sessions = sessionRegistry.sessions(routeId)
+                .filter(session -> session.getUpstream().equals(upstream) && !session.isClosing())
+                .toList();
+        List<WebSocketProxySessionRegistry.ProxiedSession> shed = sessions.subList(0, (int) Math.round(sessions.size() * share));
+        enqueue(shed);
+        return shed.size();
+    }
+
+    /// Sheds the sessions of the route's upstream instances holding more than their share, beyond the configured
+    /// tolerance, so that the reconnecting clients are spread over the less loaded instances.
+    /// @return the number of pairs queued for closing per upstream instance
+    public Map<String, Integer> rebalance(String routeId) {
+        Map<String, List<WebSocketProxySessionRegistry.ProxiedSession>> byUpstream = sessionRegistry.sessions(routeId)
+                .filter(session -> !session.isClosing())
+                .collect(Collectors.groupingBy(WebSocketProxySessionRegistry.ProxiedSession::getUpstream));
+        int upstreams = Math.max(byUpstream.size(), upstreamLoadBalancer.getUpstreamCount(routeId));
+        if (upstreams < 2) {
+            return Map.of();
+        }
+        double fairShare = byUpstream.values().stream().mapToInt(List::size).sum() / (double) upstreams;
+        double threshold = fairShare * (1 + drainProperties.getRebalanceTolerance());
+        Map<String, Integer> shed = new HashMap<>();
+        byUpstream.forEach((upstream, sessions) -> {
+            if (sessions.size() > threshold) {
+                int excess = sessions.size() - (int) Math.ceil(fairShare);
+                enqueue(sessions.subList(0, excess));
+                shed.put(upstream, excess);
+            }
+        });
+        log.info("Rebalancing WebSocket route {}, shedding {}", routeId, shed);
+        return shed;
+    }
+
+    public int getPendingCloses() {
+        return pendingCloses.size();
+    }
+
+    public Set<String> getDrainingRoutes() {
+        return Set.copyOf(drainingRoutes);
+    }
+
+    private void enqueue(List<WebSocketProxySessionRegistry.ProxiedSession> sessions) {
+        pendingCloses.addAll(sessions);
+    }
+
+    /// Closes the queued pairs at the configured rate, on a single thread shared by all drains. Pairs closed in the meantime
+    /// are skipped without waiting.
+    private void closeQueued() {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / drainProperties.getRate();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WebSocketProxySessionRegistry.ProxiedSession session = pendingCloses.take();
+                if (session.close(StatusCode.SHUTDOWN, "Gateway draining; reconnect-after-ms=" + reconnectHintMillis())) {
+                    TimeUnit.NANOSECONDS.sleep(intervalNanos);
+                }
+            }
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long reconnectHintMillis() {
+        long min = drainProperties.getReconnectHintMin().toMillis();
+        long max = drainProperties.getReconnectHintMax().toMillis();
+        return min == max ? min : ThreadLocalRandom.current().nextLong(min, max + 1);
+    }
+
+    @Override
+    public void start() {
+        closer = Thread.ofVirtual().name("websocket-drain").start(this::closeQueued);
+    }
+
+    /// Drains every route before the web server shuts down, the highest phase being stopped first.
+    @Override
+    public void stop(Runnable callback) {
+        drainingAll = true;
+        List<WebSocketProxySessionRegistry.ProxiedSession> sessions = sessionRegistry.sessions().toList();
+        log.info("Draining {} WebSocket sessions before shutdown", sessions.size());
+        enqueue(sessions);
+        Thread.ofVirtual().name("websocket-drain-shutdown").start(() -> {
+            long deadline = System.nanoTime() + drainProperties.getTimeout().toNanos();
+            try {
+                while (!sessionRegistry.isEmpty() && System.nanoTime() < deadline) {
+                    Thread.sleep(SHUTDOWN_POLL_INTERVAL);
+                }
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            } finally {
+                stop();
+                callback.run();
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        Thread thread = closer;
+        if (thread != null) {
+            thread.interrupt();
+            closer = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return closer != null;
+    }
+
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE;
+    }
+}
@@ -0,0 +1,77 @@
+package com.marbor.gateway.websocket;
+
+import org.jspecify.annotations.Nullable;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/// Drives the [WebSocketDrainController] for rollouts, at `/actuator/websocketdrain`.
+///
+/// - `GET` lists the draining routes, the pairs waiting to be closed and the live sessions per route and upstream instance.
+/// - `POST /{route}` with `{"action": "drain" | "resume" | "drain-upstream" | "shed" | "rebalance"}`,
+///   plus `upstream` (`host:port`) for `drain-upstream` and `shed`, and the `share` (0-1) to shed.
+@Component
+@Endpoint(id = "websocketdrain")
+public class WebSocketDrainEndpoint {
+
+    private final WebSocketDrainController drainController;
+    private final WebSocketProxySessionRegistry sessionRegistry;
+
+    public WebSocketDrainEndpoint(WebSocketDrainController drainController, WebSocketProxySessionRegistry sessionRegistry) {
+        this.drainController = drainController;
+        this.sessionRegistry = sessionRegistry;
+    }
+
+    @ReadOperation
+    public DrainState state() {
+        Map<String, Map<String, Long>> sessions = sessionRegistry.sessions()
+                .collect(Collectors.groupingBy(WebSocketProxySessionRegistry.ProxiedSession::getRouteId,
+                        Collectors.groupingBy(WebSocketProxySessionRegistry.ProxiedSession::getUpstream, Collectors.counting())));
+        return new DrainState(drainController.getDrainingRoutes(), drainController.getPendingCloses(), sessions);
+    }
+
+    @WriteOperation
+    public Object apply(@Selector String route, Action action, @Nullable String upstream, @Nullable Double share) {
+        return switch (action) {
+            case DRAIN -> {
+                drainController.drain(route);
+                yield state();
+            }
+            case RESUME -> {
+                drainController.resume(route);
+                yield state();
+            }
+            case DRAIN_UPSTREAM -> {
+                drainController.drainUpstream(route, required(upstream, "upstream"));
+                yield state();
+            }
+            case SHED -> Map.of("shed", drainController.shed(route, required(upstream, "upstream"), required(share, "share")));
+            case REBALANCE -> Map.of("shed", drainController.rebalance(route));
+        };
+    }
+
+    private static <T> T required(T value, String name) {
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        return value;
+    }
+
+    public enum Action {
+        DRAIN,
+        RESUME,
+        DRAIN_UPSTREAM,
+        SHED,
+        REBALANCE
+    }
+
+    /// @param sessions live session pairs per route and upstream instance
+    public record DrainState(Set<String> drainingRoutes, int pendingCloses, Map<String, Map<String, Long>> sessions) {
+    }
+}
@@ -11,8 +11,6 @@ import org.springframework.web.servlet.function.ServerResponse;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 @Component
@@ -20,11 +18,26 @@ public class WebSocketExecutionExceptionHandler {
 
     private static final Logger log = LoggerFactory.getLogger(WebSocketExecutionExceptionHandler.class);
 
-    public ServerResponse handle(ExecutionException executionException, WebSocketUpgradeResponseListener upstreamUpgradeListener, URI websocketUrl) {
-        switch (executionException.getCause()) {
+    /// Answers the client for a failed upstream handshake, recording it as a [WebSocketProxyEvents.HandshakeFailure].
+    /// @param handshakeStartNanos [System#nanoTime()] when the client's handshake request was received
+    public ServerResponse handle(Throwable handshakeFailure, WebSocketUpgradeResponseListener upstreamUpgradeListener, URI websocketUrl,
+                                 long handshakeStartNanos) {
+        ServerResponse response = classify(handshakeFailure, upstreamUpgradeListener, websocketUrl);
+        WebSocketProxyEvents.handshakeFailed(websocketUrl, handshakeFailure, response.statusCode().value(), handshakeStartNanos);
+        return response;
+    }
+
+    private ServerResponse classify(Throwable handshakeFailure, WebSocketUpgradeResponseListener upstreamUpgradeListener, URI websocketUrl) {
+        switch (handshakeFailure) {
             case UpgradeException upgradeException -> {
                 return handleUpgradeException(upstreamUpgradeListener, websocketUrl, upgradeException);
             }
+            case TimeoutException timeoutException -> {
+                String message = String.format("Timeout waiting for the WebSocket proxying: %s", websocketUrl);
+                log.error(message, timeoutException);
+                return GatewayServerResponse.status(HttpStatus.GATEWAY_TIMEOUT)
+                        .body(message);
+            }
             case IOException ioException -> {
                 String message = String.format("Connectivity failure occurred when gateway <-> upstream service (%s) handshake: %s", websocketUrl, ioException.getLocalizedMessage());
                 log.error(message, ioException);
@@ -45,7 +58,7 @@ public class WebSocketExecutionExceptionHandler {
             return handleCoreUpgradeException(upstreamUpgradeListener, websocketUrl, coreUpgradeException);
         }
 
-        return handleDefault(upstreamUpgradeListener, websocketUrl, upgradeException);
+        return handleDefault(upstreamUpgradeListener, websocketUrl, upgradeException, upgradeException.getResponseStatusCode());
     }
 
     private ServerResponse handleCoreUpgradeException(WebSocketUpgradeResponseListener upstreamUpgradeListener, URI websocketUrl, org.eclipse.jetty.websocket.core.exception.UpgradeException coreUpgradeException) {
@@ -62,19 +75,23 @@ public class WebSocketExecutionExceptionHandler {
                 return GatewayServerResponse.status(HttpStatus.GATEWAY_TIMEOUT)
                         .body(message);
             }
-            default -> {
-                return handleDefault(upstreamUpgradeListener, websocketUrl, coreUpgradeException);
+            case null, default -> {
+                return handleDefault(upstreamUpgradeListener, websocketUrl, coreUpgradeException, coreUpgradeException.getResponseStatusCode());
             }
         }
     }
 
-    private ServerResponse handleDefault(WebSocketUpgradeResponseListener upstreamUpgradeListener, URI websocketUrl, RuntimeException upgradeException) {
-        boolean isHandshakeResponseReady = upstreamUpgradeListener.awaitForHandshakeResponse(1, TimeUnit.SECONDS);
-        if (isHandshakeResponseReady) {
+    private ServerResponse handleDefault(WebSocketUpgradeResponseListener upstreamUpgradeListener, URI websocketUrl, RuntimeException upgradeException, int responseStatusCode) {
+        if (upstreamUpgradeListener.isHandshakeResponseReady()) {
             String message = String.format("Failure occurred when gateway <-> upstream service (%s) handshake: %s", websocketUrl, upstreamUpgradeListener.getReason());
             log.error(message, upgradeException);
             return GatewayServerResponse.status(upstreamUpgradeListener.getHandshakeStatus())
                     .body(message);
+        } else if (responseStatusCode > 0) {
+            String message = String.format("Failure occurred when gateway <-> upstream service (%s) handshake: %s", websocketUrl, upgradeException.getLocalizedMessage());
+            log.error(message, upgradeException);
+            return GatewayServerResponse.status(responseStatusCode)
+                    .body(message);
         } else {
             String message = String.format("Failure occurred when gateway <-> upstream service (%s) handshake: %s", websocketUrl, upgradeException.getLocalizedMessage());
             log.error(message, upgradeException);
@@ -0,0 +1,56 @@
+package com.marbor.gateway.websocket;
+
+import org.springframework.http.HttpHeaders;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/// Inspects, rewrites or drops the data frames a route relays after the upgrade, e.g. to revalidate an auth token,
+/// cap message sizes or redact JSON fields.
+///
+/// Filters are Spring beans listed by bean name in the route's `frame-filters` and invoked in that order, for both directions,
+/// see [WebSocketFrameFilters]. They run on the thread relaying the frame, so they must not block.
+/// Filters work on buffers: text payloads are UTF-8 encoded for the filtered routes only, and decoded again only when
+/// a filter replaced them. Whole-message routes filter whole messages, streaming routes and the `jetty` engine filter
+/// fragments. Dropping the first fragment of a message drops the whole message, its later fragments no longer reaching
+/// the filters; dropping a later fragment truncates the message, its remaining fragments being relayed empty.
+/// Control frames are not filtered.
+@FunctionalInterface
+public interface WebSocketFrameFilter {
+
+    /// @return the payload to relay: `frame.payload()` to relay the frame unchanged, another buffer to relay instead,
+    /// or `null` to drop the frame
+    /// @throws Rejected to close the session pair
+    ByteBuffer filter(Frame frame);
+
+    /// A data frame, or whole message, being relayed.
+    /// @param payload the payload from its position to its limit; filters must modify neither its content nor its position
+    record Frame(Session session, Direction direction, boolean text, boolean last, ByteBuffer payload) {
+    }
+
+    /// The session pair a frame is relayed on.
+    /// @param handshakeHeaders the headers of the client's handshake request
+    /// @param attributes state filters keep for the session pair
+    record Session(String routeId, HttpHeaders handshakeHeaders, Map<String, Object> attributes) {
+    }
+
+    enum Direction {
+        CLIENT_TO_UPSTREAM,
+        UPSTREAM_TO_CLIENT
+    }
+
+    /// Thrown by a filter to close the session pair with the given status code, e.g. `1008 Policy Violation`.
+    final class Rejected extends RuntimeException {
+
+        private final int statusCode;
+
+        public Rejected(int statusCode, String reason) {
+            super(reason, null, false, false);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.marbor.gateway.websocket;
+
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// [WebSocketFrameFilter] chains of the routes, resolved once from the routes' `frame-filters` bean names.
+///
+/// Routes without filters get no chain at all, so their relay path neither encodes payloads nor allocates for filtering:
+/// the handlers only test their chain field for `null`.
+@Component
+public class WebSocketFrameFilters {
+
+    private final Map<String, WebSocketFrameFilter[]> routeFilters = new HashMap<>();
+
+    public WebSocketFrameFilters(WebSocketProxyProperties webSocketProxyProperties, ListableBeanFactory beanFactory) {
+        webSocketProxyProperties.getRoutes().forEach((routeId, route) -> {
+            List<String> names = route.getFrameFilters();
+            if (!names.isEmpty()) {
+                routeFilters.put(routeId, names.stream()
+                        .map(name -> beanFactory.getBean(name, WebSocketFrameFilter.class))
+                        .toArray(WebSocketFrameFilter[]::new));
+            }
+        });
+    }
+
+    /// The chain of a new session pair of the route, `null` when the route has no filters.
+    /// The handshake headers are copied, as the request is recycled once the client is upgraded.
+    public Chain forSession(String routeId, HttpHeaders handshakeHeaders) {
+        WebSocketFrameFilter[] filters = routeFilters.get(routeId);
+        if (filters == null) {
+            return null;
+        }
+        var session = new WebSocketFrameFilter.Session(routeId, HttpHeaders.readOnlyHttpHeaders(HttpHeaders.copyOf(handshakeHeaders)),
+                new ConcurrentHashMap<>());
+        return new Chain(filters, session);
+    }
+
+    /// The filters of a route, bound to one session pair.
+    ///
+    /// A fragmented message is dropped as a whole: once its first fragment is dropped, its remaining fragments are dropped
+    /// without running the filters. A later fragment dropped once earlier ones were relayed is relayed empty instead,
+    /// as are the message's remaining fragments, so the peer still gets a complete message.
+    public static final class Chain {
+
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+        private final WebSocketFrameFilter[] filters;
+        private final WebSocketFrameFilter.Session session;
+        /// State of the message being relayed, per direction. The frames of a direction are relayed one at a time,
+        /// each after the previous one was demanded.
+        private final MessageState[] messages = {MessageState.NONE, MessageState.NONE};
+
+        private Chain(WebSocketFrameFilter[] filters, WebSocketFrameFilter.Session session) {
+            this.filters = filters;
+            this.session = session;
+        }
+
+        /// @return the payload to relay, the given buffer when no filter replaced it, or `null` when a filter dropped the frame
+        /// @throws WebSocketFrameFilter.Rejected when a filter rejects the frame
+        public ByteBuffer filter(WebSocketFrameFilter.Direction direction, boolean text, boolean last, ByteBuffer payload) {
+            int index = direction.ordinal();
+            ByteBuffer filtered = switch (messages[index]) {
+                case DROPPING -> null;
+                case TRUNCATING -> EMPTY;
+                case NONE, RELAYING -> {
+                    ByteBuffer result = runFilters(direction, text, last, payload);
+                    if (result != null) {
+                        messages[index] = MessageState.RELAYING;
+                        yield result;
+                    }
+                    // the peer already got the start of the message, which must still be completed
+                    boolean started = messages[index] == MessageState.RELAYING;
+                    messages[index] = started ? MessageState.TRUNCATING : MessageState.DROPPING;
+                    yield started ? EMPTY : null;
+                }
+            };
+            if (last) {
+                messages[index] = MessageState.NONE;
+            }
+            return filtered;
+        }
+
+        private ByteBuffer runFilters(WebSocketFrameFilter.Direction direction, boolean text, boolean last, ByteBuffer payload) {
+            ByteBuffer filtered = payload;
+            for (WebSocketFrameFilter filter : filters) {
+                filtered = filter.filter(new WebSocketFrameFilter.Frame(session, direction, text, last, filtered));
+                if (filtered == null) {
+                    return null;
+                }
+            }
+            return filtered;
+        }
+
+        /// @return the text to relay, the given string when no filter replaced it, or `null` when a filter dropped the frame
+        public String filterText(WebSocketFrameFilter.Direction direction, String payload, boolean last) {
+            ByteBuffer encoded = StandardCharsets.UTF_8.encode(payload);
+            ByteBuffer filtered = filter(direction, true, last, encoded);
+            if (filtered == null) {
+                return null;
+            }
+            return filtered == encoded ? payload : StandardCharsets.UTF_8.decode(filtered).toString();
+        }
+
+        /// Filters the data messages of the `spring` engine, control messages are relayed as they are.
+        /// @return the message to relay, the given one when no filter replaced its payload, or `null` when a filter dropped it
+        public WebSocketMessage<?> filterMessage(WebSocketFrameFilter.Direction direction, WebSocketMessage<?> message) {
+            return switch (message) {
+                case TextMessage text -> {
+                    String filtered = filterText(direction, text.getPayload(), text.isLast());
+                    yield filtered == null ? null : filtered == text.getPayload() ? text : new TextMessage(filtered, text.isLast());
+                }
+                case BinaryMessage binary -> {
+                    ByteBuffer filtered = filter(direction, false, binary.isLast(), binary.getPayload());
+                    yield filtered == null ? null : filtered == binary.getPayload() ? binary : new BinaryMessage(filtered, binary.isLast());
+                }
+                default -> message;
+            };
+        }
+    }
+
+    private enum MessageState {
+        /// Between messages.
+        NONE,
+        /// Fragments of the message were relayed.
+        RELAYING,
+        /// The first fragment was dropped, so is the rest of the message.
+        DROPPING,
+        /// A fragment was dropped after earlier ones were relayed, the rest of the message is relayed empty.
+        TRUNCATING
+    }
+}
@@ -4,6 +4,8 @@ import org.eclipse.jetty.websocket.api.Callback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 public class WebSocketHelper {
@@ -23,17 +25,75 @@ public class WebSocketHelper {
         }
     }
 
+    /// Payload length in bytes, text payloads measured by [#utf8Length] rather than encoded again.
+    static int payloadLength(WebSocketMessage<?> message) {
+        if (message instanceof TextMessage text) {
+            return utf8Length(text.getPayload());
+        }
+        return message.getPayloadLength();
+    }
+
+    /// Length of the text once UTF-8 encoded, as it is on the wire, computed without encoding it.
+    static int utf8Length(String text) {
+        int length = text.length();
+        int bytes = length;
+        for (int index = 0; index < length; index++) {
+            char character = text.charAt(index);
+            if (character < 0x80) {
+                continue;
+            }
+            if (character < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(character) && index + 1 < length && Character.isLowSurrogate(text.charAt(index + 1))) {
+                // a supplementary character, 4 bytes for its 2 chars
+                bytes += 2;
+                index++;
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
     public static class GeneralCallback implements Callback {
 
         private static final Logger log = LoggerFactory.getLogger(GeneralCallback.class);
+        private final WebSocketProxyMetrics.Direction metrics;
+        private final Runnable completed;
+        private final long startNanos;
+
+        public GeneralCallback() {
+            this(null);
+        }
+
+        /// Records the time until the operation succeeds as the send latency of the given direction.
+        public GeneralCallback(WebSocketProxyMetrics.Direction metrics) {
+            this(metrics, null);
+        }
+
+        /// @param completed run once the operation succeeded or failed
+        public GeneralCallback(WebSocketProxyMetrics.Direction metrics, Runnable completed) {
+            this.metrics = metrics;
+            this.completed = completed;
+            this.startNanos = metrics != null ? System.nanoTime() : 0;
+        }
 
         @Override
         public void succeed() {
+            if (metrics != null) {
+                metrics.sendCompleted(startNanos);
+            }
+            if (completed != null) {
+                completed.run();
+            }
             log.debug("Operation succeeded");
         }
 
         @Override
         public void fail(Throwable throwable) {
+            if (completed != null) {
+                completed.run();
+            }
             log.error("Operation failed", throwable);
         }
     }
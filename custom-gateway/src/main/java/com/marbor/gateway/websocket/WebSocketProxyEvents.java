@@ -0,0 +1,238 @@
+package com.marbor.gateway.websocket;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.eclipse.jetty.http.HttpVersion;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+
+/// JDK Flight Recorder events of the proxy, to correlate handshake latency and relay activity with GC, virtual thread pinning
+/// and socket events of the same recording.
+///
+/// The handshake phases are duration events, created by the static factories only while the event type is enabled
+/// in a running recording: the factories return `null` otherwise, so a disabled event costs its caller a `null` check.
+/// [SessionSample] is a periodic event, emitted by JFR itself for each live session pair at the recording's period,
+/// so sampling costs nothing between periods and nothing at all without a recording.
+@Component
+public class WebSocketProxyEvents implements SmartLifecycle {
+
+    private final WebSocketProxySessionRegistry sessionRegistry;
+    private final Runnable sampleSessions = this::sampleSessions;
+    private volatile boolean running;
+
+    public WebSocketProxyEvents(WebSocketProxySessionRegistry sessionRegistry) {
+        this.sessionRegistry = sessionRegistry;
+    }
+
+    /// Started, `null` while disabled. Committed once the upstream session is opened or failed to.
+    public static UpstreamConnect upstreamConnect(URI upstreamUrl, HttpVersion httpVersion) {
+        var event = new UpstreamConnect();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.upstream = upstreamUrl.getAuthority();
+        event.httpVersion = httpVersion.asString();
+        event.begin();
+        return event;
+    }
+
+    /// Started when the handshake request is sent, `null` while disabled. Committed when its response is received.
+    public static UpstreamHandshakeResponse upstreamHandshakeResponse(URI upstreamUrl, HttpVersion httpVersion) {
+        var event = new UpstreamHandshakeResponse();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.upstream = upstreamUrl.getAuthority();
+        event.httpVersion = httpVersion.asString();
+        event.begin();
+        return event;
+    }
+
+    /// Started, `null` while disabled. Committed once the client connection is upgraded or failed to.
+    public static ClientUpgrade clientUpgrade(URI upstreamUrl) {
+        var event = new ClientUpgrade();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.upstream = upstreamUrl.getAuthority();
+        event.begin();
+        return event;
+    }
+
+    /// Commits a handshake failure answered to the client with the given status.
+    /// @param handshakeStartNanos [System#nanoTime()] when the client's handshake request was received
+    public static void handshakeFailed(URI upstreamUrl, Throwable failure, int statusCode, long handshakeStartNanos) {
+        var event = new HandshakeFailure();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.upstream = upstreamUrl.getAuthority();
+        event.failure = failure.getClass().getName();
+        event.message = failure.getMessage();
+        event.status = statusCode;
+        event.handshakeTime = System.nanoTime() - handshakeStartNanos;
+        event.commit();
+    }
+
+    private void sampleSessions() {
+        sessionRegistry.sessions().forEach(session -> {
+            SessionActivity activity = session.getActivity();
+            var event = new SessionSample();
+            event.route = session.getRouteId();
+            event.upstream = session.getUpstream();
+            event.clientToUpstreamMessages = activity.getClientToUpstreamMessages();
+            event.clientToUpstreamBytes = activity.getClientToUpstreamBytes();
+            event.upstreamToClientMessages = activity.getUpstreamToClientMessages();
+            event.upstreamToClientBytes = activity.getUpstreamToClientBytes();
+            event.backlog = session.getBacklog();
+            event.commit();
+        });
+    }
+
+    @Override
+    public void start() {
+        FlightRecorder.addPeriodicEvent(SessionSample.class, sampleSessions);
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        FlightRecorder.removePeriodicEvent(sampleSessions);
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Name("com.marbor.gateway.websocket.UpstreamConnect")
+    @Label("Upstream Connect")
+    @Category({"Gateway", "WebSocket"})
+    @Description("Gateway <-> upstream connect, from opening the connection until the upstream session is opened or failed to")
+    @StackTrace(false)
+    public static final class UpstreamConnect extends Event {
+
+        @Label("Upstream")
+        String upstream;
+
+        @Label("HTTP Version")
+        String httpVersion;
+
+        @Label("Succeeded")
+        boolean succeeded;
+
+        public void commit(boolean succeeded) {
+            this.succeeded = succeeded;
+            commit();
+        }
+    }
+
+    @Name("com.marbor.gateway.websocket.UpstreamHandshakeResponse")
+    @Label("Upstream Handshake Response")
+    @Category({"Gateway", "WebSocket"})
+    @Description("Upstream handshake, from sending the upgrade request until its response is received")
+    @StackTrace(false)
+    public static final class UpstreamHandshakeResponse extends Event {
+
+        @Label("Upstream")
+        String upstream;
+
+        @Label("HTTP Version")
+        String httpVersion;
+
+        @Label("Status")
+        int status;
+
+        public void commit(int status) {
+            this.status = status;
+            commit();
+        }
+    }
+
+    @Name("com.marbor.gateway.websocket.ClientUpgrade")
+    @Label("Client Upgrade")
+    @Category({"Gateway", "WebSocket"})
+    @Description("Upgrade of the client connection, once the upstream handshake succeeded")
+    @StackTrace(false)
+    public static final class ClientUpgrade extends Event {
+
+        @Label("Upstream")
+        String upstream;
+
+        @Label("Succeeded")
+        boolean succeeded;
+
+        public void commit(boolean succeeded) {
+            this.succeeded = succeeded;
+            commit();
+        }
+    }
+
+    /// An instant event: the handshake is already over when it is classified, its duration is the `handshakeTime` field.
+    @Name("com.marbor.gateway.websocket.HandshakeFailure")
+    @Label("Handshake Failure")
+    @Category({"Gateway", "WebSocket"})
+    @Description("Failed upstream handshake, as answered to the client")
+    @StackTrace(false)
+    public static final class HandshakeFailure extends Event {
+
+        @Label("Upstream")
+        String upstream;
+
+        @Label("Failure")
+        String failure;
+
+        @Label("Message")
+        String message;
+
+        @Label("Status")
+        int status;
+
+        @Label("Handshake Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long handshakeTime;
+    }
+
+    @Name("com.marbor.gateway.websocket.SessionSample")
+    @Label("Session Sample")
+    @Category({"Gateway", "WebSocket"})
+    @Description("Messages and payload relayed by a live session pair so far, and its messages waiting to be written")
+    @StackTrace(false)
+    @Period("1 s")
+    public static final class SessionSample extends Event {
+
+        @Label("Route")
+        String route;
+
+        @Label("Upstream")
+        String upstream;
+
+        @Label("Client To Upstream Messages")
+        long clientToUpstreamMessages;
+
+        @Label("Client To Upstream Bytes")
+        @DataAmount
+        long clientToUpstreamBytes;
+
+        @Label("Upstream To Client Messages")
+        long upstreamToClientMessages;
+
+        @Label("Upstream To Client Bytes")
+        @DataAmount
+        long upstreamToClientBytes;
+
+        @Label("Backlog")
+        int backlog;
+    }
+}
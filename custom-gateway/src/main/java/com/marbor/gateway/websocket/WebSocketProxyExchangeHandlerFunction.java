@@ -1,7 +1,10 @@
 package com.marbor.gateway.websocket;
 
-import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.websocket.api.Callback;
+import org.eclipse.jetty.websocket.api.ExtensionConfig;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
 import org.slf4j.Logger;
@@ -9,10 +12,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.cloud.gateway.server.mvc.common.MvcUtils;
 import org.springframework.cloud.gateway.server.mvc.handler.GatewayServerResponse;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
-import org.springframework.web.context.request.RequestContextHolder;
-import org.springframework.web.context.request.ServletRequestAttributes;
 import org.springframework.web.servlet.function.HandlerFunction;
 import org.springframework.web.servlet.function.ServerRequest;
 import org.springframework.web.servlet.function.ServerResponse;
@@ -20,13 +20,18 @@ import org.springframework.web.util.UriComponentsBuilder;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
 
 /// **Proxies WebSocket requests between the client and the upstream service.**
 /// It establishes two connections: **client ↔ gateway** and **gateway ↔ upstream**.
@@ -36,76 +41,345 @@ import java.util.stream.Collectors;
 /// - Gateway initiates the WebSocket handshake with the upstream service.
 /// - The gateway completes the client’s WebSocket handshake using the status and headers returned by the upstream handshake.
 ///
+/// The handshake runs as an asynchronous chain on servlet async support: no request thread is held while the upstream
+/// handshake is in flight, and the client is upgraded as soon as the upstream handshake completes
+/// or answered with an error once it fails or exceeds the route's `handshake-timeout`.
+///
+/// Routes with fan-out enabled share one upstream session between the clients of a subscription, see [FanOutSubscription].
+/// Its handshake is permitted and recorded by the upstream's circuit breaker like the handshake of a proxied session.
+///
 /// ### Notes
 /// - For the upstream WebSocket handshake we use the **Jetty client**, because the Spring `StandardWebSocketClient` implementation does **not** expose the WebSocket handshake status or headers.
 @Component
 public class WebSocketProxyExchangeHandlerFunction implements HandlerFunction<ServerResponse> {
 
     private static final Logger log = LoggerFactory.getLogger(WebSocketProxyExchangeHandlerFunction.class);
-    public static final Set<String> IGNORED_HEADERS = Set.of(HttpHeaders.UPGRADE, HttpHeaders.CONNECTION, "Sec-WebSocket-Accept", HttpHeaders.DATE)
-            .stream()
-            .map(String::toLowerCase)
-            .collect(Collectors.toSet());
+    private static final Duration ASYNC_TIMEOUT_MARGIN = Duration.ofSeconds(1);
     private final WebSocketClient websocketClient;
     private final WebSocketExecutionExceptionHandler webSocketExecutionExceptionHandler;
+    private final WebSocketProxyProperties webSocketProxyProperties;
+    private final UpstreamHttpVersionSelector upstreamHttpVersionSelector;
+    private final WebSocketProxyMetrics webSocketProxyMetrics;
+    private final HandshakeHeaderTranslator handshakeHeaderTranslator;
+    private final UpstreamLoadBalancer upstreamLoadBalancer;
+    private final WebSocketProxySessionRegistry sessionRegistry;
+    private final WebSocketDrainController drainController;
+    private final UpstreamCircuitBreakers upstreamCircuitBreakers;
+    private final FanOutSubscriptions fanOutSubscriptions;
+    private final KeepaliveWheel keepaliveWheel;
+    private final WebSocketAdmissionControl admissionControl;
+    private final ClientRateLimiter clientRateLimiter;
+    private final WebSocketFrameFilters webSocketFrameFilters;
 
-    public WebSocketProxyExchangeHandlerFunction(WebSocketClient websocketClient, WebSocketExecutionExceptionHandler webSocketExecutionExceptionHandler) {
+    public WebSocketProxyExchangeHandlerFunction(WebSocketClient websocketClient, WebSocketExecutionExceptionHandler webSocketExecutionExceptionHandler,
+                                                 WebSocketProxyProperties webSocketProxyProperties, UpstreamHttpVersionSelector upstreamHttpVersionSelector,
+                                                 WebSocketProxyMetrics webSocketProxyMetrics, HandshakeHeaderTranslator handshakeHeaderTranslator,
+                                                 UpstreamLoadBalancer upstreamLoadBalancer, WebSocketProxySessionRegistry sessionRegistry,
+                                                 WebSocketDrainController drainController, UpstreamCircuitBreakers upstreamCircuitBreakers,
+                                                 FanOutSubscriptions fanOutSubscriptions, KeepaliveWheel keepaliveWheel,
+                                                 WebSocketAdmissionControl admissionControl, ClientRateLimiter clientRateLimiter,
+                                                 WebSocketFrameFilters webSocketFrameFilters) {
         this.websocketClient = websocketClient;
         this.webSocketExecutionExceptionHandler = webSocketExecutionExceptionHandler;
+        this.webSocketProxyProperties = webSocketProxyProperties;
+        this.upstreamHttpVersionSelector = upstreamHttpVersionSelector;
+        this.webSocketProxyMetrics = webSocketProxyMetrics;
+        this.handshakeHeaderTranslator = handshakeHeaderTranslator;
+        this.upstreamLoadBalancer = upstreamLoadBalancer;
+        this.sessionRegistry = sessionRegistry;
+        this.drainController = drainController;
+        this.upstreamCircuitBreakers = upstreamCircuitBreakers;
+        this.fanOutSubscriptions = fanOutSubscriptions;
+        this.keepaliveWheel = keepaliveWheel;
+        this.admissionControl = admissionControl;
+        this.clientRateLimiter = clientRateLimiter;
+        this.webSocketFrameFilters = webSocketFrameFilters;
     }
 
     @Override
     public ServerResponse handle(ServerRequest serverRequest) {
-        HttpServletResponse servletResponse = ((ServletRequestAttributes) RequestContextHolder.getRequestAttributes()).getResponse();
-        var upstreamSessionHandler = new WebsocketUpstreamSessionHandler(serverRequest.servletRequest(), servletResponse);
-        var upstreamUpgradeListener = new WebSocketUpgradeResponseListener();
+        long handshakeStartNanos = System.nanoTime();
+        String routeId = getRouteId(serverRequest);
+        WebSocketProxyProperties.Route routeProperties = webSocketProxyProperties.getRoute(routeId);
+        WebSocketProxyMetrics.Route metrics = webSocketProxyMetrics.route(routeId);
+        if (drainController.isDraining(routeId)) {
+            ServerResponse rejected = drainController.rejectHandshake();
+            metrics.handshakeCompleted(handshakeStartNanos, rejected.statusCode());
+            return rejected;
+        }
+        WebSocketAdmissionControl.Admission admission = admissionControl.admit(routeId, routeProperties.getLimits());
+        if (admission == null) {
+            ServerResponse rejected = admissionControl.rejectHandshake();
+            metrics.handshakeCompleted(handshakeStartNanos, rejected.statusCode());
+            return rejected;
+        }
+        if (routeProperties.getFanOut().isEnabled()) {
+            return handleFanOut(serverRequest, routeId, routeProperties, metrics, admission, handshakeStartNanos);
+        }
+        UpstreamLoadBalancer.Lease upstreamLease = upstreamLoadBalancer.acquire(routeId, serverRequest);
+        URI upstreamWebsocketUrl = getWebsocketUrl(serverRequest, upstreamLease.getUri());
+        UpstreamCircuitBreakers.CircuitBreaker circuitBreaker = upstreamCircuitBreakers.forUpstream(upstreamWebsocketUrl.getAuthority());
+        UpstreamCircuitBreakers.CircuitBreaker.Permit circuitPermit = circuitBreaker.tryAcquire();
+        if (circuitPermit == null) {
+            upstreamLease.release();
+            admission.release();
+            ServerResponse rejected = circuitBreaker.rejection();
+            metrics.handshakeCompleted(handshakeStartNanos, rejected.statusCode());
+            return rejected;
+        }
+        HandshakeHeaderTranslator.Policy headerPolicy = handshakeHeaderTranslator.forRoute(routeId);
+        ClientRateLimiter.Limit rateLimit = clientRateLimiter.forClient(routeId, routeProperties.getRateLimit(), serverRequest);
         HttpHeaders clientHeaders = serverRequest.headers().asHttpHeaders();
-        URI upstreamWebsocketUrl = getWebsocketUrl(serverRequest);
+        WebSocketFrameFilters.Chain frameFilters = webSocketFrameFilters.forSession(routeId, clientHeaders);
+        UpstreamSessionListener upstreamSessionHandler = createUpstreamSessionListener(routeProperties, rateLimit, frameFilters, metrics);
+        upstreamSessionHandler.getClosed().thenRun(() -> {
+            upstreamLease.release();
+            admission.release();
+            releaseRateLimit(rateLimit);
+        });
+        var upstreamUpgradeListener = new WebSocketUpgradeResponseListener();
+        Duration handshakeTimeout = routeProperties.getHandshakeTimeout();
 
-        try {
-            var upstreamUpgradeRequest = new ClientUpgradeRequest(upstreamWebsocketUrl);
-            setRequestHeaders(clientHeaders, upstreamUpgradeRequest);
-            CompletableFuture<Session> upstreamSession = websocketClient.connect(upstreamSessionHandler, upstreamUpgradeRequest, upstreamUpgradeListener);
-            upstreamSession.get();
-            boolean isProxyingReady = upstreamSessionHandler.awaitWebsocketProxyingReady(20, TimeUnit.SECONDS);
-            boolean isHandshakeResponseReady = upstreamUpgradeListener.awaitForHandshakeResponse(20, TimeUnit.SECONDS);
-            if (!isProxyingReady || !isHandshakeResponseReady) {
-                final String message = String.format("Timeout waiting for the WebSocket proxying: %s", upstreamWebsocketUrl);
-                log.error(message);
-                return GatewayServerResponse.status(HttpStatus.GATEWAY_TIMEOUT)
-                        .body(message);
+        CompletableFuture<Session> upstreamSession = connectUpstream(upstreamSessionHandler, upstreamUpgradeListener, clientHeaders, upstreamWebsocketUrl, routeProperties, headerPolicy);
+        CompletableFuture<ServerResponse> gatewayResponse = upstreamSession.copy()
+                .orTimeout(handshakeTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .thenApply(session -> {
+                    sessionRegistry.register(routeId, upstreamWebsocketUrl, upstreamSessionHandler);
+                    return completeClientHandshake(session, upstreamSessionHandler, upstreamUpgradeListener, headerPolicy);
+                })
+                .exceptionally(failure -> {
+                    upstreamSessionHandler.handshakeFailed();
+                    closeWhenOpened(upstreamSession);
+                    return webSocketExecutionExceptionHandler.handle(unwrap(failure), upstreamUpgradeListener, upstreamWebsocketUrl, handshakeStartNanos);
+                })
+                .whenComplete((response, failure) -> {
+                    if (response != null) {
+                        metrics.handshakeCompleted(handshakeStartNanos, response.statusCode());
+                        circuitPermit.record(Duration.ofNanos(System.nanoTime() - handshakeStartNanos), response.statusCode());
+                    } else {
+                        circuitPermit.release();
+                    }
+                });
+        return ServerResponse.async(gatewayResponse, handshakeTimeout.plus(ASYNC_TIMEOUT_MARGIN));
+    }
+
+    /// Attaches the client to the subscription of its key, opening the shared upstream session for the first subscriber.
+    private ServerResponse handleFanOut(ServerRequest serverRequest, String routeId, WebSocketProxyProperties.Route routeProperties,
+                                        WebSocketProxyMetrics.Route metrics, WebSocketAdmissionControl.Admission admission, long handshakeStartNanos) {
+        HandshakeHeaderTranslator.Policy headerPolicy = handshakeHeaderTranslator.forRoute(routeId);
+        FanOutSubscription subscription = fanOutSubscriptions.subscribe(getSubscriptionKey(serverRequest, routeId, routeProperties.getFanOut()), key -> {
+            UpstreamLoadBalancer.Lease upstreamLease = upstreamLoadBalancer.acquire(routeId, serverRequest);
+            var created = new FanOutSubscription(key, getWebsocketUrl(serverRequest, upstreamLease.getUri()), routeProperties, metrics);
+            created.getClosed().thenRun(upstreamLease::release);
+            return created;
+        });
+        UpstreamCircuitBreakers.CircuitBreaker circuitBreaker = upstreamCircuitBreakers.forUpstream(subscription.getUpstreamUrl().getAuthority());
+        // only the subscriber opening the upstream session takes a permit, the others join the session's outcome
+        var circuitPermit = new AtomicReference<UpstreamCircuitBreakers.CircuitBreaker.Permit>();
+        boolean firstSubscriber = subscription.connect(() -> {
+            UpstreamCircuitBreakers.CircuitBreaker.Permit permit = circuitBreaker.tryAcquire();
+            if (permit == null) {
+                return CompletableFuture.failedFuture(new CircuitOpenException());
             }
-            Map<String, List<String>> upstreamResponseHeaders = upstreamUpgradeListener.getHandshakeHeaders();
-            ServerResponse.BodyBuilder gatewayResponseBuilder = GatewayServerResponse.status(upstreamUpgradeListener.getHandshakeStatus());
-            addHandshakeHeaders(gatewayResponseBuilder, upstreamResponseHeaders);
-            return gatewayResponseBuilder.build();
-        } catch (InterruptedException interruptedException) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Interruption exception during the WebSocket handshake between gateway and upstream", interruptedException);
-        } catch (ExecutionException executionException) {
-            return webSocketExecutionExceptionHandler.handle(executionException, upstreamUpgradeListener, upstreamWebsocketUrl);
+            circuitPermit.set(permit);
+            return connectUpstream(subscription, subscription.getUpgradeListener(), serverRequest.headers().asHttpHeaders(),
+                    subscription.getUpstreamUrl(), routeProperties, headerPolicy);
+        });
+        Duration handshakeTimeout = routeProperties.getHandshakeTimeout();
+        CompletableFuture<ServerResponse> gatewayResponse = subscription.getUpstreamSession().copy()
+                .orTimeout(handshakeTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .thenApply(session -> {
+                    // expires once the async request timed out, the write function below then never runs
+                    FanOutSubscription.Subscriber subscriber = subscription.newSubscriber(websocketClient.getHttpClient().getScheduler(),
+                            handshakeTimeout.plus(ASYNC_TIMEOUT_MARGIN));
+                    subscriber.getClosed().thenRun(admission::release);
+                    WebSocketUpgradeResponseListener upstreamUpgradeListener = subscription.getUpgradeListener();
+                    ServerResponse.BodyBuilder gatewayResponseBuilder = GatewayServerResponse.status(upstreamUpgradeListener.getHandshakeStatus());
+                    if (firstSubscriber) {
+                        headerPolicy.copyResponseHeaders(upstreamUpgradeListener.getHandshakeHeaders(), gatewayResponseBuilder);
+                    } else {
+                        headerPolicy.copySubscriberResponseHeaders(upstreamUpgradeListener.getHandshakeHeaders(), gatewayResponseBuilder);
+                    }
+                    return gatewayResponseBuilder.build((servletRequest, servletResponse) -> {
+                        WebSocketProxyEvents.ClientUpgrade upgradeEvent = WebSocketProxyEvents.clientUpgrade(subscription.getUpstreamUrl());
+                        try {
+                            subscriber.upgrade(servletRequest, servletResponse);
+                            sessionRegistry.register(routeId, subscription.getUpstreamUrl(), subscriber);
+                        } catch (RuntimeException upgradeException) {
+                            commitClientUpgrade(upgradeEvent, false);
+                            throw upgradeException;
+                        }
+                        commitClientUpgrade(upgradeEvent, true);
+                        return null;
+                    });
+                })
+                .exceptionally(failure -> {
+                    subscription.release();
+                    admission.release();
+                    Throwable cause = unwrap(failure);
+                    if (cause instanceof CircuitOpenException) {
+                        return circuitBreaker.rejection();
+                    }
+                    return webSocketExecutionExceptionHandler.handle(cause, subscription.getUpgradeListener(), subscription.getUpstreamUrl(),
+                            handshakeStartNanos);
+                })
+                .whenComplete((response, failure) -> {
+                    if (response != null) {
+                        metrics.handshakeCompleted(handshakeStartNanos, response.statusCode());
+                    }
+                    UpstreamCircuitBreakers.CircuitBreaker.Permit permit = circuitPermit.get();
+                    if (permit != null && response != null) {
+                        permit.record(Duration.ofNanos(System.nanoTime() - handshakeStartNanos), response.statusCode());
+                    } else if (permit != null) {
+                        permit.release();
+                    }
+                });
+        return ServerResponse.async(gatewayResponse, handshakeTimeout.plus(ASYNC_TIMEOUT_MARGIN));
+    }
+
+    private static void releaseRateLimit(ClientRateLimiter.Limit rateLimit) {
+        if (rateLimit != null) {
+            rateLimit.release();
+        }
+    }
+
+    /// The subscription's upstream URL carries the query string of its first subscriber, and the upstream authenticates
+    /// the subscription's handshake only, so requests with a different query string or credentials never share it.
+    /// Both are digested, as query strings may carry tokens too and keys end up in logs.
+    static String getSubscriptionKey(ServerRequest serverRequest, String routeId, WebSocketProxyProperties.FanOut fanOut) {
+        WebSocketProxyProperties.AffinityKey subscriptionKey = fanOut.getSubscriptionKey();
+        String value = subscriptionKey.getName() != null ? UpstreamLoadBalancer.requestKey(serverRequest, subscriptionKey) : null;
+        String key = routeId + ' ' + serverRequest.path() + '?' + Objects.toString(value, "");
+        String query = serverRequest.uri().getRawQuery();
+        List<String> authorization = serverRequest.headers().header(HttpHeaders.AUTHORIZATION);
+        List<String> cookies = serverRequest.headers().header(HttpHeaders.COOKIE);
+        if (query == null && authorization.isEmpty() && cookies.isEmpty()) {
+            return key;
+        }
+        MessageDigest digest = sha256();
+        if (query != null) {
+            digest.update(query.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+        authorization.forEach(credentials -> digest.update(credentials.getBytes(StandardCharsets.UTF_8)));
+        digest.update((byte) 0);
+        cookies.forEach(cookie -> digest.update(cookie.getBytes(StandardCharsets.UTF_8)));
+        return key + ' ' + HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
+            throw new IllegalStateException(noSuchAlgorithmException);
+        }
+    }
+
+    /// An upstream session opened after the handshake already failed, e.g. timed out, has no client to relay to.
+    private static void closeWhenOpened(CompletableFuture<Session> upstreamSession) {
+        upstreamSession.thenAccept(session -> session.close(StatusCode.SHUTDOWN, "Gateway handshake failed", Callback.NOOP));
+    }
+
+    private CompletableFuture<Session> connectUpstream(Session.Listener upstreamSessionHandler, WebSocketUpgradeResponseListener upstreamUpgradeListener,
+                                                       HttpHeaders clientHeaders, URI upstreamWebsocketUrl, WebSocketProxyProperties.Route routeProperties,
+                                                       HandshakeHeaderTranslator.Policy headerPolicy) {
+        HttpVersion httpVersion = upstreamHttpVersionSelector.select(routeProperties, upstreamWebsocketUrl);
+        List<ExtensionConfig> extensions = CompressionNegotiation.upstreamOffer(routeProperties.getCompression(),
+                clientHeaders.getValuesAsList(HandshakeHeaderTranslator.SEC_WEBSOCKET_EXTENSIONS).stream().map(ExtensionConfig::parse).toList());
+        if (httpVersion != HttpVersion.HTTP_2) {
+            return connectUpstream(upstreamSessionHandler, upstreamUpgradeListener, clientHeaders, upstreamWebsocketUrl, headerPolicy,
+                    extensions, httpVersion);
+        }
+        // each attempt has its own listener, so a refused HTTP/2 handshake leaves no response behind for the HTTP/1.1 one
+        var http2UpgradeListener = new WebSocketUpgradeResponseListener();
+        return connectUpstream(upstreamSessionHandler, http2UpgradeListener, clientHeaders, upstreamWebsocketUrl, headerPolicy, extensions, httpVersion)
+                .thenApply(session -> {
+                    upstreamUpgradeListener.adopt(http2UpgradeListener);
+                    return session;
+                })
+                .exceptionallyCompose(failure -> {
+                    Throwable cause = unwrap(failure);
+                    if (!upstreamHttpVersionSelector.isExtendedConnectUnsupported(cause, http2UpgradeListener)) {
+                        upstreamUpgradeListener.adopt(http2UpgradeListener);
+                        return CompletableFuture.failedFuture(cause);
+                    }
+                    upstreamHttpVersionSelector.http2Failed(upstreamWebsocketUrl, cause);
+                    return connectUpstream(upstreamSessionHandler, upstreamUpgradeListener, clientHeaders, upstreamWebsocketUrl, headerPolicy,
+                            extensions, HttpVersion.HTTP_1_1);
+                });
+    }
+
+    private CompletableFuture<Session> connectUpstream(Session.Listener upstreamSessionHandler, WebSocketUpgradeResponseListener upstreamUpgradeListener,
+                                                       HttpHeaders clientHeaders, URI upstreamWebsocketUrl, HandshakeHeaderTranslator.Policy headerPolicy,
+                                                       List<ExtensionConfig> extensions, HttpVersion httpVersion) {
+        var upstreamUpgradeRequest = new ClientUpgradeRequest(upstreamWebsocketUrl);
+        headerPolicy.copyRequestHeaders(clientHeaders, upstreamUpgradeRequest, httpVersion);
+        upstreamUpgradeRequest.setExtensions(extensions);
+        upstreamUpgradeListener.setHttpVersion(httpVersion);
+        WebSocketProxyEvents.UpstreamConnect connectEvent = WebSocketProxyEvents.upstreamConnect(upstreamWebsocketUrl, httpVersion);
+        CompletableFuture<Session> upstreamSession;
+        try {
+            upstreamSession = websocketClient.connect(upstreamSessionHandler, upstreamUpgradeRequest, upstreamUpgradeListener);
         } catch (IOException ioException) {
-            final String message = String.format("Connectivity failure occurred when connecting to upstream service (%s), %s", upstreamWebsocketUrl, ioException.getMessage());
-            log.error(message, ioException);
-            return GatewayServerResponse.status(HttpStatus.BAD_GATEWAY)
-                    .body(message);
+            upstreamSession = CompletableFuture.failedFuture(ioException);
+        }
+        if (connectEvent != null) {
+            upstreamSession.whenComplete((session, failure) -> connectEvent.commit(failure == null));
         }
+        return upstreamSession;
     }
 
-    private void addHandshakeHeaders(ServerResponse.BodyBuilder gatewayResponseBuilder, Map<String, List<String>> upstreamResponseHeaders) {
-        upstreamResponseHeaders.entrySet()
-                .stream()
-                .filter(stringListEntry -> !IGNORED_HEADERS.contains(stringListEntry.getKey().toLowerCase()))
-                .forEach(entry -> addHandshakeHeader(gatewayResponseBuilder, entry));
+    /// The upstream handshake succeeded, so the client handshake is completed with its status and headers.
+    /// The client connection is upgraded when the response is written, on the servlet async dispatch.
+    private ServerResponse completeClientHandshake(Session upstreamSession, UpstreamSessionListener upstreamSessionHandler,
+                                                   WebSocketUpgradeResponseListener upstreamUpgradeListener, HandshakeHeaderTranslator.Policy headerPolicy) {
+        ServerResponse.BodyBuilder gatewayResponseBuilder = GatewayServerResponse.status(upstreamUpgradeListener.getHandshakeStatus());
+        headerPolicy.copyResponseHeaders(upstreamUpgradeListener.getHandshakeHeaders(), gatewayResponseBuilder);
+        return gatewayResponseBuilder.build((servletRequest, servletResponse) -> {
+            WebSocketProxyEvents.ClientUpgrade upgradeEvent = WebSocketProxyEvents.clientUpgrade(upstreamSession.getUpgradeRequest().getRequestURI());
+            try {
+                upstreamSessionHandler.upgradeClient(servletRequest, servletResponse);
+                commitClientUpgrade(upgradeEvent, true);
+            } catch (RuntimeException upgradeException) {
+                commitClientUpgrade(upgradeEvent, false);
+                log.error("Client <-> gateway upgrade failed, closing the gateway <-> upstream session {}", upstreamSession.getUpgradeRequest().getRequestURI(), upgradeException);
+                upstreamSession.close(StatusCode.SERVER_ERROR, "Client upgrade failed", Callback.NOOP);
+                throw upgradeException;
+            }
+            return null;
+        });
     }
 
-    private static void addHandshakeHeader(ServerResponse.BodyBuilder gatewayResponseBuilder, Map.Entry<String, List<String>> entry) {
-        entry.getValue()
-                .forEach(headerValue -> gatewayResponseBuilder.header(entry.getKey(), headerValue));
+    private static void commitClientUpgrade(WebSocketProxyEvents.ClientUpgrade upgradeEvent, boolean succeeded) {
+        if (upgradeEvent != null) {
+            upgradeEvent.commit(succeeded);
+        }
     }
 
-    private static URI getWebsocketUrl(ServerRequest serverRequest) {
-        URI uri = (URI) serverRequest.attribute(MvcUtils.GATEWAY_REQUEST_URL_ATTR).orElseThrow();
+    private static Throwable unwrap(Throwable failure) {
+        if ((failure instanceof CompletionException || failure instanceof ExecutionException) && failure.getCause() != null) {
+            return failure.getCause();
+        }
+        return failure;
+    }
+
+    private UpstreamSessionListener createUpstreamSessionListener(WebSocketProxyProperties.Route routeProperties, ClientRateLimiter.Limit rateLimit,
+                                                                  WebSocketFrameFilters.Chain frameFilters, WebSocketProxyMetrics.Route metrics) {
+        return switch (routeProperties.getEngine()) {
+            case SPRING -> WebsocketUpstreamSessionHandler.create(routeProperties, websocketClient.getHttpClient().getExecutor(),
+                    websocketClient.getHttpClient().getScheduler(), keepaliveWheel, admissionControl.sessionBuffer(routeProperties.getLimits()), rateLimit, frameFilters, metrics);
+            case JETTY -> new JettyUpstreamSessionHandler(routeProperties, websocketClient.getHttpClient().getScheduler(), keepaliveWheel,
+                    rateLimit, frameFilters, metrics);
+        };
+    }
+
+    private static String getRouteId(ServerRequest serverRequest) {
+        return (String) serverRequest.attribute(MvcUtils.GATEWAY_ROUTE_ID_ATTR).orElse("");
+    }
+
+    /// @param upstreamUri the upstream instance chosen from the route's pool, `null` to use the route's `uri`
+    static URI getWebsocketUrl(ServerRequest serverRequest, URI upstreamUri) {
+        URI uri = upstreamUri != null ? upstreamUri : (URI) serverRequest.attribute(MvcUtils.GATEWAY_REQUEST_URL_ATTR).orElseThrow();
         return UriComponentsBuilder.fromUri(serverRequest.uri())
                 .scheme(uri.getScheme())
                 .host(uri.getHost())
@@ -115,11 +389,11 @@ public class WebSocketProxyExchangeHandlerFunction implements HandlerFunction<Se
                 .toUri();
     }
 
-    private void setRequestHeaders(HttpHeaders clientHeaders, ClientUpgradeRequest upstreamUpgradeRequest) {
-        clientHeaders.headerSet()
-                .stream()
-                .flatMap(entry -> entry.getValue().stream().map(value -> new String[]{entry.getKey(), value}))
-                .forEach(header -> upstreamUpgradeRequest.setHeader(header[0], header[1]));
+    /// Fails the shared upstream handshake of a fan-out subscription whose upstream circuit is open.
+    private static final class CircuitOpenException extends RuntimeException {
+
+        private CircuitOpenException() {
+            super("Upstream circuit is open", null, false, false);
+        }
     }
 }
-
@@ -0,0 +1,181 @@
+package com.marbor.gateway.websocket;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Micrometer meters of the WebSocket proxy, tagged by the gateway route id.
+///
+/// All meters of a route are registered once, when the route's first handshake is handled, and handed to the session handlers
+/// as [Route] and [Direction] holders, so relaying a message only increments already resolved meters.
+///
+/// | Meter | Type | Tags |
+/// |---|---|---|
+/// | `gateway.websocket.sessions.active` | gauge | `route` |
+/// | `gateway.websocket.handshake` | timer | `route`, `outcome` |
+/// | `gateway.websocket.messages` | counter | `route`, `direction` |
+/// | `gateway.websocket.payload` | counter (bytes) | `route`, `direction` |
+/// | `gateway.websocket.send` | timer | `route`, `direction` |
+/// | `gateway.websocket.outbound.queue.depth` | distribution summary | `route` |
+/// | `gateway.websocket.upstream.pending.writes` | distribution summary | `route` |
+/// | `gateway.websocket.rate.limited` | counter | `route`, `direction`, `outcome` |
+@Component
+public class WebSocketProxyMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+    public WebSocketProxyMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    public Route route(String routeId) {
+        return routes.computeIfAbsent(routeId, id -> new Route(meterRegistry, Tags.of("route", id)));
+    }
+
+    /// Meters of a single route.
+    public static final class Route {
+
+        private final AtomicInteger activeSessions = new AtomicInteger();
+        private final Map<HttpStatus.Series, Timer> handshakes = new EnumMap<>(HttpStatus.Series.class);
+        private final Direction upstreamToClient;
+        private final Direction clientToUpstream;
+        private final DistributionSummary outboundQueueDepth;
+        private final DistributionSummary upstreamPendingWrites;
+
+        private Route(MeterRegistry meterRegistry, Tags tags) {
+            Gauge.builder("gateway.websocket.sessions.active", activeSessions, AtomicInteger::get)
+                    .description("Proxied client <-> upstream session pairs")
+                    .tags(tags)
+                    .register(meterRegistry);
+            for (HttpStatus.Series series : HttpStatus.Series.values()) {
+                handshakes.put(series, Timer.builder("gateway.websocket.handshake")
+                        .description("Time from the client handshake request to the gateway's handshake response")
+                        .tags(tags)
+                        .tag("outcome", outcome(series))
+                        .publishPercentileHistogram()
+                        .register(meterRegistry));
+            }
+            this.upstreamToClient = new Direction(meterRegistry, tags.and("direction", "upstream_to_client"));
+            this.clientToUpstream = new Direction(meterRegistry, tags.and("direction", "client_to_upstream"));
+            this.outboundQueueDepth = DistributionSummary.builder("gateway.websocket.outbound.queue.depth")
+                    .description("Client outbound queue depth of a session, sampled on every queued message")
+                    .tags(tags)
+                    .register(meterRegistry);
+            this.upstreamPendingWrites = DistributionSummary.builder("gateway.websocket.upstream.pending.writes")
+                    .description("Client messages of a session waiting for their upstream write, sampled on every asynchronous write")
+                    .tags(tags)
+                    .register(meterRegistry);
+        }
+
+        /// The outcome of the status the client handshake was answered with, `101`/`200` being a proxied session
+        /// and the error statuses the ones mapped by [WebSocketExecutionExceptionHandler].
+        private static String outcome(HttpStatus.Series series) {
+            return switch (series) {
+                case INFORMATIONAL, SUCCESSFUL -> "SUCCESS";
+                case REDIRECTION -> "REDIRECTION";
+                case CLIENT_ERROR -> "CLIENT_ERROR";
+                case SERVER_ERROR -> "SERVER_ERROR";
+            };
+        }
+
+        public void handshakeCompleted(long startNanos, HttpStatusCode status) {
+            HttpStatus.Series series = HttpStatus.Series.resolve(status.value());
+            handshakes.get(series != null ? series : HttpStatus.Series.SERVER_ERROR)
+                    .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public void sessionOpened() {
+            activeSessions.incrementAndGet();
+        }
+
+        public void sessionClosed() {
+            activeSessions.decrementAndGet();
+        }
+
+        public void outboundQueueDepth(int depth) {
+            outboundQueueDepth.record(depth);
+        }
+
+        public void upstreamPendingWrites(int pendingWrites) {
+            upstreamPendingWrites.record(pendingWrites);
+        }
+
+        public Direction upstreamToClient() {
+            return upstreamToClient;
+        }
+
+        public Direction clientToUpstream() {
+            return clientToUpstream;
+        }
+    }
+
+    /// Meters of one relay direction of a route.
+    public static final class Direction {
+
+        private final Counter messages;
+        private final Counter payload;
+        private final Timer send;
+        private final Counter rateLimitDelayed;
+        private final Counter rateLimitRejected;
+
+        private Direction(MeterRegistry meterRegistry, Tags tags) {
+            this.messages = Counter.builder("gateway.websocket.messages")
+                    .description("Relayed messages, or frames when relaying partial messages")
+                    .tags(tags)
+                    .register(meterRegistry);
+            this.payload = Counter.builder("gateway.websocket.payload")
+                    .description("Relayed payload, text payloads counted in UTF-8 bytes")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .register(meterRegistry);
+            this.send = Timer.builder("gateway.websocket.send")
+                    .description("Time from handing a message to the peer session until its write completed")
+                    .tags(tags)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+            this.rateLimitDelayed = rateLimited(meterRegistry, tags, "delayed");
+            this.rateLimitRejected = rateLimited(meterRegistry, tags, "rejected");
+        }
+
+        private static Counter rateLimited(MeterRegistry meterRegistry, Tags tags, String outcome) {
+            return Counter.builder("gateway.websocket.rate.limited")
+                    .description("Client messages over the route's rate limit")
+                    .tags(tags)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry);
+        }
+
+        public void relayed(int payloadLength) {
+            messages.increment();
+            payload.increment(payloadLength);
+        }
+
+        /// A message written to several clients by a fan-out subscription, counted once per receiver.
+        public void broadcast(int payloadLength, int receivers) {
+            messages.increment(receivers);
+            payload.increment((double) payloadLength * receivers);
+        }
+
+        public void sendCompleted(long startNanos) {
+            send.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /// A message over the rate limit, delayed or rejected by the route's policy.
+        public void rateLimited(boolean rejected) {
+            (rejected ? rateLimitRejected : rateLimitDelayed).increment();
+        }
+    }
+}
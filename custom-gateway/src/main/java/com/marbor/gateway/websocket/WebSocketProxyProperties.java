@@ -0,0 +1,843 @@
+package com.marbor.gateway.websocket;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/// Per-route WebSocket proxy settings, keyed by the gateway route id:
+///
+/// ```yaml
+/// gateway:
+///   websocket:
+///     routes:
+///       websocket_route:
+///         backpressure:
+///           enabled: true
+///         compression:
+///           mode: terminate
+///         headers:
+///           request:
+///             deny: [Cookie]
+/// ```
+///
+/// Routes without an entry use the defaults.
+@ConfigurationProperties(prefix = "gateway.websocket")
+public class WebSocketProxyProperties {
+
+    private static final Route DEFAULT_ROUTE = new Route();
+    private final Map<String, Route> routes = new LinkedHashMap<>();
+    /// `permessage-deflate` compression level (0-9, or -1 for the JDK default) of the Jetty deflaters,
+    /// shared by all routes because the deflater pool is server-wide.
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    /// Payload the gateway may hold buffered for all sessions together, see [WebSocketAdmissionControl].
+    /// Sessions only check it once they buffer more than 64 KiB, so the gateway may exceed it by up to 64 KiB per open session.
+    private DataSize maxBufferedBytes = DataSize.ofMegabytes(256);
+    private final Drain drain = new Drain();
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private final Tls tls = new Tls();
+
+    public Map<String, Route> getRoutes() {
+        return routes;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public DataSize getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    public void setMaxBufferedBytes(DataSize maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    public Drain getDrain() {
+        return drain;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public Tls getTls() {
+        return tls;
+    }
+
+    public Route getRoute(String routeId) {
+        return routes.getOrDefault(routeId, DEFAULT_ROUTE);
+    }
+
+    public static class Route {
+
+        private Engine engine = Engine.SPRING;
+        /// Maximum time for the upstream handshake, the client is answered with `504 Gateway Timeout` once exceeded.
+        private Duration handshakeTimeout = Duration.ofSeconds(20);
+        /// Open upstream sessions over HTTP/2 (RFC 8441) so they share multiplexed connections,
+        /// falling back to HTTP/1.1 for upstreams that do not support it.
+        private boolean http2 = false;
+        private final Backpressure backpressure = new Backpressure();
+        /// Forward message fragments as they arrive on both legs instead of aggregating whole messages.
+        private boolean streaming = false;
+        private final Compression compression = new Compression();
+        private final Headers headers = new Headers();
+        private final LoadBalancing loadBalancing = new LoadBalancing();
+        private final Batching batching = new Batching();
+        private final FanOut fanOut = new FanOut();
+        private final Keepalive keepalive = new Keepalive();
+        private final Limits limits = new Limits();
+        private final RateLimit rateLimit = new RateLimit();
+        /// Bean names of the [WebSocketFrameFilter]s applied to the route's data frames, in order.
+        private List<String> frameFilters = new ArrayList<>();
+
+        public Engine getEngine() {
+            return engine;
+        }
+
+        public void setEngine(Engine engine) {
+            this.engine = engine;
+        }
+
+        public Duration getHandshakeTimeout() {
+            return handshakeTimeout;
+        }
+
+        public void setHandshakeTimeout(Duration handshakeTimeout) {
+            this.handshakeTimeout = handshakeTimeout;
+        }
+
+        public boolean isHttp2() {
+            return http2;
+        }
+
+        public void setHttp2(boolean http2) {
+            this.http2 = http2;
+        }
+
+        public Backpressure getBackpressure() {
+            return backpressure;
+        }
+
+        public boolean isStreaming() {
+            return streaming;
+        }
+
+        public void setStreaming(boolean streaming) {
+            this.streaming = streaming;
+        }
+
+        public Compression getCompression() {
+            return compression;
+        }
+
+        public Headers getHeaders() {
+            return headers;
+        }
+
+        public LoadBalancing getLoadBalancing() {
+            return loadBalancing;
+        }
+
+        public Batching getBatching() {
+            return batching;
+        }
+
+        public FanOut getFanOut() {
+            return fanOut;
+        }
+
+        public Keepalive getKeepalive() {
+            return keepalive;
+        }
+
+        public Limits getLimits() {
+            return limits;
+        }
+
+        public RateLimit getRateLimit() {
+            return rateLimit;
+        }
+
+        public List<String> getFrameFilters() {
+            return frameFilters;
+        }
+
+        public void setFrameFilters(List<String> frameFilters) {
+            this.frameFilters = frameFilters;
+        }
+    }
+
+    public enum Engine {
+        /// The client connection is upgraded and relayed through Spring's WebSocket support, on any servlet container.
+        SPRING,
+        /// The client connection is upgraded with Jetty's native server WebSocket API and frames are relayed
+        /// directly between the two Jetty sessions. Requires the Jetty server. Frames are always relayed as they arrive,
+        /// with flow control following the peer writes, so `backpressure` and `streaming` do not apply.
+        JETTY
+    }
+
+    /// Upstream → client flow control.
+    /// When enabled, upstream messages are queued per session and written to the client asynchronously.
+    /// The next upstream frame is demanded only while the queue depth is below the high watermark;
+    /// once reached, reading resumes after the queue drains to the low watermark.
+    /// In the other direction, the client read is held while too many client messages wait for their upstream write.
+    public static class Backpressure {
+
+        private boolean enabled = false;
+        private int highWatermark = 64;
+        private int lowWatermark = 16;
+        /// Client messages handed to the upstream session but not written yet, beyond which the client read is held,
+        /// see [UpstreamWriteWindow].
+        private int maxPendingUpstreamWrites = 64;
+        private DataSize maxPendingUpstreamBytes = DataSize.ofMegabytes(1);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getHighWatermark() {
+            return highWatermark;
+        }
+
+        public void setHighWatermark(int highWatermark) {
+            this.highWatermark = highWatermark;
+        }
+
+        public int getLowWatermark() {
+            return lowWatermark;
+        }
+
+        public void setLowWatermark(int lowWatermark) {
+            this.lowWatermark = lowWatermark;
+        }
+
+        public int getMaxPendingUpstreamWrites() {
+            return maxPendingUpstreamWrites;
+        }
+
+        public void setMaxPendingUpstreamWrites(int maxPendingUpstreamWrites) {
+            this.maxPendingUpstreamWrites = maxPendingUpstreamWrites;
+        }
+
+        public DataSize getMaxPendingUpstreamBytes() {
+            return maxPendingUpstreamBytes;
+        }
+
+        public void setMaxPendingUpstreamBytes(DataSize maxPendingUpstreamBytes) {
+            this.maxPendingUpstreamBytes = maxPendingUpstreamBytes;
+        }
+    }
+
+    /// `permessage-deflate` negotiation of the two legs.
+    /// The client's extension offer and the upstream's answer are never copied between the handshakes,
+    /// each leg negotiates its own extensions according to the mode.
+    public static class Compression {
+
+        private Mode mode = Mode.DISABLED;
+        /// Request `client_no_context_takeover` from the client when the gateway terminates compression,
+        /// so the gateway keeps no inflater window per connection between messages.
+        private boolean clientNoContextTakeover = false;
+        /// Use `server_no_context_takeover` when the gateway terminates compression,
+        /// so the gateway keeps no deflater window per connection between messages.
+        private boolean serverNoContextTakeover = false;
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public void setMode(Mode mode) {
+            this.mode = mode;
+        }
+
+        public boolean isClientNoContextTakeover() {
+            return clientNoContextTakeover;
+        }
+
+        public void setClientNoContextTakeover(boolean clientNoContextTakeover) {
+            this.clientNoContextTakeover = clientNoContextTakeover;
+        }
+
+        public boolean isServerNoContextTakeover() {
+            return serverNoContextTakeover;
+        }
+
+        public void setServerNoContextTakeover(boolean serverNoContextTakeover) {
+            this.serverNoContextTakeover = serverNoContextTakeover;
+        }
+
+        public enum Mode {
+            /// The client's `permessage-deflate` offer is forwarded to the upstream and the client leg accepts exactly
+            /// the parameters the upstream accepted, so both legs are compressed with the same settings or not at all.
+            /// Jetty only hands out inflated payloads, so the gateway inflates and deflates every message again on each leg.
+            MIRROR,
+            /// Compression is negotiated only on the client leg with the configured context takeover parameters,
+            /// the upstream leg is uncompressed. Suited to upstreams on a fast local network.
+            TERMINATE,
+            /// No extension is negotiated on either leg, the default.
+            DISABLED
+        }
+    }
+
+    /// Handshake headers copied between the legs, see [HandshakeHeaderTranslator].
+    /// Hop-by-hop and per-leg negotiated headers are never copied, whatever the rules.
+    public static class Headers {
+
+        /// Client request headers copied to the upstream handshake.
+        private final HeaderRules request = new HeaderRules();
+        /// Upstream response headers copied to the client handshake.
+        private final HeaderRules response = new HeaderRules();
+
+        public HeaderRules getRequest() {
+            return request;
+        }
+
+        public HeaderRules getResponse() {
+            return response;
+        }
+    }
+
+    /// Header names are matched case-insensitively, `deny` taking precedence over `rename` and `allow`.
+    public static class HeaderRules {
+
+        /// When not empty, only these headers, the renamed ones and the WebSocket subprotocol and version headers are copied.
+        private List<String> allow = new ArrayList<>();
+        /// Headers that are not copied.
+        private List<String> deny = new ArrayList<>();
+        /// Headers copied under another name.
+        private Map<String, String> rename = new LinkedHashMap<>();
+
+        public List<String> getAllow() {
+            return allow;
+        }
+
+        public void setAllow(List<String> allow) {
+            this.allow = allow;
+        }
+
+        public List<String> getDeny() {
+            return deny;
+        }
+
+        public void setDeny(List<String> deny) {
+            this.deny = deny;
+        }
+
+        public Map<String, String> getRename() {
+            return rename;
+        }
+
+        public void setRename(Map<String, String> rename) {
+            this.rename = rename;
+        }
+    }
+
+    /// Pool of upstream instances the route's sessions are spread over, see [UpstreamLoadBalancer].
+    public static class LoadBalancing {
+
+        /// Upstream instances, e.g. `ws://localhost:8180`. The route's own `uri` is used when empty.
+        private List<URI> upstreams = new ArrayList<>();
+        private Strategy strategy = Strategy.LEAST_ACTIVE_SESSIONS;
+        /// Where the consistent-hash affinity key is read from.
+        private final AffinityKey affinityKey = new AffinityKey();
+        /// Points per instance on the consistent-hash ring, more points spread the keys more evenly.
+        private int virtualNodes = 160;
+
+        public List<URI> getUpstreams() {
+            return upstreams;
+        }
+
+        public void setUpstreams(List<URI> upstreams) {
+            this.upstreams = upstreams;
+        }
+
+        public Strategy getStrategy() {
+            return strategy;
+        }
+
+        public void setStrategy(Strategy strategy) {
+            this.strategy = strategy;
+        }
+
+        public AffinityKey getAffinityKey() {
+            return affinityKey;
+        }
+
+        public int getVirtualNodes() {
+            return virtualNodes;
+        }
+
+        public void setVirtualNodes(int virtualNodes) {
+            this.virtualNodes = virtualNodes;
+        }
+
+        public enum Strategy {
+            /// The instance with the fewest sessions currently proxied by this gateway.
+            LEAST_ACTIVE_SESSIONS,
+            /// The instance owning the request's affinity key on a consistent-hash ring,
+            /// falling back to the least active sessions for requests without the key.
+            CONSISTENT_HASH
+        }
+    }
+
+    public static class AffinityKey {
+
+        private Source source = Source.HEADER;
+        private String name;
+
+        public Source getSource() {
+            return source;
+        }
+
+        public void setSource(Source source) {
+            this.source = source;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public enum Source {
+            HEADER,
+            QUERY_PARAMETER,
+            COOKIE
+        }
+    }
+
+    /// Gradual closing of proxied sessions, see [WebSocketDrainController].
+    public static class Drain {
+
+        /// Session pairs closed per second, shared by all drains and sheds.
+        private int rate = 50;
+        /// Bounds of the random reconnect delay hinted to the clients of closed sessions and to rejected handshakes.
+        private Duration reconnectHintMin = Duration.ofSeconds(1);
+        private Duration reconnectHintMax = Duration.ofSeconds(30);
+        /// Maximum time a gateway shutdown waits for its sessions to drain, the remaining ones are dropped afterward.
+        /// Must fit in `spring.lifecycle.timeout-per-shutdown-phase`.
+        private Duration timeout = Duration.ofSeconds(25);
+        /// Share above the fair number of sessions an upstream instance may hold before a rebalance sheds its excess.
+        private double rebalanceTolerance = 0.1;
+
+        public int getRate() {
+            return rate;
+        }
+
+        public void setRate(int rate) {
+            this.rate = rate;
+        }
+
+        public Duration getReconnectHintMin() {
+            return reconnectHintMin;
+        }
+
+        public void setReconnectHintMin(Duration reconnectHintMin) {
+            this.reconnectHintMin = reconnectHintMin;
+        }
+
+        public Duration getReconnectHintMax() {
+            return reconnectHintMax;
+        }
+
+        public void setReconnectHintMax(Duration reconnectHintMax) {
+            this.reconnectHintMax = reconnectHintMax;
+        }
+
+        public Duration getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(Duration timeout) {
+            this.timeout = timeout;
+        }
+
+        public double getRebalanceTolerance() {
+            return rebalanceTolerance;
+        }
+
+        public void setRebalanceTolerance(double rebalanceTolerance) {
+            this.rebalanceTolerance = rebalanceTolerance;
+        }
+    }
+
+    /// Per upstream instance handshake circuit breaker, see [UpstreamCircuitBreakers].
+    public static class CircuitBreaker {
+
+        private boolean enabled = true;
+        /// Number of the latest handshakes the failure rate is computed over.
+        private int windowSize = 20;
+        /// Handshakes to record before the circuit may open.
+        private int minimumHandshakes = 10;
+        /// Share of failed or slow handshakes in the window that opens the circuit.
+        private double failureRateThreshold = 0.5;
+        /// Successful handshakes taking longer are counted as failed.
+        private Duration slowHandshakeThreshold = Duration.ofSeconds(5);
+        /// Time handshakes are rejected once the circuit opens, before probing the upstream again.
+        private Duration openDuration = Duration.ofSeconds(10);
+        /// Concurrent probe handshakes let through while half-open.
+        private int halfOpenProbes = 1;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getWindowSize() {
+            return windowSize;
+        }
+
+        public void setWindowSize(int windowSize) {
+            this.windowSize = windowSize;
+        }
+
+        public int getMinimumHandshakes() {
+            return minimumHandshakes;
+        }
+
+        public void setMinimumHandshakes(int minimumHandshakes) {
+            this.minimumHandshakes = minimumHandshakes;
+        }
+
+        public double getFailureRateThreshold() {
+            return failureRateThreshold;
+        }
+
+        public void setFailureRateThreshold(double failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+        }
+
+        public Duration getSlowHandshakeThreshold() {
+            return slowHandshakeThreshold;
+        }
+
+        public void setSlowHandshakeThreshold(Duration slowHandshakeThreshold) {
+            this.slowHandshakeThreshold = slowHandshakeThreshold;
+        }
+
+        public Duration getOpenDuration() {
+            return openDuration;
+        }
+
+        public void setOpenDuration(Duration openDuration) {
+            this.openDuration = openDuration;
+        }
+
+        public int getHalfOpenProbes() {
+            return halfOpenProbes;
+        }
+
+        public void setHalfOpenProbes(int halfOpenProbes) {
+            this.halfOpenProbes = halfOpenProbes;
+        }
+    }
+
+    /// TLS of the `wss://` upstream connections, shared by all routes because the Jetty client is, see [UpstreamTls].
+    public static class Tls {
+
+        /// Name of the `spring.ssl.bundle` holding the trust and key material, its `options` restricting the ciphers
+        /// and protocols. The JDK trust store is used when unset.
+        private String bundle;
+        /// JSSE provider of the TLS implementation, e.g. `Conscrypt` once registered with `java.security.Security`,
+        /// the JDK default provider when unset.
+        private String provider;
+        /// Verify that the upstream certificate matches the upstream host.
+        private boolean verifyHostname = true;
+        /// TLS sessions kept for resumption, across all upstream instances.
+        private int sessionCacheSize = 20480;
+        /// Time a TLS session may be resumed after its full handshake.
+        private Duration sessionTimeout = Duration.ofHours(24);
+
+        public String getBundle() {
+            return bundle;
+        }
+
+        public void setBundle(String bundle) {
+            this.bundle = bundle;
+        }
+
+        public String getProvider() {
+            return provider;
+        }
+
+        public void setProvider(String provider) {
+            this.provider = provider;
+        }
+
+        public boolean isVerifyHostname() {
+            return verifyHostname;
+        }
+
+        public void setVerifyHostname(boolean verifyHostname) {
+            this.verifyHostname = verifyHostname;
+        }
+
+        public int getSessionCacheSize() {
+            return sessionCacheSize;
+        }
+
+        public void setSessionCacheSize(int sessionCacheSize) {
+            this.sessionCacheSize = sessionCacheSize;
+        }
+
+        public Duration getSessionTimeout() {
+            return sessionTimeout;
+        }
+
+        public void setSessionTimeout(Duration sessionTimeout) {
+            this.sessionTimeout = sessionTimeout;
+        }
+    }
+
+    /// When enabled, frames written to Jetty sessions are batched instead of flushed one by one, see [FrameBatch].
+    /// A batch is flushed once it holds `max-bytes` or at the latest `linger` after its first frame.
+    public static class Batching {
+
+        private boolean enabled = false;
+        private int maxBytes = 16 * 1024;
+        /// Latency cap of a batched frame.
+        private Duration linger = Duration.ofNanos(200_000);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public Duration getLinger() {
+            return linger;
+        }
+
+        public void setLinger(Duration linger) {
+            this.linger = linger;
+        }
+    }
+
+    /// When enabled, clients of the route subscribing with the same path, query string and subscription key share one upstream
+    /// session, see [FanOutSubscription]. The key is read like the load-balancing affinity key; without a name, the path and
+    /// query string alone are the key. Fan-out routes cannot enable [Keepalive].
+    public static class FanOut {
+
+        private boolean enabled = false;
+        private final AffinityKey subscriptionKey = new AffinityKey();
+        /// Upstream messages a subscriber may have waiting to be written before it is closed as too slow.
+        private int maxPendingMessages = 256;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public AffinityKey getSubscriptionKey() {
+            return subscriptionKey;
+        }
+
+        public int getMaxPendingMessages() {
+            return maxPendingMessages;
+        }
+
+        public void setMaxPendingMessages(int maxPendingMessages) {
+            this.maxPendingMessages = maxPendingMessages;
+        }
+    }
+
+    /// When enabled, the gateway keeps each leg alive itself, see [KeepaliveWheel]: pings are answered on the leg they arrive on
+    /// instead of being relayed, and pongs are consumed by the gateway.
+    public static class Keepalive {
+
+        private boolean enabled = false;
+        /// Time without reads on a leg after which the gateway pings its peer, and between the following pings.
+        private Duration pingInterval = Duration.ofSeconds(30);
+        /// Time without reads on a leg after which its session pair is closed.
+        private Duration idleTimeout = Duration.ofSeconds(90);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getPingInterval() {
+            return pingInterval;
+        }
+
+        public void setPingInterval(Duration pingInterval) {
+            this.pingInterval = pingInterval;
+        }
+
+        public Duration getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(Duration idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+    }
+
+    /// Resource limits of a route, enforced by [WebSocketAdmissionControl].
+    public static class Limits {
+
+        /// Concurrent client sessions of the route, `0` for no limit. Handshakes beyond it are answered with `503`.
+        private int maxSessions = 0;
+        /// Maximum message size and, for streaming routes, frame size on both legs, Jetty's defaults when not set.
+        /// Larger messages close the session pair with `1009 Message Too Big`.
+        private DataSize maxMessageSize;
+        /// Payload a session pair may hold buffered, e.g. in the client outbound queue, before it is closed with `1013 Try Again Later`.
+        private DataSize maxBufferedBytes = DataSize.ofMegabytes(4);
+
+        public int getMaxSessions() {
+            return maxSessions;
+        }
+
+        public void setMaxSessions(int maxSessions) {
+            this.maxSessions = maxSessions;
+        }
+
+        public DataSize getMaxMessageSize() {
+            return maxMessageSize;
+        }
+
+        public void setMaxMessageSize(DataSize maxMessageSize) {
+            this.maxMessageSize = maxMessageSize;
+        }
+
+        public DataSize getMaxBufferedBytes() {
+            return maxBufferedBytes;
+        }
+
+        public void setMaxBufferedBytes(DataSize maxBufferedBytes) {
+            this.maxBufferedBytes = maxBufferedBytes;
+        }
+    }
+
+    /// Token bucket limits of the messages each client sends to the upstream, enforced by [ClientRateLimiter].
+    /// A rate of `0`, or no `bytes-per-second`, does not limit.
+    public static class RateLimit {
+
+        private boolean enabled = false;
+        private int messagesPerSecond = 0;
+        private DataSize bytesPerSecond;
+        /// Time worth of tokens a client may use at once after being quiet. Must exceed the time worth of bytes
+        /// of the largest message, otherwise the `close` policy rejects it.
+        private Duration burst = Duration.ofSeconds(1);
+        /// Who shares the buckets, each session on its own by default.
+        private final ClientKey clientKey = new ClientKey();
+        private Policy policy = Policy.DELAY;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMessagesPerSecond() {
+            return messagesPerSecond;
+        }
+
+        public void setMessagesPerSecond(int messagesPerSecond) {
+            this.messagesPerSecond = messagesPerSecond;
+        }
+
+        public DataSize getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        public void setBytesPerSecond(DataSize bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public Duration getBurst() {
+            return burst;
+        }
+
+        public void setBurst(Duration burst) {
+            this.burst = burst;
+        }
+
+        public ClientKey getClientKey() {
+            return clientKey;
+        }
+
+        public Policy getPolicy() {
+            return policy;
+        }
+
+        public void setPolicy(Policy policy) {
+            this.policy = policy;
+        }
+
+        public enum Policy {
+            /// Over-limit messages are held until their tokens are available, holding the client read meanwhile.
+            DELAY,
+            /// Over-limit messages close the session pair with `1008 Policy Violation`.
+            CLOSE
+        }
+    }
+
+    /// Who shares a rate limit's buckets. Sessions without the header or principal are limited on their own.
+    public static class ClientKey {
+
+        private Source source = Source.SESSION;
+        /// Header name of the `header` source.
+        private String name;
+
+        public Source getSource() {
+            return source;
+        }
+
+        public void setSource(Source source) {
+            this.source = source;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public enum Source {
+            SESSION,
+            HEADER,
+            REMOTE_ADDRESS,
+            PRINCIPAL
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.marbor.gateway.websocket;
+
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/// Live proxied session pairs of all routes, from the completed upstream handshake until the pair is closed.
+@Component
+public class WebSocketProxySessionRegistry {
+
+    private final Map<SessionPair, ProxiedSession> sessions = new ConcurrentHashMap<>();
+
+    public ProxiedSession register(String routeId, URI upstreamUrl, SessionPair sessionPair) {
+        var session = new ProxiedSession(routeId, upstreamUrl, sessionPair);
+        sessions.put(sessionPair, session);
+        sessionPair.getClosed().thenRun(() -> sessions.remove(sessionPair));
+        return session;
+    }
+
+    public Stream<ProxiedSession> sessions() {
+        return sessions.values().stream();
+    }
+
+    public Stream<ProxiedSession> sessions(String routeId) {
+        return sessions().filter(session -> session.getRouteId().equals(routeId));
+    }
+
+    public boolean isEmpty() {
+        return sessions.isEmpty();
+    }
+
+    public static final class ProxiedSession {
+
+        private final String routeId;
+        private final URI upstreamUrl;
+        private final SessionPair sessionPair;
+        private final AtomicBoolean closing = new AtomicBoolean();
+
+        private ProxiedSession(String routeId, URI upstreamUrl, SessionPair sessionPair) {
+            this.routeId = routeId;
+            this.upstreamUrl = upstreamUrl;
+            this.sessionPair = sessionPair;
+        }
+
+        public String getRouteId() {
+            return routeId;
+        }
+
+        /// `host:port` of the upstream instance.
+        public String getUpstream() {
+            return upstreamUrl.getAuthority();
+        }
+
+        /// Closes the pair unless it is already being closed by the gateway or closed on its own, e.g. by a peer
+        /// while queued for a drain.
+        /// @return whether this call closed it
+        public boolean close(int statusCode, String reason) {
+            if (!closing.compareAndSet(false, true) || sessionPair.getClosed().isDone()) {
+                return false;
+            }
+            sessionPair.closePair(statusCode, reason);
+            return true;
+        }
+
+        public SessionActivity getActivity() {
+            return sessionPair.getActivity();
+        }
+
+        public int getBacklog() {
+            return sessionPair.getBacklog();
+        }
+
+        public boolean isClosing() {
+            return closing.get();
+        }
+    }
+}
@@ -2,58 +2,64 @@ package com.marbor.gateway.websocket;
 
 import org.eclipse.jetty.client.Request;
 import org.eclipse.jetty.client.Response;
-import org.eclipse.jetty.http.HttpField;
 import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpVersion;
 import org.eclipse.jetty.websocket.client.JettyUpgradeListener;
 
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-
+/// Captures the upstream handshake response.
+/// Jetty notifies it before the upstream session is opened, so the response is available once the connect future completes.
+/// It also sets the HTTP version of the handshake request, HTTP/2 making Jetty use an RFC 8441 extended `CONNECT`,
+/// and times the handshake with a [WebSocketProxyEvents.UpstreamHandshakeResponse] event while it is enabled.
 public class WebSocketUpgradeResponseListener implements JettyUpgradeListener {
 
-    private final CountDownLatch waitUntilListenerInvoked = new CountDownLatch(1);
-    private volatile Map<String, List<String>> headers;
+    private volatile HttpVersion httpVersion = HttpVersion.HTTP_1_1;
     private volatile Response response;
+    private volatile WebSocketProxyEvents.UpstreamHandshakeResponse handshakeEvent;
 
     @Override
-    public void onHandshakeResponse(Request request, Response response) {
-        HttpFields headers = response.getHeaders();
-        this.headers = map(headers);
-        this.response = response;
-        waitUntilListenerInvoked.countDown();
+    public void onHandshakeRequest(Request request) {
+        request.version(httpVersion);
+        handshakeEvent = WebSocketProxyEvents.upstreamHandshakeResponse(request.getURI(), httpVersion);
     }
 
-    public static Map<String, List<String>> map(HttpFields fields) {
-        if (fields == null) {
-            return new LinkedHashMap<>();
+    @Override
+    public void onHandshakeResponse(Request request, Response response) {
+        this.response = response;
+        WebSocketProxyEvents.UpstreamHandshakeResponse event = handshakeEvent;
+        if (event != null) {
+            event.commit(response.getStatus());
         }
-
-        return fields.stream()
-                .collect(Collectors.toMap(HttpField::getName, HttpField::getValueList));
     }
 
-    public Map<String, List<String>> getHandshakeHeaders() {
-        return new LinkedHashMap<>(headers);
+    /// The upstream response headers as received, copied to the client by [HandshakeHeaderTranslator.Policy#copyResponseHeaders].
+    public HttpFields getHandshakeHeaders() {
+        return response.getHeaders();
     }
 
     public int getHandshakeStatus() {
         return response.getStatus();
     }
 
+    /// The HTTP version the upstream answered with, which may differ from the version requested.
+    public HttpVersion getHandshakeVersion() {
+        return response.getVersion();
+    }
+
     public String getReason() {
         return response.getReason();
     }
 
-    public boolean awaitForHandshakeResponse(long timeout, TimeUnit timeUnit) {
-        try {
-            return this.waitUntilListenerInvoked.await(timeout, timeUnit);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Listener waiting interrupted", e);
-        }
+    public void setHttpVersion(HttpVersion httpVersion) {
+        this.httpVersion = httpVersion;
+    }
+
+    public boolean isHandshakeResponseReady() {
+        return response != null;
+    }
+
+    /// Takes over the response captured by the listener of another attempt of the same handshake.
+    void adopt(WebSocketUpgradeResponseListener attempt) {
+        this.httpVersion = attempt.httpVersion;
+        this.response = attempt.response;
     }
-}
\ No newline at end of file
+}
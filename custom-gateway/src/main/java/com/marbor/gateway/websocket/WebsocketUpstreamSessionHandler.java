@@ -2,8 +2,11 @@ package com.marbor.gateway.websocket;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.thread.Scheduler;
 import org.eclipse.jetty.websocket.api.Callback;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.BinaryMessage;
@@ -18,94 +21,325 @@ import org.springframework.web.socket.server.support.WebSocketHttpRequestHandler
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import static com.marbor.gateway.websocket.WebSocketHelper.payloadLength;
 import static com.marbor.gateway.websocket.WebSocketHelper.safeClose;
 
-
-public class WebsocketUpstreamSessionHandler implements Session.Listener.AutoDemanding {
+/// Gateway ↔ upstream leg of the [WebSocketProxyProperties.Engine#SPRING] engine.
+///
+/// Upstream frames are demanded explicitly: the first one once the client session is established,
+/// and each next one after the previous message was written to the client, or, with backpressure enabled,
+/// while the client outbound queue stays below its high watermark.
+///
+/// With [WebSocketProxyProperties.Keepalive] enabled, both legs are kept alive by the [KeepaliveWheel]: upstream pings are
+/// answered here and upstream pongs consumed, instead of being relayed to the client.
+///
+/// Jetty picks whole or partial message delivery from the listener methods an endpoint overrides,
+/// so each delivery mode has its own subclass, see [#create].
+public abstract class WebsocketUpstreamSessionHandler implements UpstreamSessionListener {
 
     private static final Logger log = LoggerFactory.getLogger(WebsocketUpstreamSessionHandler.class);
-    private final CountDownLatch waitUntilClientSessionReady = new CountDownLatch(1);
     private volatile WebSocketClientSessionHandler clientSessionHandler;
     private volatile Session upstreamSession;
-    private final HttpServletRequest httpServletRequest;
-    private final HttpServletResponse httpServletResponse;
+    private final WebSocketProxyProperties.Route routeProperties;
+    private final Executor executor;
+    private final Scheduler scheduler;
+    private final KeepaliveWheel keepaliveWheel;
+    private final WebSocketAdmissionControl.SessionBuffer sessionBuffer;
+    private final ClientRateLimiter.Limit rateLimit;
+    private final WebSocketFrameFilters.Chain frameFilters;
+    private final WebSocketProxyMetrics.Route metrics;
+    private final WebSocketProxyMetrics.Direction upstreamToClient;
+    private volatile ClientOutboundQueue outboundQueue;
+    private volatile KeepaliveWheel.Leg keepalive;
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private final SessionActivity activity = new SessionActivity();
 
-    public WebsocketUpstreamSessionHandler(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
-        this.httpServletRequest = httpServletRequest;
-        this.httpServletResponse = httpServletResponse;
+    protected WebsocketUpstreamSessionHandler(WebSocketProxyProperties.Route routeProperties, Executor executor, Scheduler scheduler,
+                                              KeepaliveWheel keepaliveWheel, WebSocketAdmissionControl.SessionBuffer sessionBuffer,
+                                              ClientRateLimiter.Limit rateLimit, WebSocketFrameFilters.Chain frameFilters,
+                                              WebSocketProxyMetrics.Route metrics) {
+        this.routeProperties = routeProperties;
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.keepaliveWheel = keepaliveWheel;
+        this.sessionBuffer = sessionBuffer;
+        this.rateLimit = rateLimit;
+        this.frameFilters = frameFilters;
+        this.metrics = metrics;
+        this.upstreamToClient = metrics.upstreamToClient();
+    }
+
+    /// @param scheduler flushes the upstream frame batches of routes with batching enabled
+    /// @param sessionBuffer counts the messages of the session pair waiting for a write
+    /// @param rateLimit limits the client messages, `null` when the route is not rate limited
+    /// @param frameFilters filters the messages of the session pair, `null` when the route has no filters
+    public static WebsocketUpstreamSessionHandler create(WebSocketProxyProperties.Route routeProperties, Executor executor, Scheduler scheduler,
+                                                         KeepaliveWheel keepaliveWheel, WebSocketAdmissionControl.SessionBuffer sessionBuffer,
+                                                         ClientRateLimiter.Limit rateLimit, WebSocketFrameFilters.Chain frameFilters,
+                                                         WebSocketProxyMetrics.Route metrics) {
+        if (routeProperties.isStreaming()) {
+            return new Streaming(routeProperties, executor, scheduler, keepaliveWheel, sessionBuffer, rateLimit, frameFilters, metrics);
+        }
+        return new WholeMessages(routeProperties, executor, scheduler, keepaliveWheel, sessionBuffer, rateLimit, frameFilters, metrics);
     }
 
     @Override
     public void onWebSocketOpen(Session session) {
         this.upstreamSession = session;
-        this.clientSessionHandler = new WebSocketClientSessionHandler(session);
-        final var webSocketHttpRequestHandler = new WebSocketHttpRequestHandler(clientSessionHandler, new DefaultHandshakeHandler());
+        WebSocketAdmissionControl.limitMessageSize(session, routeProperties.getLimits());
+        if (routeProperties.getBackpressure().isEnabled()) {
+            this.outboundQueue = new ClientOutboundQueue(routeProperties.getBackpressure(), executor, session::demand, this::sendToClient);
+        }
+        FrameBatch upstreamBatch = FrameBatch.create(session, routeProperties.getBatching(), scheduler);
+        this.clientSessionHandler = new WebSocketClientSessionHandler(session, upstreamBatch, sessionBuffer, rateLimit, frameFilters,
+                activity, routeProperties, keepaliveWheel, metrics);
+        this.keepalive = keepaliveWheel.register(routeProperties.getKeepalive(),
+                () -> session.sendPing(BufferUtil.EMPTY_BUFFER, Callback.NOOP),
+                () -> closePair(StatusCode.SHUTDOWN, "Upstream idle timeout"));
+        if (keepalive != null) {
+            session.setIdleTimeout(routeProperties.getKeepalive().getIdleTimeout().plus(KeepaliveWheel.TICK));
+        }
+    }
+
+    @Override
+    public void upgradeClient(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+        var upgradeStrategy = new JettyExtensionNegotiatingUpgradeStrategy(clientOffer -> CompressionNegotiation.clientAccept(
+                routeProperties.getCompression(), clientOffer, upstreamSession.getUpgradeResponse().getExtensions()));
+        final var webSocketHttpRequestHandler = new WebSocketHttpRequestHandler(clientSessionHandler, new DefaultHandshakeHandler(upgradeStrategy));
         try {
             webSocketHttpRequestHandler.handleRequest(httpServletRequest, httpServletResponse);
         } catch (Exception e) {
             throw new RuntimeException("Problem occurred when client <-> gateway connection upgrade", e);
-        } finally {
-            waitUntilClientSessionReady.countDown();
         }
     }
 
     @Override
     public void onWebSocketPing(ByteBuffer payload) {
-        forwardToClient(new PingMessage(payload));
+        if (keepalive != null) {
+            keepalive.read();
+            upstreamSession.sendPong(BufferUtil.copy(payload), Callback.NOOP);
+            upstreamSession.demand();
+            return;
+        }
+        // the payload is only valid during the callback, the message may be queued for the client
+        forwardToClient(new PingMessage(BufferUtil.copy(payload)), Callback.NOOP);
     }
 
     @Override
     public void onWebSocketPong(ByteBuffer payload) {
-        forwardToClient(new PongMessage(payload));
+        if (keepalive != null) {
+            keepalive.read();
+            upstreamSession.demand();
+            return;
+        }
+        forwardToClient(new PongMessage(BufferUtil.copy(payload)), Callback.NOOP);
     }
 
-    @Override
-    public void onWebSocketText(String message) {
-        forwardToClient(new TextMessage(message));
+    protected void forwardToClient(WebSocketMessage<?> upstreamMessage, Callback callback) {
+        KeepaliveWheel.Leg upstreamKeepalive = keepalive;
+        if (upstreamKeepalive != null) {
+            upstreamKeepalive.read();
+        }
+        WebSocketSession clientSession = clientSessionHandler.getClientSession();
+        if (clientSession == null || !clientSession.isOpen()) {
+            log.warn("Client gateway WebSocket session missing/closed for the gateway upstrea {}", upstreamSession.getUpgradeRequest());
+            callback.succeed();
+            upstreamSession.close();
+            return;
+        }
+        WebSocketMessage<?> message = frameFilters != null ? filter(upstreamMessage, callback) : upstreamMessage;
+        if (message == null) {
+            return;
+        }
+        int payloadLength = payloadLength(message);
+        upstreamToClient.relayed(payloadLength);
+        activity.upstreamToClient(payloadLength);
+        if (outboundQueue != null) {
+            if (!sessionBuffer.added(payloadLength)) {
+                sessionBuffer.removed(payloadLength);
+                callback.succeed();
+                closePair(StatusCode.TRY_AGAIN_LATER, "Gateway buffer limit exceeded");
+                return;
+            }
+            outboundQueue.enqueue(message, Callback.from(() -> {
+                sessionBuffer.removed(payloadLength);
+                callback.succeed();
+            }, failure -> {
+                sessionBuffer.removed(payloadLength);
+                callback.fail(failure);
+            }));
+            metrics.outboundQueueDepth(outboundQueue.getDepth());
+        } else {
+            sendToClient(message, callback);
+            upstreamSession.demand();
+        }
     }
 
-    @Override
-    public void onWebSocketBinary(ByteBuffer payload, Callback callback) {
-        forwardToClient(new BinaryMessage(payload));
-        callback.succeed();
+    /// @return the message to forward, `null` when a filter dropped it, the next upstream frame being demanded,
+    /// or rejected it, closing the session pair
+    private WebSocketMessage<?> filter(WebSocketMessage<?> message, Callback callback) {
+        try {
+            WebSocketMessage<?> filtered = frameFilters.filterMessage(WebSocketFrameFilter.Direction.UPSTREAM_TO_CLIENT, message);
+            if (filtered == null) {
+                callback.succeed();
+                upstreamSession.demand();
+            }
+            return filtered;
+        } catch (WebSocketFrameFilter.Rejected rejected) {
+            callback.succeed();
+            closePair(rejected.getStatusCode(), rejected.getMessage());
+            return null;
+        }
     }
 
-    private void forwardToClient(WebSocketMessage<?> message) {
+    private void sendToClient(WebSocketMessage<?> message, Callback callback) {
         WebSocketSession clientSession = clientSessionHandler.getClientSession();
-        if (clientSession == null || !clientSession.isOpen()) {
-            log.warn("Client gateway WebSocket session missing/closed for the gateway upstrea {}", upstreamSession.getUpgradeRequest());
-            upstreamSession.close();
+        if (!clientSession.isOpen()) {
+            callback.succeed();
             return;
         }
         try {
+            long startNanos = System.nanoTime();
             clientSession.sendMessage(message);
+            upstreamToClient.sendCompleted(startNanos);
+            callback.succeed();
         } catch (IOException e) {
-            throw new RuntimeException("Failed to send WebSocket message", e);
+            log.error("Failed to send WebSocket message to the client for the gateway upstream {}", upstreamSession.getUpgradeRequest(), e);
+            callback.fail(e);
+            upstreamSession.close(CloseStatus.SERVER_ERROR.getCode(), e.getLocalizedMessage(), Callback.NOOP);
+            safeClose(clientSession, CloseStatus.SERVER_ERROR);
         }
     }
 
     @Override
     public void onWebSocketError(Throwable exception) {
-        log.error("Transport error on gateway <-> upstream {}", upstreamSession.getUpgradeRequest(), exception);
-        upstreamSession.close();
-        safeClose(clientSessionHandler.getClientSession(), CloseStatus.SERVER_ERROR);
+        Session session = upstreamSession;
+        if (session == null) {
+            // a failed handshake attempt, answered by the exchange handler, which may retry it with this listener
+            log.debug("Gateway <-> upstream handshake attempt failed", exception);
+            return;
+        }
+        log.error("Transport error on gateway <-> upstream {}", session.getUpgradeRequest(), exception);
+        cancelKeepalive();
+        session.close();
+        closeClient(CloseStatus.SERVER_ERROR);
+        closed.complete(null);
     }
 
     @Override
     public void onWebSocketClose(int statusCode, String reason, Callback callback) {
-        safeClose(clientSessionHandler.getClientSession(), new CloseStatus(statusCode, reason));
+        cancelKeepalive();
+        closeClient(new CloseStatus(statusCode, reason));
         callback.succeed();
+        closed.complete(null);
     }
 
-    public boolean awaitWebsocketProxyingReady(long timeout, TimeUnit timeUnit) {
-        try {
-            return waitUntilClientSessionReady.await(timeout, timeUnit);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("WebSocket proxying setup interrupted", e);
+    @Override
+    public void handshakeFailed() {
+        closed.complete(null);
+    }
+
+    /// Closes the client session, if the client connection was upgraded already.
+    private void closeClient(CloseStatus closeStatus) {
+        WebSocketClientSessionHandler handler = clientSessionHandler;
+        WebSocketSession clientSession = handler != null ? handler.getClientSession() : null;
+        if (clientSession != null) {
+            safeClose(clientSession, closeStatus);
+        }
+    }
+
+    private void cancelKeepalive() {
+        KeepaliveWheel.Leg upstreamKeepalive = keepalive;
+        if (upstreamKeepalive != null) {
+            upstreamKeepalive.cancel();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> getClosed() {
+        return closed;
+    }
+
+    @Override
+    public void closePair(int statusCode, String reason) {
+        WebSocketClientSessionHandler handler = clientSessionHandler;
+        WebSocketSession clientSession = handler != null ? handler.getClientSession() : null;
+        if (clientSession != null && clientSession.isOpen()) {
+            safeClose(clientSession, new CloseStatus(statusCode, reason));
+        } else if (upstreamSession != null) {
+            upstreamSession.close(statusCode, reason, Callback.NOOP);
+        }
+    }
+
+    @Override
+    public SessionActivity getActivity() {
+        return activity;
+    }
+
+    @Override
+    public int getBacklog() {
+        return getOutboundQueueDepth() + getPendingUpstreamWrites();
+    }
+
+    WebSocketClientSessionHandler getClientSessionHandler() {
+        return clientSessionHandler;
+    }
+
+    /// Number of upstream messages waiting to be written to the client, always `0` without backpressure.
+    public int getOutboundQueueDepth() {
+        ClientOutboundQueue queue = this.outboundQueue;
+        return queue != null ? queue.getDepth() : 0;
+    }
+
+    /// Number of client messages waiting for their upstream write, always `0` without backpressure.
+    public int getPendingUpstreamWrites() {
+        WebSocketClientSessionHandler handler = this.clientSessionHandler;
+        return handler != null ? handler.getPendingUpstreamWrites() : 0;
+    }
+
+    /// Relays whole messages, aggregated by Jetty up to the session's maximum message size.
+    public static class WholeMessages extends WebsocketUpstreamSessionHandler {
+
+        WholeMessages(WebSocketProxyProperties.Route routeProperties, Executor executor, Scheduler scheduler, KeepaliveWheel keepaliveWheel,
+                      WebSocketAdmissionControl.SessionBuffer sessionBuffer, ClientRateLimiter.Limit rateLimit,
+                      WebSocketFrameFilters.Chain frameFilters, WebSocketProxyMetrics.Route metrics) {
+            super(routeProperties, executor, scheduler, keepaliveWheel, sessionBuffer, rateLimit, frameFilters, metrics);
+        }
+
+        @Override
+        public void onWebSocketText(String message) {
+            forwardToClient(new TextMessage(message), Callback.NOOP);
+        }
+
+        /// The payload is Jetty's pooled read buffer and is relayed to the client without copying.
+        /// The callback, which releases the buffer, completes only once the client write has finished.
+        @Override
+        public void onWebSocketBinary(ByteBuffer payload, Callback callback) {
+            forwardToClient(new BinaryMessage(payload), callback);
+        }
+    }
+
+    /// Relays every frame, including continuation frames, as soon as it arrives,
+    /// so per-session memory is bounded by the frame size instead of the message size.
+    public static class Streaming extends WebsocketUpstreamSessionHandler {
+
+        Streaming(WebSocketProxyProperties.Route routeProperties, Executor executor, Scheduler scheduler, KeepaliveWheel keepaliveWheel,
+                  WebSocketAdmissionControl.SessionBuffer sessionBuffer, ClientRateLimiter.Limit rateLimit,
+                  WebSocketFrameFilters.Chain frameFilters, WebSocketProxyMetrics.Route metrics) {
+            super(routeProperties, executor, scheduler, keepaliveWheel, sessionBuffer, rateLimit, frameFilters, metrics);
+        }
+
+        @Override
+        public void onWebSocketPartialText(String payload, boolean last) {
+            forwardToClient(new TextMessage(payload, last), Callback.NOOP);
+        }
+
+        @Override
+        public void onWebSocketPartialBinary(ByteBuffer payload, boolean last, Callback callback) {
+            forwardToClient(new BinaryMessage(payload, last), callback);
         }
     }
 }
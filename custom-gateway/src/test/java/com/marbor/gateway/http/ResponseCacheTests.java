@@ -0,0 +1,206 @@
+package com.marbor.gateway.http;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.servlet.function.HandlerFilterFunction;
+import org.springframework.web.servlet.function.HandlerFunction;
+import org.springframework.web.servlet.function.ServerRequest;
+import org.springframework.web.servlet.function.ServerResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/// Hits, revalidations, coalescing and eviction of the [ResponseCache] filter, in front of a fake upstream.
+class ResponseCacheTests {
+
+    private static final ServerResponse.Context NO_CONVERTERS = List::of;
+    private final HttpProxyProperties properties = new HttpProxyProperties();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<ServerRequest> upstreamRequests = new ArrayList<>();
+
+    @AfterEach
+    void resetRequestAttributes() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    void servesFreshResponsesFromTheCache() throws Exception {
+        HandlerFilterFunction<ServerResponse, ServerResponse> cache = cache();
+        HandlerFunction<ServerResponse> upstream = upstream("max-age=60", null);
+
+        MockHttpServletResponse miss = exchange(cache, get("/items"), upstream);
+        MockHttpServletResponse hit = exchange(cache, get("/items"), upstream);
+
+        assertThat(upstreamRequests).hasSize(1);
+        assertThat(miss.getContentAsString()).isEqualTo("/items");
+        assertThat(hit.getStatus()).isEqualTo(200);
+        assertThat(hit.getContentAsString()).isEqualTo("/items");
+        assertThat(hit.getHeader(HttpHeaders.AGE)).isNotNull();
+        assertThat(requests("hit")).isEqualTo(1);
+        assertThat(requests("miss")).isEqualTo(1);
+    }
+
+    @Test
+    void doesNotCacheRequestsWithCredentials() throws Exception {
+        HandlerFilterFunction<ServerResponse, ServerResponse> cache = cache();
+        HandlerFunction<ServerResponse> upstream = upstream("max-age=60", null);
+        MockHttpServletRequest authorized = get("/items");
+        authorized.addHeader(HttpHeaders.AUTHORIZATION, "Bearer token");
+
+        exchange(cache, authorized, upstream);
+        exchange(cache, get("/items"), upstream);
+
+        assertThat(upstreamRequests).hasSize(2);
+        assertThat(requests("bypassed")).isEqualTo(1);
+    }
+
+    @Test
+    void revalidatesStaleResponsesWithTheirETag() throws Exception {
+        HandlerFilterFunction<ServerResponse, ServerResponse> cache = cache();
+        HandlerFunction<ServerResponse> upstream = upstream("no-cache", "\"v1\"");
+
+        exchange(cache, get("/items"), upstream);
+        MockHttpServletResponse revalidated = exchange(cache, get("/items"), upstream);
+
+        assertThat(upstreamRequests).hasSize(2);
+        assertThat(upstreamRequests.get(1).headers().header(HttpHeaders.IF_NONE_MATCH)).containsExactly("\"v1\"");
+        assertThat(revalidated.getStatus()).isEqualTo(200);
+        assertThat(revalidated.getContentAsString()).isEqualTo("/items");
+        assertThat(requests("revalidated")).isEqualTo(1);
+    }
+
+    @Test
+    void answersMatchingClientETagsWithNotModified() throws Exception {
+        HandlerFilterFunction<ServerResponse, ServerResponse> cache = cache();
+        HandlerFunction<ServerResponse> upstream = upstream("max-age=60", "\"v1\"");
+        exchange(cache, get("/items"), upstream);
+        MockHttpServletRequest conditional = get("/items");
+        conditional.addHeader(HttpHeaders.IF_NONE_MATCH, "W/\"v1\"");
+
+        MockHttpServletResponse notModified = exchange(cache, conditional, upstream);
+
+        assertThat(upstreamRequests).hasSize(1);
+        assertThat(notModified.getStatus()).isEqualTo(HttpStatus.NOT_MODIFIED.value());
+        assertThat(notModified.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    void coalescesConcurrentMissesOfAKey() throws Exception {
+        HandlerFilterFunction<ServerResponse, ServerResponse> cache = cache();
+        HandlerFunction<ServerResponse> upstream = upstream("max-age=60", null);
+        MockHttpServletRequest first = get("/items");
+        ServerResponse loading = filter(cache, first, upstream);
+
+        var waiting = new CompletableFuture<MockHttpServletResponse>();
+        Thread waiter = Thread.ofPlatform().start(() -> {
+            try {
+                waiting.complete(exchange(cache, get("/items"), upstream));
+            } catch (Exception failure) {
+                waiting.completeExceptionally(failure);
+            }
+        });
+        while (waiter.getState() != Thread.State.TIMED_WAITING) {
+            assertThat(waiter.isAlive()).isTrue();
+            Thread.onSpinWait();
+        }
+        var firstResponse = new MockHttpServletResponse();
+        loading.writeTo(first, firstResponse, NO_CONVERTERS);
+
+        assertThat(waiting.get(5, TimeUnit.SECONDS).getContentAsString()).isEqualTo("/items");
+        assertThat(firstResponse.getContentAsString()).isEqualTo("/items");
+        assertThat(upstreamRequests).hasSize(1);
+        assertThat(requests("coalesced")).isEqualTo(1);
+    }
+
+    @Test
+    void endsTheLoadOfAResponseNeverWritten() throws Exception {
+        HandlerFilterFunction<ServerResponse, ServerResponse> cache = cache();
+        HandlerFunction<ServerResponse> upstream = upstream("max-age=60", null);
+        filter(cache, get("/items"), upstream);
+
+        ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).requestCompleted();
+        exchange(cache, get("/items"), upstream);
+
+        assertThat(upstreamRequests).hasSize(2);
+        assertThat(requests("coalesced")).isZero();
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedResponsesBeyondTheMaxSize() throws Exception {
+        properties.getRoutes().computeIfAbsent("api", routeId -> new HttpProxyProperties.Route()).getCache().setMaxSize(DataSize.ofBytes(5));
+        HandlerFilterFunction<ServerResponse, ServerResponse> cache = cache();
+        HandlerFunction<ServerResponse> upstream = upstream("max-age=60", null);
+
+        exchange(cache, get("/a"), upstream);
+        exchange(cache, get("/b"), upstream);
+        exchange(cache, get("/a"), upstream);
+        exchange(cache, get("/cc"), upstream);
+        assertThat(upstreamRequests).hasSize(3);
+
+        exchange(cache, get("/a"), upstream);
+        assertThat(upstreamRequests).hasSize(3);
+        exchange(cache, get("/b"), upstream);
+        assertThat(upstreamRequests).hasSize(4);
+        assertThat(meterRegistry.get("gateway.http.cache.evictions").counter().count()).isEqualTo(2);
+    }
+
+    private HandlerFilterFunction<ServerResponse, ServerResponse> cache() {
+        properties.getRoutes().computeIfAbsent("api", routeId -> new HttpProxyProperties.Route()).getCache().setEnabled(true);
+        return new ResponseCache(properties, meterRegistry).forRoute("api");
+    }
+
+    /// Answers with the request path as body, and `304` to a matching `If-None-Match`.
+    private HandlerFunction<ServerResponse> upstream(String cacheControl, String etag) {
+        return request -> {
+            synchronized (upstreamRequests) {
+                upstreamRequests.add(request);
+            }
+            if (etag != null && request.headers().header(HttpHeaders.IF_NONE_MATCH).contains(etag)) {
+                return ServerResponse.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+            }
+            ServerResponse.BodyBuilder response = ServerResponse.ok().header(HttpHeaders.CACHE_CONTROL, cacheControl);
+            if (etag != null) {
+                response.eTag(etag);
+            }
+            byte[] body = request.path().getBytes(StandardCharsets.UTF_8);
+            return response.build((servletRequest, servletResponse) -> {
+                servletResponse.getOutputStream().write(body);
+                return null;
+            });
+        };
+    }
+
+    private static ServerResponse filter(HandlerFilterFunction<ServerResponse, ServerResponse> cache, MockHttpServletRequest servletRequest,
+                                         HandlerFunction<ServerResponse> upstream) throws Exception {
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(servletRequest));
+        return cache.filter(ServerRequest.create(servletRequest, List.of()), upstream);
+    }
+
+    private static MockHttpServletResponse exchange(HandlerFilterFunction<ServerResponse, ServerResponse> cache, MockHttpServletRequest servletRequest,
+                                                    HandlerFunction<ServerResponse> upstream) throws Exception {
+        var servletResponse = new MockHttpServletResponse();
+        filter(cache, servletRequest, upstream).writeTo(servletRequest, servletResponse, NO_CONVERTERS);
+        return servletResponse;
+    }
+
+    private static MockHttpServletRequest get(String path) {
+        return new MockHttpServletRequest("GET", path);
+    }
+
+    private double requests(String outcome) {
+        return meterRegistry.get("gateway.http.cache.requests").tag("outcome", outcome).counter().count();
+    }
+}
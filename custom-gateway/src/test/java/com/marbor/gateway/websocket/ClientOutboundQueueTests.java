@@ -0,0 +1,98 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.websocket.api.Callback;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+/// Upstream demand and ordering of [ClientOutboundQueue], its drain task run by hand.
+class ClientOutboundQueueTests {
+
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final AtomicInteger demands = new AtomicInteger();
+    private final List<String> sent = new ArrayList<>();
+    private final ClientOutboundQueue queue = new ClientOutboundQueue(backpressure(3, 1), tasks::add, demands::incrementAndGet,
+            (message, callback) -> {
+                sent.add((String) message.getPayload());
+                callback.succeed();
+            });
+
+    @Test
+    void demandsTheNextFrameBelowTheHighWatermark() {
+        queue.enqueue(message("a"), Callback.NOOP);
+        queue.enqueue(message("b"), Callback.NOOP);
+
+        assertThat(demands).hasValue(2);
+        assertThat(queue.getDepth()).isEqualTo(2);
+        assertThat(sent).isEmpty();
+    }
+
+    @Test
+    void suspendsDemandAtTheHighWatermarkUntilTheLowWatermark() {
+        queue.enqueue(message("a"), Callback.NOOP);
+        queue.enqueue(message("b"), Callback.NOOP);
+        queue.enqueue(message("c"), Callback.NOOP);
+        assertThat(demands).hasValue(2);
+
+        runTasks();
+
+        assertThat(demands).hasValue(3);
+        assertThat(queue.getDepth()).isZero();
+    }
+
+    @Test
+    void writesTheMessagesInArrivalOrderWithASingleDrainTask() {
+        var written = new AtomicInteger();
+        Callback callback = new Callback() {
+            @Override
+            public void succeed() {
+                written.incrementAndGet();
+            }
+
+            @Override
+            public void fail(Throwable failure) {
+            }
+        };
+        queue.enqueue(message("a"), callback);
+        queue.enqueue(message("b"), callback);
+
+        assertThat(tasks).hasSize(1);
+        runTasks();
+
+        assertThat(sent).containsExactly("a", "b");
+        assertThat(written).hasValue(2);
+    }
+
+    @Test
+    void rejectsALowWatermarkNotBelowTheHighWatermark() {
+        assertThatIllegalArgumentException()
+                .isThrownBy(() -> new ClientOutboundQueue(backpressure(2, 2), Runnable::run, () -> {}, (message, callback) -> {}));
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private static WebSocketMessage<?> message(String payload) {
+        return new TextMessage(payload);
+    }
+
+    private static WebSocketProxyProperties.Backpressure backpressure(int highWatermark, int lowWatermark) {
+        var backpressure = new WebSocketProxyProperties.Backpressure();
+        backpressure.setHighWatermark(highWatermark);
+        backpressure.setLowWatermark(lowWatermark);
+        return backpressure;
+    }
+}
@@ -0,0 +1,142 @@
+package com.marbor.gateway.websocket;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.servlet.function.ServerRequest;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+/// GCRA buckets of [ClientRateLimiter], with rates low enough that the test's own run time does not refill them.
+class ClientRateLimiterTests {
+
+    private final ClientRateLimiter rateLimiter = new ClientRateLimiter();
+    private final WebSocketProxyProperties.RateLimit rateLimit = new WebSocketProxyProperties.RateLimit();
+
+    @Test
+    void doesNotLimitRoutesWithoutARateLimit() {
+        assertThat(rateLimiter.forClient("chat", rateLimit, request(null))).isNull();
+    }
+
+    @Test
+    void rejectsARateLimitWithoutARate() {
+        rateLimit.setEnabled(true);
+
+        assertThatIllegalArgumentException().isThrownBy(() -> rateLimiter.forClient("chat", rateLimit, request(null)));
+    }
+
+    @Test
+    void letsTheBurstThroughThenRejectsWithTheClosePolicy() {
+        limitMessages(WebSocketProxyProperties.RateLimit.Policy.CLOSE);
+        ClientRateLimiter.Limit limit = rateLimiter.forClient("chat", rateLimit, request(null));
+
+        assertThat(limit.acquire(10, true)).isZero();
+        assertThat(limit.acquire(10, true)).isZero();
+        assertThat(limit.acquire(10, true)).isEqualTo(ClientRateLimiter.REJECTED);
+    }
+
+    @Test
+    void delaysMessagesBeyondTheBurstWithTheDelayPolicy() {
+        limitMessages(WebSocketProxyProperties.RateLimit.Policy.DELAY);
+        ClientRateLimiter.Limit limit = rateLimiter.forClient("chat", rateLimit, request(null));
+        limit.acquire(10, true);
+        limit.acquire(10, true);
+
+        assertThat(limit.acquire(10, true)).isBetween(Duration.ofMillis(500).toNanos(), Duration.ofSeconds(1).toNanos());
+        assertThat(limit.acquire(10, true)).isBetween(Duration.ofMillis(1500).toNanos(), Duration.ofSeconds(2).toNanos());
+    }
+
+    @Test
+    void countsAMessageOnItsLastFragment() {
+        limitMessages(WebSocketProxyProperties.RateLimit.Policy.CLOSE);
+        ClientRateLimiter.Limit limit = rateLimiter.forClient("chat", rateLimit, request(null));
+
+        for (int fragment = 0; fragment < 5; fragment++) {
+            assertThat(limit.acquire(10, false)).isZero();
+        }
+        assertThat(limit.acquire(10, true)).isZero();
+        assertThat(limit.acquire(10, true)).isZero();
+        assertThat(limit.acquire(10, true)).isEqualTo(ClientRateLimiter.REJECTED);
+    }
+
+    @Test
+    void limitsThePayloadBytes() {
+        rateLimit.setEnabled(true);
+        rateLimit.setBytesPerSecond(DataSize.ofKilobytes(1));
+        rateLimit.setBurst(Duration.ofSeconds(1));
+        rateLimit.setPolicy(WebSocketProxyProperties.RateLimit.Policy.CLOSE);
+        ClientRateLimiter.Limit limit = rateLimiter.forClient("chat", rateLimit, request(null));
+
+        assertThat(limit.acquire(1000, false)).isZero();
+        assertThat(limit.acquire(100, true)).isEqualTo(ClientRateLimiter.REJECTED);
+    }
+
+    @Test
+    void sharesTheBucketsOfAClientKeyUntilItsLastSessionIsReleased() {
+        limitMessages(WebSocketProxyProperties.RateLimit.Policy.CLOSE);
+        limitByHeader();
+        ClientRateLimiter.Limit first = rateLimiter.forClient("chat", rateLimit, request("alice"));
+        ClientRateLimiter.Limit second = rateLimiter.forClient("chat", rateLimit, request("alice"));
+        ClientRateLimiter.Limit other = rateLimiter.forClient("chat", rateLimit, request("bob"));
+
+        first.acquire(10, true);
+        first.acquire(10, true);
+        assertThat(second.acquire(10, true)).isEqualTo(ClientRateLimiter.REJECTED);
+        assertThat(other.acquire(10, true)).isZero();
+
+        first.release();
+        first.release();
+        assertThat(rateLimiter.forClient("chat", rateLimit, request("alice")).acquire(10, true)).isEqualTo(ClientRateLimiter.REJECTED);
+    }
+
+    @Test
+    void startsOverOnceTheClientKeyHasNoSessionsLeft() {
+        limitMessages(WebSocketProxyProperties.RateLimit.Policy.CLOSE);
+        limitByHeader();
+        ClientRateLimiter.Limit limit = rateLimiter.forClient("chat", rateLimit, request("alice"));
+        limit.acquire(10, true);
+        limit.acquire(10, true);
+
+        limit.release();
+
+        assertThat(rateLimiter.forClient("chat", rateLimit, request("alice")).acquire(10, true)).isZero();
+    }
+
+    @Test
+    void limitsSessionsWithoutAClientKeyOnTheirOwn() {
+        limitMessages(WebSocketProxyProperties.RateLimit.Policy.CLOSE);
+        limitByHeader();
+        ClientRateLimiter.Limit first = rateLimiter.forClient("chat", rateLimit, request(null));
+        ClientRateLimiter.Limit second = rateLimiter.forClient("chat", rateLimit, request(null));
+
+        first.acquire(10, true);
+        first.acquire(10, true);
+
+        assertThat(second.acquire(10, true)).isZero();
+    }
+
+    /// One message per second with a two seconds burst, i.e. two messages right away.
+    private void limitMessages(WebSocketProxyProperties.RateLimit.Policy policy) {
+        rateLimit.setEnabled(true);
+        rateLimit.setMessagesPerSecond(1);
+        rateLimit.setBurst(Duration.ofSeconds(2));
+        rateLimit.setPolicy(policy);
+    }
+
+    private void limitByHeader() {
+        rateLimit.getClientKey().setSource(WebSocketProxyProperties.ClientKey.Source.HEADER);
+        rateLimit.getClientKey().setName("X-Client");
+    }
+
+    private static ServerRequest request(String client) {
+        var servletRequest = new MockHttpServletRequest("GET", "/chat");
+        if (client != null) {
+            servletRequest.addHeader("X-Client", client);
+        }
+        return ServerRequest.create(servletRequest, List.of());
+    }
+}
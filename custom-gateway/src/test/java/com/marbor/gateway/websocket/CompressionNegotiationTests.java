@@ -0,0 +1,68 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.websocket.api.ExtensionConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/// `Sec-WebSocket-Extensions` values each [WebSocketProxyProperties.Compression.Mode] sends on the two legs.
+class CompressionNegotiationTests {
+
+    private static final List<ExtensionConfig> CLIENT_OFFER = extensions("x-webkit-deflate-frame",
+            "permessage-deflate; client_max_window_bits", "permessage-deflate");
+    private final WebSocketProxyProperties.Compression compression = new WebSocketProxyProperties.Compression();
+
+    @Test
+    void negotiatesNoCompressionByDefault() {
+        assertThat(compression.getMode()).isEqualTo(WebSocketProxyProperties.Compression.Mode.DISABLED);
+
+        assertThat(CompressionNegotiation.upstreamOffer(compression, CLIENT_OFFER)).isEmpty();
+        assertThat(CompressionNegotiation.clientAccept(compression, CLIENT_OFFER, extensions("permessage-deflate"))).isEmpty();
+    }
+
+    @Test
+    void mirrorsTheClientOfferAndTheUpstreamAnswer() {
+        compression.setMode(WebSocketProxyProperties.Compression.Mode.MIRROR);
+
+        assertThat(headerValues(CompressionNegotiation.upstreamOffer(compression, CLIENT_OFFER)))
+                .containsExactly("permessage-deflate;client_max_window_bits");
+        assertThat(headerValues(CompressionNegotiation.clientAccept(compression, CLIENT_OFFER,
+                extensions("permessage-deflate; server_no_context_takeover; client_max_window_bits=12"))))
+                .containsExactly("permessage-deflate;client_max_window_bits=12;server_no_context_takeover");
+    }
+
+    @Test
+    void mirrorsAnUpstreamDecliningCompression() {
+        compression.setMode(WebSocketProxyProperties.Compression.Mode.MIRROR);
+
+        assertThat(CompressionNegotiation.clientAccept(compression, CLIENT_OFFER, List.of())).isEmpty();
+    }
+
+    @Test
+    void terminatesCompressionOnTheClientLeg() {
+        compression.setMode(WebSocketProxyProperties.Compression.Mode.TERMINATE);
+        compression.setClientNoContextTakeover(true);
+        compression.setServerNoContextTakeover(true);
+
+        assertThat(CompressionNegotiation.upstreamOffer(compression, CLIENT_OFFER)).isEmpty();
+        assertThat(headerValues(CompressionNegotiation.clientAccept(compression, CLIENT_OFFER, List.of())))
+                .containsExactly("permessage-deflate;client_no_context_takeover;server_no_context_takeover");
+    }
+
+    @Test
+    void terminatesNothingForClientsNotOfferingCompression() {
+        compression.setMode(WebSocketProxyProperties.Compression.Mode.TERMINATE);
+
+        assertThat(CompressionNegotiation.clientAccept(compression, extensions("x-webkit-deflate-frame"), List.of())).isEmpty();
+    }
+
+    private static List<ExtensionConfig> extensions(String... headerValues) {
+        return List.of(headerValues).stream().map(ExtensionConfig::parse).toList();
+    }
+
+    private static List<String> headerValues(List<ExtensionConfig> extensions) {
+        return extensions.stream().map(ExtensionConfig::getParameterizedName).toList();
+    }
+}
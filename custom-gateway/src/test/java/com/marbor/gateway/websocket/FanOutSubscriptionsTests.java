@@ -0,0 +1,158 @@
+package com.marbor.gateway.websocket;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.eclipse.jetty.websocket.api.Callback;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.function.ServerRequest;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/// Sharing and reference counting of the upstream sessions of [FanOutSubscriptions], and the keys they are shared by.
+class FanOutSubscriptionsTests {
+
+    private final FanOutSubscriptions subscriptions = new FanOutSubscriptions(new WebSocketProxyProperties());
+    private final WebSocketProxyMetrics.Route metrics = new WebSocketProxyMetrics(new SimpleMeterRegistry()).route("feed");
+    private final AtomicInteger created = new AtomicInteger();
+
+    @Test
+    void sharesTheSubscriptionOfAKey() {
+        FanOutSubscription first = subscribe("prices");
+        FanOutSubscription second = subscribe("prices");
+        FanOutSubscription other = subscribe("news");
+
+        assertThat(second).isSameAs(first);
+        assertThat(other).isNotSameAs(first);
+        assertThat(created).hasValue(2);
+    }
+
+    @Test
+    void connectsToTheUpstreamWithTheFirstSubscriberOnly() {
+        FanOutSubscription subscription = subscribe("prices");
+        Session upstream = mock(Session.class);
+        var connects = new AtomicInteger();
+
+        assertThat(subscription.connect(() -> {
+            connects.incrementAndGet();
+            return CompletableFuture.completedFuture(upstream);
+        })).isTrue();
+        assertThat(subscription.connect(() -> {
+            connects.incrementAndGet();
+            return CompletableFuture.completedFuture(upstream);
+        })).isFalse();
+
+        assertThat(connects).hasValue(1);
+        assertThat(subscription.getUpstreamSession()).isCompletedWithValue(upstream);
+    }
+
+    @Test
+    void closesTheUpstreamSessionWithTheLastSubscriber() {
+        FanOutSubscription subscription = subscribe("prices");
+        subscribe("prices");
+        Session upstream = mock(Session.class);
+        given(upstream.isOpen()).willReturn(true);
+        subscription.connect(() -> CompletableFuture.completedFuture(upstream));
+
+        subscription.release();
+        assertThat(subscription.getClosed()).isNotDone();
+        subscription.release();
+
+        assertThat(subscription.getClosed()).isDone();
+        verify(upstream).close(eq(StatusCode.NORMAL), anyString(), any(Callback.class));
+        assertThat(subscribe("prices")).isNotSameAs(subscription);
+    }
+
+    @Test
+    void replacesASubscriptionClosedByItsUpstream() {
+        FanOutSubscription subscription = subscribe("prices");
+
+        subscription.onWebSocketClose(StatusCode.SHUTDOWN, "Going away", Callback.NOOP);
+
+        assertThat(subscription.retain()).isFalse();
+        assertThat(subscribe("prices")).isNotSameAs(subscription);
+        assertThat(created).hasValue(2);
+    }
+
+    @Test
+    void detachesSubscribersWhoseClientIsNotUpgradedInTime() {
+        FanOutSubscription subscription = subscribe("prices");
+        Scheduler scheduler = mock(Scheduler.class);
+        given(scheduler.schedule(any(Runnable.class), eq(5000L), eq(TimeUnit.MILLISECONDS))).willReturn(mock(Scheduler.Task.class));
+        FanOutSubscription.Subscriber subscriber = subscription.newSubscriber(scheduler, Duration.ofSeconds(5));
+
+        var expiry = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(expiry.capture(), eq(5000L), eq(TimeUnit.MILLISECONDS));
+        expiry.getValue().run();
+
+        assertThat(subscriber.getClosed()).isDone();
+        assertThat(subscription.getClosed()).isDone();
+        assertThatIllegalStateException().isThrownBy(() -> subscriber.upgrade(new MockHttpServletRequest(), new MockHttpServletResponse()));
+    }
+
+    @Test
+    void keysSubscriptionsByPathQueryStringAndCredentials() {
+        var fanOut = new WebSocketProxyProperties.FanOut();
+        String key = subscriptionKey(fanOut, "/feed", "symbol=ACME", null);
+
+        assertThat(subscriptionKey(fanOut, "/feed", "symbol=ACME", null)).isEqualTo(key);
+        assertThat(subscriptionKey(fanOut, "/feed", "symbol=OTHER", null)).isNotEqualTo(key);
+        assertThat(subscriptionKey(fanOut, "/feed", null, null)).isNotEqualTo(key);
+        assertThat(subscriptionKey(fanOut, "/news", "symbol=ACME", null)).isNotEqualTo(key);
+        assertThat(subscriptionKey(fanOut, "/feed", "symbol=ACME", "Bearer token")).isNotEqualTo(key);
+    }
+
+    @Test
+    void digestsQueryStringsOutOfTheKey() {
+        String key = subscriptionKey(new WebSocketProxyProperties.FanOut(), "/feed", "access_token=secret", null);
+
+        assertThat(key).startsWith("feed /feed?").doesNotContain("secret");
+    }
+
+    @Test
+    void rejectsFanOutRoutesWithKeepalive() {
+        var properties = new WebSocketProxyProperties();
+        var route = new WebSocketProxyProperties.Route();
+        route.getFanOut().setEnabled(true);
+        route.getKeepalive().setEnabled(true);
+        properties.getRoutes().put("feed", route);
+
+        assertThatIllegalArgumentException().isThrownBy(() -> new FanOutSubscriptions(properties)).withMessageContaining("feed");
+    }
+
+    private static String subscriptionKey(WebSocketProxyProperties.FanOut fanOut, String path, String query, String authorization) {
+        var servletRequest = new MockHttpServletRequest("GET", path);
+        servletRequest.setQueryString(query);
+        if (authorization != null) {
+            servletRequest.addHeader(HttpHeaders.AUTHORIZATION, authorization);
+        }
+        return WebSocketProxyExchangeHandlerFunction.getSubscriptionKey(ServerRequest.create(servletRequest, List.of()), "feed", fanOut);
+    }
+
+    private FanOutSubscription subscribe(String key) {
+        return subscriptions.subscribe(key, newKey -> {
+            created.incrementAndGet();
+            return new FanOutSubscription(newKey, URI.create("ws://upstream:8080/" + newKey), new WebSocketProxyProperties.Route(), metrics);
+        });
+    }
+}
@@ -0,0 +1,136 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.eclipse.jetty.websocket.api.Callback;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.core.CoreSession;
+import org.eclipse.jetty.websocket.core.Frame;
+import org.eclipse.jetty.websocket.core.OpCode;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+/// Batched sends, flushing and in-flight accounting of [FrameBatch], its linger timer run by hand.
+class FrameBatchTests {
+
+    private final CoreSession coreSession = mock(CoreSession.class);
+    private final WebSocketSession session = mock(WebSocketSession.class);
+    private final Scheduler scheduler = mock(Scheduler.class);
+
+    FrameBatchTests() {
+        given(session.getCoreSession()).willReturn(coreSession);
+    }
+
+    @Test
+    void isOnlyCreatedForBatchingRoutes() {
+        assertThat(FrameBatch.create(session, new WebSocketProxyProperties.Batching(), scheduler)).isNull();
+        verifyNoInteractions(session);
+    }
+
+    @Test
+    void sendsTheFramesOfAMessageAsBatchedContinuations() {
+        FrameBatch batch = batch();
+        ByteBuffer payload = ByteBuffer.allocate(10);
+
+        batch.sendBinary(payload, false, Callback.NOOP);
+        batch.sendBinary(payload, true, Callback.NOOP);
+        batch.sendText("next", true, Callback.NOOP);
+
+        var frames = ArgumentCaptor.forClass(Frame.class);
+        verify(coreSession, times(3)).sendFrame(frames.capture(), any(org.eclipse.jetty.util.Callback.class), eq(true));
+        assertThat(frames.getAllValues()).extracting(Frame::getOpCode).containsExactly(OpCode.BINARY, OpCode.CONTINUATION, OpCode.TEXT);
+        assertThat(frames.getAllValues()).extracting(Frame::isFin).containsExactly(false, true, true);
+        assertThat(frames.getValue().getPayloadAsUTF8()).isEqualTo("next");
+    }
+
+    @Test
+    void completesTheCallbackOfAFrameOnceWritten() {
+        FrameBatch batch = batch();
+        var sent = new Callback.Completable();
+
+        batch.sendText("frame", true, sent);
+
+        var written = ArgumentCaptor.forClass(org.eclipse.jetty.util.Callback.class);
+        verify(coreSession).sendFrame(any(Frame.class), written.capture(), eq(true));
+        assertThat(sent).isNotDone();
+        written.getValue().succeeded();
+        assertThat(sent).isDone();
+    }
+
+    @Test
+    void flushesOnceTheBatchIsFull() {
+        given(coreSession.isOutputOpen()).willReturn(true);
+        FrameBatch batch = batch();
+
+        batch.added(60);
+        verify(coreSession, never()).flush(any(org.eclipse.jetty.util.Callback.class));
+        batch.added(40);
+
+        verify(coreSession).flush(any(org.eclipse.jetty.util.Callback.class));
+    }
+
+    @Test
+    void flushesAPartialBatchAfterTheLingerTime() {
+        given(coreSession.isOutputOpen()).willReturn(true);
+        FrameBatch batch = batch();
+
+        batch.added(10);
+        batch.added(10);
+
+        var flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler, times(1)).schedule(flush.capture(), eq(Duration.ofMillis(1).toNanos()), eq(TimeUnit.NANOSECONDS));
+        flush.getValue().run();
+        verify(coreSession).flush(any(org.eclipse.jetty.util.Callback.class));
+
+        batch.added(10);
+        verify(scheduler, times(2)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    void doesNotFlushAnEmptyOrClosedSession() {
+        FrameBatch batch = batch();
+
+        batch.added(10);
+        var flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(flush.capture(), anyLong(), eq(TimeUnit.NANOSECONDS));
+        flush.getValue().run();
+        flush.getValue().run();
+
+        verify(coreSession, never()).flush(any(org.eclipse.jetty.util.Callback.class));
+    }
+
+    @Test
+    void hasRoomUntilTheFramesInFlightFillTheBatch() {
+        FrameBatch batch = batch();
+
+        batch.added(60);
+        assertThat(batch.hasRoom()).isTrue();
+        batch.added(40);
+        assertThat(batch.hasRoom()).isFalse();
+
+        batch.written(60);
+        assertThat(batch.hasRoom()).isTrue();
+    }
+
+    private FrameBatch batch() {
+        var batching = new WebSocketProxyProperties.Batching();
+        batching.setEnabled(true);
+        batching.setMaxBytes(100);
+        batching.setLinger(Duration.ofMillis(1));
+        return FrameBatch.create(session, batching, scheduler);
+    }
+}
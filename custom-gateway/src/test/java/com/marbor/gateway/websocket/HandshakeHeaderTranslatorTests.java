@@ -0,0 +1,128 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.gateway.server.mvc.handler.GatewayServerResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.servlet.function.ServerResponse;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/// Handshake headers a [HandshakeHeaderTranslator.Policy] copies between the legs, for the rules of a `chat` route.
+class HandshakeHeaderTranslatorTests {
+
+    private final WebSocketProxyProperties.Route route = new WebSocketProxyProperties.Route();
+
+    @Test
+    void copiesUnlistedHeadersButNeverTheRenegotiatedOnes() {
+        Map<String, List<String>> upstreamHeaders = copyRequestHeaders(HttpVersion.HTTP_1_1,
+                "X-Tenant", "acme", "Sec-WebSocket-Protocol", "chat", "Sec-WebSocket-Extensions", "permessage-deflate");
+
+        assertThat(upstreamHeaders).containsOnlyKeys("X-Tenant", "Sec-WebSocket-Protocol");
+    }
+
+    @Test
+    void copiesOnlyTheAllowedAndHandshakeHeadersWhenAllowIsSet() {
+        route.getHeaders().getRequest().getAllow().add("x-tenant");
+
+        Map<String, List<String>> upstreamHeaders = copyRequestHeaders(HttpVersion.HTTP_1_1,
+                "X-TENANT", "acme", "Cookie", "session=1", "Sec-WebSocket-Protocol", "chat", "Sec-WebSocket-Version", "13");
+
+        assertThat(upstreamHeaders).containsOnlyKeys("X-TENANT", "Sec-WebSocket-Protocol", "Sec-WebSocket-Version");
+    }
+
+    @Test
+    void dropsDeniedHeadersWhateverTheirCase() {
+        route.getHeaders().getRequest().getDeny().add("cookie");
+
+        assertThat(copyRequestHeaders(HttpVersion.HTTP_1_1, "COOKIE", "session=1", "X-Tenant", "acme")).containsOnlyKeys("X-Tenant");
+    }
+
+    @Test
+    void renamesHeadersUnlessDenied() {
+        route.getHeaders().getRequest().getRename().put("authorization", "X-Client-Authorization");
+        route.getHeaders().getRequest().getRename().put("X-Tenant", "X-Upstream-Tenant");
+        route.getHeaders().getRequest().getDeny().add("X-Tenant");
+
+        Map<String, List<String>> upstreamHeaders = copyRequestHeaders(HttpVersion.HTTP_1_1,
+                "Authorization", "Bearer token", "X-Tenant", "acme");
+
+        assertThat(upstreamHeaders).containsOnlyKeys("X-Client-Authorization");
+        assertThat(upstreamHeaders.get("X-Client-Authorization")).containsExactly("Bearer token");
+    }
+
+    @Test
+    void copiesEveryValueOfRepeatedHeadersInOrder() {
+        Map<String, List<String>> upstreamHeaders = copyRequestHeaders(HttpVersion.HTTP_1_1,
+                "X-Forwarded-For", "10.0.0.1", "X-Forwarded-For", "10.0.0.2");
+        HttpHeaders clientHeaders = copyResponseHeaders(HttpFields.build()
+                .add("Set-Cookie", "a=1")
+                .add("Set-Cookie", "b=2"));
+
+        assertThat(upstreamHeaders.get("X-Forwarded-For")).containsExactly("10.0.0.1", "10.0.0.2");
+        assertThat(clientHeaders.get("Set-Cookie")).containsExactly("a=1", "b=2");
+    }
+
+    @Test
+    void appliesTheRulesOfEachDirectionOnItsOwn() {
+        route.getHeaders().getRequest().getDeny().add("X-Trace");
+        route.getHeaders().getResponse().getRename().put("X-Trace", "X-Upstream-Trace");
+
+        assertThat(copyRequestHeaders(HttpVersion.HTTP_1_1, "X-Trace", "1")).isEmpty();
+        HttpHeaders clientHeaders = copyResponseHeaders(HttpFields.build()
+                .add("X-Trace", "2")
+                .add("Sec-WebSocket-Accept", "key")
+                .add("Sec-WebSocket-Extensions", "permessage-deflate"));
+        assertThat(clientHeaders.headerNames()).containsOnly("X-Upstream-Trace");
+    }
+
+    @Test
+    void dropsTheHttp1UpgradeHeadersAndPseudoHeadersFromAnExtendedConnect() {
+        String[] clientHeaders = {"Host", "gateway", "Connection", "Upgrade", "Upgrade", "websocket", "Sec-WebSocket-Key", "key",
+                ":authority", "gateway", "X-Tenant", "acme"};
+
+        assertThat(copyRequestHeaders(HttpVersion.HTTP_2, clientHeaders)).containsOnlyKeys("X-Tenant");
+        assertThat(copyRequestHeaders(HttpVersion.HTTP_1_1, clientHeaders)).doesNotContainKey(":authority");
+    }
+
+    @Test
+    void keepsTheFirstClientsResponseHeadersFromLaterFanOutSubscribers() {
+        HttpFields upstreamHeaders = HttpFields.build()
+                .add("Set-Cookie", "session=1")
+                .add("X-Tenant", "acme");
+        ServerResponse.BodyBuilder subscriberResponse = GatewayServerResponse.status(101);
+
+        policy().copySubscriberResponseHeaders(upstreamHeaders, subscriberResponse);
+
+        assertThat(subscriberResponse.build().headers().headerNames()).containsOnly("X-Tenant");
+    }
+
+    private HandshakeHeaderTranslator.Policy policy() {
+        var properties = new WebSocketProxyProperties();
+        properties.getRoutes().put("chat", route);
+        return new HandshakeHeaderTranslator(properties).forRoute("chat");
+    }
+
+    /// @param namesAndValues the client's request headers, repeated names adding values
+    private Map<String, List<String>> copyRequestHeaders(HttpVersion httpVersion, String... namesAndValues) {
+        var clientHeaders = new HttpHeaders();
+        for (int index = 0; index < namesAndValues.length; index += 2) {
+            clientHeaders.add(namesAndValues[index], namesAndValues[index + 1]);
+        }
+        var upstreamUpgradeRequest = new ClientUpgradeRequest(URI.create("ws://upstream/chat"));
+        policy().copyRequestHeaders(clientHeaders, upstreamUpgradeRequest, httpVersion);
+        return upstreamUpgradeRequest.getHeaders();
+    }
+
+    private HttpHeaders copyResponseHeaders(HttpFields upstreamHeaders) {
+        ServerResponse.BodyBuilder clientResponse = GatewayServerResponse.status(101);
+        policy().copyResponseHeaders(upstreamHeaders, clientResponse);
+        return clientResponse.build().headers();
+    }
+}
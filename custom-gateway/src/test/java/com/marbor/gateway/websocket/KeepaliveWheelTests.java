@@ -0,0 +1,100 @@
+package com.marbor.gateway.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/// Pings and idle closes of [KeepaliveWheel], its ticks advanced by hand.
+class KeepaliveWheelTests {
+
+    private final KeepaliveWheel wheel = new KeepaliveWheel();
+    private final AtomicInteger pings = new AtomicInteger();
+    private final AtomicInteger idles = new AtomicInteger();
+
+    @Test
+    void doesNotRegisterLegsOfRoutesWithoutKeepalive() {
+        assertThat(wheel.register(new WebSocketProxyProperties.Keepalive(), pings::incrementAndGet, idles::incrementAndGet)).isNull();
+    }
+
+    @Test
+    void pingsASilentLegEveryIntervalUntilItIsIdle() {
+        register(Duration.ofSeconds(2), Duration.ofSeconds(5));
+
+        tick(1);
+        assertThat(pings).hasValue(0);
+        tick(1);
+        assertThat(pings).hasValue(1);
+        tick(2);
+        assertThat(pings).hasValue(2);
+        assertThat(idles).hasValue(0);
+
+        tick(1);
+        assertThat(idles).hasValue(1);
+        tick(10);
+        assertThat(pings).hasValue(2);
+        assertThat(idles).hasValue(1);
+    }
+
+    @Test
+    void readsPostponeThePing() {
+        KeepaliveWheel.Leg leg = register(Duration.ofSeconds(2), Duration.ofSeconds(5));
+
+        tick(1);
+        leg.read();
+        tick(1);
+        assertThat(pings).hasValue(0);
+        tick(1);
+        assertThat(pings).hasValue(1);
+    }
+
+    @Test
+    void keepsALegReadingEveryTickOpen() {
+        KeepaliveWheel.Leg leg = register(Duration.ofSeconds(2), Duration.ofSeconds(5));
+
+        for (int tick = 0; tick < 20; tick++) {
+            tick(1);
+            leg.read();
+        }
+
+        assertThat(pings).hasValue(0);
+        assertThat(idles).hasValue(0);
+    }
+
+    @Test
+    void forgetsCancelledLegs() {
+        KeepaliveWheel.Leg leg = register(Duration.ofSeconds(2), Duration.ofSeconds(5));
+
+        leg.cancel();
+        tick(10);
+
+        assertThat(pings).hasValue(0);
+        assertThat(idles).hasValue(0);
+    }
+
+    @Test
+    void keepsDeadlinesBeyondOneTurnOfTheWheel() {
+        register(Duration.ofMinutes(10), Duration.ofMinutes(20));
+
+        tick(599);
+        assertThat(pings).hasValue(0);
+        tick(1);
+        assertThat(pings).hasValue(1);
+    }
+
+    private KeepaliveWheel.Leg register(Duration pingInterval, Duration idleTimeout) {
+        var keepalive = new WebSocketProxyProperties.Keepalive();
+        keepalive.setEnabled(true);
+        keepalive.setPingInterval(pingInterval);
+        keepalive.setIdleTimeout(idleTimeout);
+        return wheel.register(keepalive, pings::incrementAndGet, idles::incrementAndGet);
+    }
+
+    private void tick(int ticks) {
+        for (int tick = 0; tick < ticks; tick++) {
+            wheel.tick();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.marbor.gateway.websocket;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import java.time.Duration;
+import java.time.ZoneId;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/// State changes of [UpstreamCircuitBreakers], on a clock moved by hand.
+class UpstreamCircuitBreakersTests {
+
+    private static final Duration FAST = Duration.ofMillis(10);
+    private final WebSocketProxyProperties properties = new WebSocketProxyProperties();
+    private final ManualClock clock = new ManualClock();
+    private UpstreamCircuitBreakers.CircuitBreaker circuitBreaker;
+
+    @BeforeEach
+    void createCircuitBreaker() {
+        WebSocketProxyProperties.CircuitBreaker circuitBreakerProperties = properties.getCircuitBreaker();
+        circuitBreakerProperties.setWindowSize(4);
+        circuitBreakerProperties.setMinimumHandshakes(4);
+        circuitBreakerProperties.setFailureRateThreshold(0.5);
+        circuitBreakerProperties.setSlowHandshakeThreshold(Duration.ofSeconds(1));
+        circuitBreakerProperties.setOpenDuration(Duration.ofSeconds(10));
+        circuitBreakerProperties.setHalfOpenProbes(1);
+        circuitBreaker = new UpstreamCircuitBreakers(properties, new SimpleMeterRegistry(), clock).forUpstream("a:8080");
+    }
+
+    @Test
+    void opensOnceTheFailureRateIsReachedOverTheMinimumHandshakes() {
+        succeed();
+        fail();
+        succeed();
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.CLOSED);
+
+        fail();
+
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.OPEN);
+        assertThat(circuitBreaker.tryAcquire()).isNull();
+    }
+
+    @Test
+    void countsSlowHandshakesAsFailures() {
+        for (int handshake = 0; handshake < 2; handshake++) {
+            succeed();
+            circuitBreaker.tryAcquire().record(Duration.ofSeconds(2), HttpStatus.SWITCHING_PROTOCOLS);
+        }
+
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.OPEN);
+    }
+
+    @Test
+    void recordsEachPermitOnce() {
+        UpstreamCircuitBreakers.CircuitBreaker.Permit permit = circuitBreaker.tryAcquire();
+        for (int record = 0; record < 4; record++) {
+            permit.record(FAST, HttpStatus.BAD_GATEWAY);
+        }
+
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.CLOSED);
+    }
+
+    @Test
+    void answersRejectionsWithTheRemainingOpenTime() {
+        open();
+        assertThat(circuitBreaker.rejection().headers().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("10");
+
+        clock.advance(Duration.ofMillis(2500));
+        assertThat(circuitBreaker.rejection().headers().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("8");
+
+        clock.advance(Duration.ofSeconds(8));
+        assertThat(circuitBreaker.rejection().headers().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+    }
+
+    @Test
+    void closesOnASuccessfulProbe() {
+        open();
+        clock.advance(Duration.ofSeconds(10));
+
+        UpstreamCircuitBreakers.CircuitBreaker.Permit probe = circuitBreaker.tryAcquire();
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.HALF_OPEN);
+        assertThat(circuitBreaker.tryAcquire()).isNull();
+
+        probe.record(FAST, HttpStatus.SWITCHING_PROTOCOLS);
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.CLOSED);
+    }
+
+    @Test
+    void opensAgainOnAFailedProbe() {
+        open();
+        clock.advance(Duration.ofSeconds(10));
+
+        circuitBreaker.tryAcquire().record(FAST, HttpStatus.GATEWAY_TIMEOUT);
+
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.OPEN);
+        assertThat(circuitBreaker.tryAcquire()).isNull();
+    }
+
+    @Test
+    void releasedProbesFreeTheirSlot() {
+        open();
+        clock.advance(Duration.ofSeconds(10));
+
+        circuitBreaker.tryAcquire().release();
+
+        assertThat(circuitBreaker.tryAcquire()).isNotNull();
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.HALF_OPEN);
+    }
+
+    @Test
+    void ignoresOutcomesOfPermitsTakenBeforeAStateChange() {
+        UpstreamCircuitBreakers.CircuitBreaker.Permit closedPermit = circuitBreaker.tryAcquire();
+        open();
+        clock.advance(Duration.ofSeconds(10));
+        UpstreamCircuitBreakers.CircuitBreaker.Permit probe = circuitBreaker.tryAcquire();
+
+        closedPermit.record(FAST, HttpStatus.SWITCHING_PROTOCOLS);
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.HALF_OPEN);
+        closedPermit.release();
+        assertThat(circuitBreaker.tryAcquire()).isNull();
+
+        probe.record(FAST, HttpStatus.SWITCHING_PROTOCOLS);
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.CLOSED);
+    }
+
+    @Test
+    void reopensAfterTheOpenDurationOnAClockOfAnotherZone() {
+        circuitBreaker = new UpstreamCircuitBreakers(properties, new SimpleMeterRegistry(), clock.withZone(ZoneId.of("Europe/Warsaw")))
+                .forUpstream("a:8080");
+        open();
+
+        clock.advance(Duration.ofSeconds(10));
+
+        assertThat(circuitBreaker.tryAcquire()).isNotNull();
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.HALF_OPEN);
+    }
+
+    @Test
+    void letsEveryHandshakeThroughWhenDisabled() {
+        properties.getCircuitBreaker().setEnabled(false);
+
+        for (int handshake = 0; handshake < 8; handshake++) {
+            fail();
+        }
+
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.CLOSED);
+        assertThat(circuitBreaker.tryAcquire()).isNotNull();
+    }
+
+    private void open() {
+        for (int handshake = 0; handshake < 4; handshake++) {
+            fail();
+        }
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.OPEN);
+    }
+
+    private void succeed() {
+        circuitBreaker.tryAcquire().record(FAST, HttpStatus.SWITCHING_PROTOCOLS);
+    }
+
+    private void fail() {
+        circuitBreaker.tryAcquire().record(FAST, HttpStatus.BAD_GATEWAY);
+    }
+}
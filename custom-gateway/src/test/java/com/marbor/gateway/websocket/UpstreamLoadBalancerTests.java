@@ -0,0 +1,160 @@
+package com.marbor.gateway.websocket;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.servlet.function.ServerRequest;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+/// Upstream choice of [UpstreamLoadBalancer] for the two strategies.
+class UpstreamLoadBalancerTests {
+
+    private static final List<URI> UPSTREAMS = List.of(URI.create("ws://a:8080"), URI.create("ws://b:8080"), URI.create("ws://c:8080"));
+    private final WebSocketProxyProperties properties = new WebSocketProxyProperties();
+    private final ManualClock clock = new ManualClock();
+    private final UpstreamCircuitBreakers circuitBreakers = new UpstreamCircuitBreakers(properties, new SimpleMeterRegistry(), clock);
+
+    @Test
+    void spreadsSessionsOverTheInstancesWithTheFewestSessions() {
+        UpstreamLoadBalancer loadBalancer = loadBalancer(WebSocketProxyProperties.LoadBalancing.Strategy.LEAST_ACTIVE_SESSIONS);
+
+        UpstreamLoadBalancer.Lease first = loadBalancer.acquire("pool", request(null));
+        UpstreamLoadBalancer.Lease second = loadBalancer.acquire("pool", request(null));
+        UpstreamLoadBalancer.Lease third = loadBalancer.acquire("pool", request(null));
+        assertThat(Set.of(first.getUri(), second.getUri(), third.getUri())).containsExactlyInAnyOrderElementsOf(UPSTREAMS);
+
+        second.release();
+        second.release();
+        assertThat(loadBalancer.acquire("pool", request(null)).getUri()).isEqualTo(second.getUri());
+    }
+
+    @Test
+    void skipsDrainingInstancesUntilResumed() {
+        UpstreamLoadBalancer loadBalancer = loadBalancer(WebSocketProxyProperties.LoadBalancing.Strategy.LEAST_ACTIVE_SESSIONS);
+        loadBalancer.setDraining("pool", "a:8080", true);
+
+        Set<URI> chosen = new HashSet<>();
+        for (int session = 0; session < 6; session++) {
+            chosen.add(loadBalancer.acquire("pool", request(null)).getUri());
+        }
+        assertThat(chosen).containsExactlyInAnyOrder(UPSTREAMS.get(1), UPSTREAMS.get(2));
+
+        loadBalancer.resumeAll("pool");
+        assertThat(loadBalancer.acquire("pool", request(null)).getUri()).isEqualTo(UPSTREAMS.get(0));
+    }
+
+    @Test
+    void skipsInstancesWithAnOpenCircuit() {
+        properties.getCircuitBreaker().setWindowSize(1);
+        properties.getCircuitBreaker().setMinimumHandshakes(1);
+        UpstreamLoadBalancer loadBalancer = loadBalancer(WebSocketProxyProperties.LoadBalancing.Strategy.LEAST_ACTIVE_SESSIONS);
+        circuitBreakers.forUpstream("b:8080").tryAcquire().record(Duration.ZERO, HttpStatus.BAD_GATEWAY);
+
+        for (int session = 0; session < 6; session++) {
+            assertThat(loadBalancer.acquire("pool", request(null)).getUri()).isNotEqualTo(UPSTREAMS.get(1));
+        }
+    }
+
+    @Test
+    void probesAnInstanceWithAnOpenCircuitOnceItsOpenDurationHasPassed() {
+        properties.getCircuitBreaker().setWindowSize(1);
+        properties.getCircuitBreaker().setMinimumHandshakes(1);
+        properties.getCircuitBreaker().setOpenDuration(Duration.ofSeconds(10));
+        properties.getCircuitBreaker().setHalfOpenProbes(1);
+        UpstreamLoadBalancer loadBalancer = loadBalancer(WebSocketProxyProperties.LoadBalancing.Strategy.LEAST_ACTIVE_SESSIONS);
+        UpstreamCircuitBreakers.CircuitBreaker circuitBreaker = circuitBreakers.forUpstream("b:8080");
+        circuitBreaker.tryAcquire().record(Duration.ZERO, HttpStatus.BAD_GATEWAY);
+        assertThat(Set.of(loadBalancer.acquire("pool", request(null)).getUri(), loadBalancer.acquire("pool", request(null)).getUri()))
+                .containsExactlyInAnyOrder(UPSTREAMS.get(0), UPSTREAMS.get(2));
+
+        clock.advance(Duration.ofSeconds(10));
+        assertThat(loadBalancer.acquire("pool", request(null)).getUri()).isEqualTo(UPSTREAMS.get(1));
+        UpstreamCircuitBreakers.CircuitBreaker.Permit probe = circuitBreaker.tryAcquire();
+        assertThat(probe).isNotNull();
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.HALF_OPEN);
+        for (int session = 0; session < 3; session++) {
+            assertThat(loadBalancer.acquire("pool", request(null)).getUri()).isNotEqualTo(UPSTREAMS.get(1));
+        }
+
+        probe.record(Duration.ZERO, HttpStatus.SWITCHING_PROTOCOLS);
+        assertThat(circuitBreaker.getState()).isEqualTo(UpstreamCircuitBreakers.State.CLOSED);
+        assertThat(loadBalancer.acquire("pool", request(null)).getUri()).isEqualTo(UPSTREAMS.get(1));
+    }
+
+    @Test
+    void keepsAnAffinityKeyOnItsInstance() {
+        UpstreamLoadBalancer loadBalancer = loadBalancer(WebSocketProxyProperties.LoadBalancing.Strategy.CONSISTENT_HASH);
+        URI owner = loadBalancer.acquire("pool", request("user-1")).getUri();
+
+        for (int session = 0; session < 5; session++) {
+            assertThat(loadBalancer.acquire("pool", request("user-1")).getUri()).isEqualTo(owner);
+        }
+    }
+
+    @Test
+    void movesTheKeysOfADrainingInstanceOnly() {
+        UpstreamLoadBalancer loadBalancer = loadBalancer(WebSocketProxyProperties.LoadBalancing.Strategy.CONSISTENT_HASH);
+        List<URI> owners = new ArrayList<>();
+        for (int key = 0; key < 50; key++) {
+            owners.add(loadBalancer.acquire("pool", request("user-" + key)).getUri());
+        }
+
+        loadBalancer.setDraining("pool", "a:8080", true);
+        for (int key = 0; key < 50; key++) {
+            URI owner = loadBalancer.acquire("pool", request("user-" + key)).getUri();
+            if (owners.get(key).equals(UPSTREAMS.get(0))) {
+                assertThat(owner).isNotEqualTo(UPSTREAMS.get(0));
+            } else {
+                assertThat(owner).isEqualTo(owners.get(key));
+            }
+        }
+    }
+
+    @Test
+    void routesWithoutAPoolKeepTheirOwnUri() {
+        UpstreamLoadBalancer loadBalancer = loadBalancer(WebSocketProxyProperties.LoadBalancing.Strategy.LEAST_ACTIVE_SESSIONS);
+
+        assertThat(loadBalancer.acquire("other", request(null)).getUri()).isNull();
+        assertThat(loadBalancer.getUpstreamCount("other")).isZero();
+        assertThat(loadBalancer.getUpstreamCount("pool")).isEqualTo(3);
+    }
+
+    @Test
+    void rejectsConsistentHashingWithoutAnAffinityKeyName() {
+        WebSocketProxyProperties.LoadBalancing loadBalancing = route().getLoadBalancing();
+        loadBalancing.setUpstreams(UPSTREAMS);
+        loadBalancing.setStrategy(WebSocketProxyProperties.LoadBalancing.Strategy.CONSISTENT_HASH);
+
+        assertThatIllegalArgumentException().isThrownBy(() -> new UpstreamLoadBalancer(properties, circuitBreakers));
+    }
+
+    private UpstreamLoadBalancer loadBalancer(WebSocketProxyProperties.LoadBalancing.Strategy strategy) {
+        WebSocketProxyProperties.LoadBalancing loadBalancing = route().getLoadBalancing();
+        loadBalancing.setUpstreams(UPSTREAMS);
+        loadBalancing.setStrategy(strategy);
+        loadBalancing.getAffinityKey().setName("X-User");
+        return new UpstreamLoadBalancer(properties, circuitBreakers);
+    }
+
+    private WebSocketProxyProperties.Route route() {
+        return properties.getRoutes().computeIfAbsent("pool", routeId -> new WebSocketProxyProperties.Route());
+    }
+
+    private static ServerRequest request(String user) {
+        var servletRequest = new MockHttpServletRequest("GET", "/feed");
+        if (user != null) {
+            servletRequest.addHeader("X-User", user);
+        }
+        return ServerRequest.create(servletRequest, List.of());
+    }
+}
@@ -0,0 +1,129 @@
+package com.marbor.gateway.websocket;
+
+import com.marbor.gateway.configuration.WebSocketConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.client.ContentResponse;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.boot.ssl.DefaultSslBundleRegistry;
+import org.springframework.boot.ssl.SslBundle;
+import org.springframework.boot.ssl.SslStoreBundle;
+
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/// TLS handshakes with a local `https` upstream, through the Jetty client as configured by [WebSocketConfiguration].
+class UpstreamTlsTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private Server upstream;
+    private HttpClient httpClient;
+
+    @AfterEach
+    void stop() throws Exception {
+        if (httpClient != null) {
+            httpClient.stop();
+        }
+        if (upstream != null) {
+            upstream.stop();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"TLSv1.2", "TLSv1.3"})
+    void reconnectsResumeTheTlsSession(String protocol) throws Exception {
+        int port = startUpstream(protocol);
+        httpClient = new WebSocketConfiguration().httpClient(upstreamTls());
+        httpClient.start();
+
+        for (int connection = 0; connection < 3; connection++) {
+            // the session timestamps have a millisecond resolution
+            Thread.sleep(10);
+            ContentResponse response = httpClient.newRequest("https://localhost:" + port)
+                    .headers(headers -> headers.put(HttpHeader.CONNECTION, "close"))
+                    .timeout(5, TimeUnit.SECONDS)
+                    .send();
+            assertThat(response.getStatus()).isEqualTo(200);
+        }
+
+        assertThat(handshakes(port, "full")).isEqualTo(1);
+        assertThat(handshakes(port, "resumed")).isEqualTo(2);
+        assertThat(handshakes(port, "failed")).isZero();
+    }
+
+    @Test
+    void untrustedUpstreamsFailTheHandshake() throws Exception {
+        int port = startUpstream("TLSv1.3");
+        // without a bundle, the self-signed certificate is checked against the JDK trust store
+        httpClient = new WebSocketConfiguration().httpClient(new UpstreamTls(new WebSocketProxyProperties(), new DefaultSslBundleRegistry(), meterRegistry));
+        httpClient.start();
+
+        assertThatThrownBy(() -> httpClient.newRequest("https://localhost:" + port).timeout(5, TimeUnit.SECONDS).send())
+                .isInstanceOf(ExecutionException.class);
+
+        assertThat(handshakes(port, "failed")).isEqualTo(1);
+        assertThat(handshakes(port, "full")).isZero();
+    }
+
+    private int startUpstream(String protocol) throws Exception {
+        var sslContextFactory = new SslContextFactory.Server();
+        sslContextFactory.setKeyStorePath(getClass().getResource("/upstream-tls.p12").toExternalForm());
+        sslContextFactory.setKeyStorePassword("secret");
+        sslContextFactory.setIncludeProtocols(protocol);
+        upstream = new Server();
+        var alpn = new ALPNServerConnectionFactory("http/1.1");
+        var connector = new ServerConnector(upstream, new SslConnectionFactory(sslContextFactory, alpn.getProtocol()), alpn, new HttpConnectionFactory());
+        upstream.addConnector(connector);
+        upstream.setHandler(new Handler.Abstract() {
+            @Override
+            public boolean handle(Request request, Response response, Callback callback) {
+                response.setStatus(200);
+                callback.succeeded();
+                return true;
+            }
+        });
+        upstream.start();
+        return connector.getLocalPort();
+    }
+
+    private UpstreamTls upstreamTls() throws Exception {
+        var trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        try (InputStream certificate = getClass().getResourceAsStream("/upstream-tls.crt")) {
+            trustStore.setCertificateEntry("upstream", CertificateFactory.getInstance("X.509").generateCertificate(certificate));
+        }
+        var sslBundles = new DefaultSslBundleRegistry();
+        sslBundles.registerBundle("upstream", SslBundle.of(SslStoreBundle.of(null, null, trustStore)));
+        var properties = new WebSocketProxyProperties();
+        properties.getTls().setBundle("upstream");
+        return new UpstreamTls(properties, sslBundles, meterRegistry);
+    }
+
+    private double handshakes(int port, String outcome) {
+        var counter = meterRegistry.find("gateway.websocket.upstream.tls.handshakes")
+                .tag("upstream", "localhost:" + port)
+                .tag("outcome", outcome)
+                .counter();
+        return counter != null ? counter.count() : 0;
+    }
+}
@@ -0,0 +1,87 @@
+package com.marbor.gateway.websocket;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+/// Holding and releasing the client read with [UpstreamWriteWindow].
+class UpstreamWriteWindowTests {
+
+    private final UpstreamWriteWindow window = new UpstreamWriteWindow(backpressure(2, DataSize.ofBytes(100)));
+
+    @Test
+    void countsThePendingWrites() {
+        assertThat(window.added(10)).isEqualTo(1);
+        assertThat(window.added(10)).isEqualTo(2);
+
+        window.written(10);
+
+        assertThat(window.getPendingWrites()).isEqualTo(1);
+    }
+
+    @Test
+    void doesNotHoldTheReadBelowTheLimits() throws Exception {
+        window.added(10);
+
+        awaitRoom().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void holdsTheReadAtTheMessageLimitUntilAWriteCompletes() throws Exception {
+        window.added(10);
+        window.added(10);
+
+        CompletableFuture<Void> read = awaitRoom();
+        assertStillHeld(read);
+
+        window.written(10);
+        read.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void holdsTheReadAtTheByteLimitUntilAWriteCompletes() throws Exception {
+        window.added(100);
+
+        CompletableFuture<Void> read = awaitRoom();
+        assertStillHeld(read);
+
+        window.written(100);
+        read.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void rejectsAWindowWithoutRoom() {
+        assertThatIllegalArgumentException().isThrownBy(() -> new UpstreamWriteWindow(backpressure(0, DataSize.ofBytes(100))));
+    }
+
+    private CompletableFuture<Void> awaitRoom() {
+        var read = new CompletableFuture<Void>();
+        Thread.ofVirtual().start(() -> {
+            try {
+                window.awaitRoom();
+                read.complete(null);
+            } catch (InterruptedException interrupted) {
+                read.completeExceptionally(interrupted);
+            }
+        });
+        return read;
+    }
+
+    private static void assertStillHeld(CompletableFuture<Void> read) throws InterruptedException {
+        Thread.sleep(Duration.ofMillis(100));
+        assertThat(read).isNotDone();
+    }
+
+    private static WebSocketProxyProperties.Backpressure backpressure(int maxPendingWrites, DataSize maxPendingBytes) {
+        var backpressure = new WebSocketProxyProperties.Backpressure();
+        backpressure.setMaxPendingUpstreamWrites(maxPendingWrites);
+        backpressure.setMaxPendingUpstreamBytes(maxPendingBytes);
+        return backpressure;
+    }
+}
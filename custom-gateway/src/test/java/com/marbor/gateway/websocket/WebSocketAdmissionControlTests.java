@@ -0,0 +1,73 @@
+package com.marbor.gateway.websocket;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/// Session slots and buffer budgets of [WebSocketAdmissionControl].
+class WebSocketAdmissionControlTests {
+
+    private static final int KIB = 1024;
+    private final WebSocketProxyProperties properties = properties(DataSize.ofKilobytes(100));
+    private final WebSocketAdmissionControl admissionControl = new WebSocketAdmissionControl(properties, new SimpleMeterRegistry());
+    private final WebSocketProxyProperties.Limits limits = new WebSocketProxyProperties.Limits();
+
+    @Test
+    void admitsSessionsUpToTheRouteLimit() {
+        limits.setMaxSessions(1);
+
+        WebSocketAdmissionControl.Admission admission = admissionControl.admit("chat", limits);
+        assertThat(admission).isNotNull();
+        assertThat(admissionControl.admit("chat", limits)).isNull();
+        assertThat(admissionControl.admit("other", limits)).isNotNull();
+
+        admission.release();
+        admission.release();
+        assertThat(admissionControl.admit("chat", limits)).isNotNull();
+        assertThat(admissionControl.admit("chat", limits)).isNull();
+    }
+
+    @Test
+    void rejectsPayloadOverTheSessionBudget() {
+        limits.setMaxBufferedBytes(DataSize.ofKilobytes(8));
+        WebSocketAdmissionControl.SessionBuffer sessionBuffer = admissionControl.sessionBuffer(limits);
+
+        assertThat(sessionBuffer.added(8 * KIB)).isTrue();
+        assertThat(sessionBuffer.added(1)).isFalse();
+
+        sessionBuffer.removed(1);
+        sessionBuffer.removed(8 * KIB);
+        assertThat(sessionBuffer.added(8 * KIB)).isTrue();
+    }
+
+    @Test
+    void checksTheGatewayBudgetOnceASessionBuffersMoreThanTheCheckThreshold() {
+        int belowThreshold = (int) WebSocketAdmissionControl.GATEWAY_CHECK_BYTES - KIB;
+        WebSocketAdmissionControl.SessionBuffer first = admissionControl.sessionBuffer(limits);
+        WebSocketAdmissionControl.SessionBuffer second = admissionControl.sessionBuffer(limits);
+
+        assertThat(first.added(belowThreshold)).isTrue();
+        // over the gateway budget, but unchecked below the threshold: the documented per-session slack
+        assertThat(second.added(belowThreshold)).isTrue();
+        assertThat(second.added(2 * KIB)).isFalse();
+    }
+
+    @Test
+    void rejectsHandshakesWhileTheGatewayIsOverItsBudget() {
+        WebSocketAdmissionControl.SessionBuffer sessionBuffer = admissionControl.sessionBuffer(limits);
+
+        sessionBuffer.added(101 * KIB);
+        assertThat(admissionControl.admit("chat", limits)).isNull();
+
+        sessionBuffer.removed(101 * KIB);
+        assertThat(admissionControl.admit("chat", limits)).isNotNull();
+    }
+
+    private static WebSocketProxyProperties properties(DataSize maxBufferedBytes) {
+        var properties = new WebSocketProxyProperties();
+        properties.setMaxBufferedBytes(maxBufferedBytes);
+        return properties;
+    }
+}
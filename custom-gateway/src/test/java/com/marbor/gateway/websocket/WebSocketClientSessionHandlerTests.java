@@ -0,0 +1,91 @@
+package com.marbor.gateway.websocket;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.eclipse.jetty.websocket.api.Callback;
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/// Client → upstream relay of [WebSocketClientSessionHandler], against a mocked upstream Jetty session.
+class WebSocketClientSessionHandlerTests {
+
+    private final Session upstreamSession = mock(Session.class);
+    private final WebSocketSession clientSession = mock(WebSocketSession.class);
+    private final WebSocketProxyProperties properties = new WebSocketProxyProperties();
+    private final WebSocketProxyProperties.Route routeProperties = new WebSocketProxyProperties.Route();
+    private final WebSocketAdmissionControl admissionControl = new WebSocketAdmissionControl(properties, new SimpleMeterRegistry());
+
+    @Test
+    void holdsTheClientReadUntilTheUpstreamWroteTheUncopiedBinaryPayload() throws Exception {
+        WebSocketClientSessionHandler handler = handler();
+        ByteBuffer payload = ByteBuffer.wrap(new byte[]{1, 2, 3});
+
+        CompletableFuture<Void> read = handleMessage(handler, new BinaryMessage(payload));
+        var sentPayload = ArgumentCaptor.forClass(ByteBuffer.class);
+        var sent = ArgumentCaptor.forClass(Callback.class);
+        verify(upstreamSession, timeout(5000)).sendBinary(sentPayload.capture(), sent.capture());
+
+        assertThat(sentPayload.getValue()).isSameAs(payload);
+        Thread.sleep(100);
+        assertThat(read).isNotDone();
+
+        sent.getValue().succeed();
+        read.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void releasesTheClientReadWhenTheUpstreamWriteFails() throws Exception {
+        WebSocketClientSessionHandler handler = handler();
+
+        CompletableFuture<Void> read = handleMessage(handler, new BinaryMessage(new byte[]{1}));
+        var sent = ArgumentCaptor.forClass(Callback.class);
+        verify(upstreamSession, timeout(5000)).sendBinary(any(), sent.capture());
+        sent.getValue().fail(new IllegalStateException("upstream gone"));
+
+        read.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void closesTheClientWithTryAgainLaterWhenTheSessionBufferIsExceeded() throws Exception {
+        routeProperties.getLimits().setMaxBufferedBytes(DataSize.ofBytes(4));
+        WebSocketClientSessionHandler handler = handler();
+
+        handleMessage(handler, new TextMessage("hello")).get(5, TimeUnit.SECONDS);
+
+        verify(clientSession).close(CloseStatus.SERVICE_OVERLOAD.withReason("Gateway buffer limit exceeded"));
+        verify(upstreamSession, never()).sendText(anyString(), any());
+    }
+
+    private WebSocketClientSessionHandler handler() {
+        when(upstreamSession.isOpen()).thenReturn(true);
+        when(clientSession.isOpen()).thenReturn(true);
+        var handler = new WebSocketClientSessionHandler(upstreamSession, null, admissionControl.sessionBuffer(routeProperties.getLimits()), null, null,
+                new SessionActivity(), routeProperties, new KeepaliveWheel(), new WebSocketProxyMetrics(new SimpleMeterRegistry()).route("chat"));
+        handler.afterConnectionEstablished(clientSession);
+        return handler;
+    }
+
+    /// Handles the message on a thread of its own, standing in for the container thread whose read it holds.
+    private CompletableFuture<Void> handleMessage(WebSocketClientSessionHandler handler, WebSocketMessage<?> message) {
+        return CompletableFuture.runAsync(() -> handler.handleMessage(clientSession, message));
+    }
+}
@@ -0,0 +1,120 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.util.BufferUtil;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.http.HttpHeaders;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.marbor.gateway.websocket.WebSocketFrameFilter.Direction.CLIENT_TO_UPSTREAM;
+import static com.marbor.gateway.websocket.WebSocketFrameFilter.Direction.UPSTREAM_TO_CLIENT;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+/// Fragment handling of a [WebSocketFrameFilters.Chain], with a filter dropping `drop` fragments and rejecting `reject` ones.
+class WebSocketFrameFiltersTests {
+
+    private final List<String> filtered = new ArrayList<>();
+    private final WebSocketFrameFilters.Chain chain = chain(frame -> {
+        String payload = BufferUtil.toString(frame.payload(), StandardCharsets.UTF_8);
+        filtered.add(payload);
+        return switch (payload) {
+            case "drop" -> null;
+            case "reject" -> throw new WebSocketFrameFilter.Rejected(1008, "Rejected fragment");
+            default -> frame.payload();
+        };
+    });
+
+    @Test
+    void relaysFramesNoFilterReplacedAsTheyAre() {
+        ByteBuffer payload = payload("a");
+
+        assertThat(chain.filter(CLIENT_TO_UPSTREAM, true, true, payload)).isSameAs(payload);
+        assertThat(chain.filterText(CLIENT_TO_UPSTREAM, "b", true)).isEqualTo("b");
+    }
+
+    @Test
+    void dropsTheContinuationsOfADroppedFirstFragment() {
+        assertThat(filter(CLIENT_TO_UPSTREAM, "drop", false)).isNull();
+        assertThat(filter(CLIENT_TO_UPSTREAM, "b", false)).isNull();
+        assertThat(filter(CLIENT_TO_UPSTREAM, "c", true)).isNull();
+
+        assertThat(filtered).containsExactly("drop");
+    }
+
+    @Test
+    void relaysTheRestOfAMessageEmptyOnceALaterFragmentIsDropped() {
+        assertThat(filter(CLIENT_TO_UPSTREAM, "a", false)).isEqualTo("a");
+        assertThat(filter(CLIENT_TO_UPSTREAM, "drop", false)).isEmpty();
+        assertThat(filter(CLIENT_TO_UPSTREAM, "c", true)).isEmpty();
+
+        assertThat(filtered).containsExactly("a", "drop");
+    }
+
+    @Test
+    void filtersTheNextMessageAgainOnceADroppedMessageEnded() {
+        filter(CLIENT_TO_UPSTREAM, "drop", false);
+        filter(CLIENT_TO_UPSTREAM, "b", true);
+        filter(UPSTREAM_TO_CLIENT, "a", false);
+        filter(UPSTREAM_TO_CLIENT, "drop", true);
+
+        assertThat(filter(CLIENT_TO_UPSTREAM, "c", true)).isEqualTo("c");
+        assertThat(filter(UPSTREAM_TO_CLIENT, "d", false)).isEqualTo("d");
+    }
+
+    @Test
+    void keepsTheMessageStateOfEachDirection() {
+        assertThat(filter(CLIENT_TO_UPSTREAM, "drop", false)).isNull();
+        assertThat(filter(UPSTREAM_TO_CLIENT, "a", false)).isEqualTo("a");
+        assertThat(filter(UPSTREAM_TO_CLIENT, "drop", false)).isEmpty();
+
+        assertThat(filter(CLIENT_TO_UPSTREAM, "b", true)).isNull();
+        assertThat(filter(UPSTREAM_TO_CLIENT, "c", true)).isEmpty();
+        assertThat(filtered).containsExactly("drop", "a", "drop");
+    }
+
+    @Test
+    void rejectsAMessageOnARejectedMiddleFragment() {
+        filter(CLIENT_TO_UPSTREAM, "a", false);
+
+        assertThatExceptionOfType(WebSocketFrameFilter.Rejected.class)
+                .isThrownBy(() -> filter(CLIENT_TO_UPSTREAM, "reject", false))
+                .satisfies(rejected -> assertThat(rejected.getStatusCode()).isEqualTo(1008));
+        assertThat(filter(UPSTREAM_TO_CLIENT, "b", true)).isEqualTo("b");
+    }
+
+    @Test
+    void runsTheFiltersInOrderOnEachOthersPayload() {
+        WebSocketFrameFilters.Chain upperCasing = chain(
+                frame -> payload(BufferUtil.toString(frame.payload(), StandardCharsets.UTF_8) + "!"),
+                frame -> payload(BufferUtil.toString(frame.payload(), StandardCharsets.UTF_8).toUpperCase()));
+
+        assertThat(upperCasing.filterText(CLIENT_TO_UPSTREAM, "hi", true)).isEqualTo("HI!");
+    }
+
+    /// @return the relayed payload as text, `null` when the fragment was dropped
+    private String filter(WebSocketFrameFilter.Direction direction, String payload, boolean last) {
+        ByteBuffer relayed = chain.filter(direction, true, last, payload(payload));
+        return relayed != null ? BufferUtil.toString(relayed, StandardCharsets.UTF_8) : null;
+    }
+
+    private static ByteBuffer payload(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static WebSocketFrameFilters.Chain chain(WebSocketFrameFilter... filters) {
+        var properties = new WebSocketProxyProperties();
+        var route = new WebSocketProxyProperties.Route();
+        var beanFactory = new StaticListableBeanFactory();
+        for (int index = 0; index < filters.length; index++) {
+            beanFactory.addBean("filter" + index, filters[index]);
+            route.getFrameFilters().add("filter" + index);
+        }
+        properties.getRoutes().put("chat", route);
+        return new WebSocketFrameFilters(properties, beanFactory).forSession("chat", new HttpHeaders());
+    }
+}
@@ -0,0 +1,242 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.websocket.api.Callback;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.exceptions.UpgradeException;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.eclipse.jetty.websocket.server.WebSocketUpgradeHandler;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.servlet.function.RouterFunction;
+import org.springframework.web.servlet.function.ServerResponse;
+
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.springframework.cloud.gateway.server.mvc.filter.BeforeFilterFunctions.uri;
+import static org.springframework.cloud.gateway.server.mvc.handler.GatewayRouterFunctions.route;
+
+/// Client → gateway → upstream round trips through the whole application, against local Jetty upstreams:
+/// an echo server, a port nobody listens on, a server that never answers the handshake and an echo server speaking
+/// cleartext HTTP/2 without extended `CONNECT`.
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "gateway.websocket.routes.stalled_route.handshake-timeout=500ms",
+        "gateway.websocket.routes.http1_only_route.http2=true",
+        "gateway.websocket.routes.http1_only_route.limits.max-sessions=1"})
+class WebSocketProxyHandshakeTests {
+
+    private static final List<HttpVersion> http1OnlyRequestVersions = new CopyOnWriteArrayList<>();
+    private static Server echoUpstream;
+    private static Server stalledUpstream;
+    private static Server http1OnlyUpstream;
+    private static int refusedPort;
+
+    @LocalServerPort
+    private int port;
+    @Autowired
+    private WebSocketProxyProperties webSocketProxyProperties;
+    @Autowired
+    private UpstreamHttpVersionSelector upstreamHttpVersionSelector;
+    private WebSocketClient client;
+
+    @BeforeAll
+    static void startUpstreams() throws Exception {
+        echoUpstream = new Server(0);
+        echoUpstream.setHandler(WebSocketUpgradeHandler.from(echoUpstream, container ->
+                container.addMapping("/*", (upgradeRequest, upgradeResponse, callback) -> new EchoEndpoint())));
+        echoUpstream.start();
+        stalledUpstream = new Server(0);
+        stalledUpstream.setHandler(new Handler.Abstract() {
+            @Override
+            public boolean handle(Request request, Response response, org.eclipse.jetty.util.Callback callback) {
+                // neither answered nor failed, so the gateway's handshake timeout is the only way out
+                return true;
+            }
+        });
+        stalledUpstream.start();
+        http1OnlyUpstream = new Server();
+        var http2 = new HTTP2CServerConnectionFactory();
+        http2.setConnectProtocolEnabled(false);
+        http1OnlyUpstream.addConnector(new ServerConnector(http1OnlyUpstream, new HttpConnectionFactory(), http2));
+        http1OnlyUpstream.setHandler(new Handler.Wrapper(WebSocketUpgradeHandler.from(http1OnlyUpstream, container ->
+                container.addMapping("/*", (upgradeRequest, upgradeResponse, callback) -> new EchoEndpoint()))) {
+            @Override
+            public boolean handle(Request request, Response response, org.eclipse.jetty.util.Callback callback) throws Exception {
+                http1OnlyRequestVersions.add(request.getConnectionMetaData().getHttpVersion());
+                return super.handle(request, response, callback);
+            }
+        });
+        http1OnlyUpstream.start();
+        try (var socket = new ServerSocket(0)) {
+            refusedPort = socket.getLocalPort();
+        }
+    }
+
+    @AfterAll
+    static void stopUpstreams() throws Exception {
+        echoUpstream.stop();
+        stalledUpstream.stop();
+        http1OnlyUpstream.stop();
+    }
+
+    @DynamicPropertySource
+    static void upstreamUris(DynamicPropertyRegistry registry) {
+        registry.add("test.upstreams.echo", () -> "ws://localhost:" + localPort(echoUpstream));
+        registry.add("test.upstreams.refused", () -> "ws://localhost:" + refusedPort);
+        registry.add("test.upstreams.stalled", () -> "ws://localhost:" + localPort(stalledUpstream));
+        registry.add("test.upstreams.http1-only", () -> "ws://localhost:" + localPort(http1OnlyUpstream));
+    }
+
+    @BeforeEach
+    void startClient() throws Exception {
+        client = new WebSocketClient();
+        client.start();
+    }
+
+    @AfterEach
+    void stopClient() throws Exception {
+        client.stop();
+    }
+
+    @Test
+    void relaysMessagesBothWays() throws Exception {
+        var clientEndpoint = new ClientEndpoint();
+        Session session = client.connect(clientEndpoint, gatewayUri("/echo")).get(5, TimeUnit.SECONDS);
+
+        session.sendText("hello", Callback.NOOP);
+        assertThat(clientEndpoint.received.poll(5, TimeUnit.SECONDS)).isEqualTo("hello");
+        session.sendBinary(ByteBuffer.wrap("binary".getBytes(StandardCharsets.UTF_8)), Callback.NOOP);
+        assertThat(clientEndpoint.received.poll(5, TimeUnit.SECONDS)).isEqualTo("binary");
+
+        session.close();
+    }
+
+    @Test
+    void answersAnUnreachableUpstreamWithBadGateway() {
+        assertThat(handshakeStatus("/refused")).isEqualTo(502);
+    }
+
+    @Test
+    void answersAnUpstreamHandshakeTimeoutWithGatewayTimeout() {
+        long startNanos = System.nanoTime();
+
+        assertThat(handshakeStatus("/stalled")).isEqualTo(504);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)).isBetween(500L, 5000L);
+    }
+
+    @Test
+    void fallsBackToHttp11WhenTheUpstreamDoesNotSupportExtendedConnect() throws Exception {
+        var clientEndpoint = new ClientEndpoint();
+        Session session = client.connect(clientEndpoint, gatewayUri("/http1-only")).get(5, TimeUnit.SECONDS);
+
+        session.sendText("hello", Callback.NOOP);
+        assertThat(clientEndpoint.received.poll(5, TimeUnit.SECONDS)).isEqualTo("hello");
+        assertThat(http1OnlyRequestVersions).containsOnly(HttpVersion.HTTP_1_1);
+        assertThat(upstreamHttpVersionSelector.select(webSocketProxyProperties.getRoute("http1_only_route"),
+                URI.create("ws://localhost:" + localPort(http1OnlyUpstream)))).isEqualTo(HttpVersion.HTTP_1_1);
+        // the failed HTTP/2 attempt did not end the session pair, which still holds the route's only session slot
+        assertThat(handshakeStatus("/http1-only")).isEqualTo(503);
+
+        session.close();
+    }
+
+    private int handshakeStatus(String path) {
+        var failure = assertThatExceptionOfType(ExecutionException.class)
+                .isThrownBy(() -> client.connect(new ClientEndpoint(), gatewayUri(path)).get(10, TimeUnit.SECONDS))
+                .actual();
+        assertThat(failure.getCause()).isInstanceOf(UpgradeException.class);
+        return ((UpgradeException) failure.getCause()).getResponseStatusCode();
+    }
+
+    private URI gatewayUri(String path) {
+        return URI.create("ws://localhost:" + port + path);
+    }
+
+    private static int localPort(Server server) {
+        return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    @TestConfiguration(proxyBeanMethods = false)
+    static class UpstreamRoutes {
+
+        @Bean
+        RouterFunction<ServerResponse> testUpstreamRoutes(WebSocketProxyExchangeHandlerFunction handlerFunction, Environment environment) {
+            return route("echo_route")
+                    .GET("/echo", handlerFunction)
+                    .before(uri(environment.getRequiredProperty("test.upstreams.echo")))
+                    .build()
+                    .and(route("refused_route")
+                            .GET("/refused", handlerFunction)
+                            .before(uri(environment.getRequiredProperty("test.upstreams.refused")))
+                            .build())
+                    .and(route("stalled_route")
+                            .GET("/stalled", handlerFunction)
+                            .before(uri(environment.getRequiredProperty("test.upstreams.stalled")))
+                            .build())
+                    .and(route("http1_only_route")
+                            .GET("/http1-only", handlerFunction)
+                            .before(uri(environment.getRequiredProperty("test.upstreams.http1-only")))
+                            .build());
+        }
+    }
+
+    /// Jetty invokes the endpoint methods through public lookups, so endpoints are public.
+    public static class EchoEndpoint extends Session.Listener.AbstractAutoDemanding {
+
+        @Override
+        public void onWebSocketText(String message) {
+            getSession().sendText(message, Callback.NOOP);
+        }
+
+        @Override
+        public void onWebSocketBinary(ByteBuffer payload, Callback callback) {
+            getSession().sendBinary(payload, callback);
+        }
+    }
+
+    public static class ClientEndpoint extends Session.Listener.AbstractAutoDemanding {
+
+        private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onWebSocketText(String message) {
+            received.add(message);
+        }
+
+        @Override
+        public void onWebSocketBinary(ByteBuffer payload, Callback callback) {
+            received.add(BufferUtil.toString(payload, StandardCharsets.UTF_8));
+            callback.succeed();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.marbor.gateway.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/// Runs the JMH benchmarks with the GC profiler always enabled, so every result comes with its allocation rate
+/// (`gc.alloc.rate.norm`, bytes per operation). Accepts the usual JMH command line options, e.g. a benchmark regex.
+public class GatewayBenchmarks {
+
+    private GatewayBenchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,64 @@
+package com.marbor.gateway.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/// Samples the gateway's heap usage and live threads once per second from its actuator metrics while a workload runs.
+final class GatewayResourceSampler implements AutoCloseable {
+
+    private static final Pattern VALUE = Pattern.compile("\"statistic\"\\s*:\\s*\"VALUE\"\\s*,\\s*\"value\"\\s*:\\s*([0-9.Ee+-]+)");
+    private final HttpClient httpClient;
+    private final HttpRequest heapUsed;
+    private final HttpRequest liveThreads;
+    private final Thread sampler;
+    private volatile double maxHeapUsedBytes;
+    private volatile double maxLiveThreads;
+
+    GatewayResourceSampler(URI gatewayUrl, HttpClient httpClient) {
+        this.httpClient = httpClient;
+        this.heapUsed = HttpRequest.newBuilder(gatewayUrl.resolve("/actuator/metrics/jvm.memory.used?tag=area:heap")).build();
+        this.liveThreads = HttpRequest.newBuilder(gatewayUrl.resolve("/actuator/metrics/jvm.threads.live")).build();
+        this.sampler = Thread.ofVirtual().name("gateway-resource-sampler").start(this::sample);
+    }
+
+    private void sample() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                maxHeapUsedBytes = Math.max(maxHeapUsedBytes, read(heapUsed));
+                maxLiveThreads = Math.max(maxLiveThreads, read(liveThreads));
+                Thread.sleep(1000);
+            } catch (InterruptedException interrupted) {
+                return;
+            } catch (Exception sampleFailure) {
+                System.err.println("Gateway resource sample failed: " + sampleFailure.getMessage());
+            }
+        }
+    }
+
+    private double read(HttpRequest metric) throws Exception {
+        String body = httpClient.send(metric, HttpResponse.BodyHandlers.ofString()).body();
+        Matcher value = VALUE.matcher(body);
+        if (!value.find()) {
+            throw new IllegalStateException("No value in " + metric.uri() + ": " + body);
+        }
+        return Double.parseDouble(value.group(1));
+    }
+
+    double maxHeapUsedBytes() {
+        return maxHeapUsedBytes;
+    }
+
+    double maxLiveThreads() {
+        return maxLiveThreads;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        sampler.interrupt();
+        sampler.join();
+    }
+}
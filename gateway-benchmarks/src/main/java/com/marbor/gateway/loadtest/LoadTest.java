@@ -0,0 +1,81 @@
+package com.marbor.gateway.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+import java.net.URI;
+import java.util.concurrent.Executors;
+
+/// End-to-end load test of the WebSocket proxy against the `upstream-service` echo.
+///
+/// The same workload runs first directly against the upstream and then through the gateway,
+/// so the latency the gateway adds is the difference between the two reports.
+/// Run from the repository root after `./mvnw package -DskipTests`:
+///
+/// ```shell
+/// java -Dloadtest.sessions=500 -Dloadtest.messagesPerSecond=20 -cp gateway-benchmarks/target/benchmarks.jar com.marbor.gateway.loadtest.LoadTest
+/// ```
+///
+/// See [LoadTestOptions] for the settings.
+public class LoadTest {
+
+    private static final URI UPSTREAM_URL = URI.create("http://localhost:8180");
+    private static final URI GATEWAY_URL = URI.create("http://localhost:8080");
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.fromSystemProperties();
+        var httpClient = java.net.http.HttpClient.newHttpClient();
+        try (var upstream = options.startServices() ? ServiceProcess.start("upstream-service", options.upstreamJar(), UPSTREAM_URL, httpClient) : null;
+             var gateway = options.startServices() ? ServiceProcess.start("custom-gateway", options.gatewayJar(), GATEWAY_URL, httpClient) : null) {
+            var jettyHttpClient = new HttpClient();
+            jettyHttpClient.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+            var webSocketClient = new WebSocketClient(jettyHttpClient);
+            webSocketClient.start();
+            try {
+                System.out.printf("Workload: %d sessions x %d msg/s x %d chars, warmup %s, measured %s%n", options.sessions(),
+                        options.messagesPerSecond(), options.messageSize(), options.warmup(), options.duration());
+                Workload.Result direct = new Workload(webSocketClient, websocketUrl(UPSTREAM_URL), options).run();
+                print("direct", direct);
+
+                Workload.Result proxied;
+                try (var sampler = new GatewayResourceSampler(GATEWAY_URL, httpClient)) {
+                    proxied = new Workload(webSocketClient, websocketUrl(GATEWAY_URL), options).run();
+                    print("gateway", proxied);
+                    System.out.printf("  gateway max heap used %.1f MiB, max live threads %.0f%n", sampler.maxHeapUsedBytes() / (1024 * 1024), sampler.maxLiveThreads());
+                }
+                printOverhead(direct.roundTrips(), proxied.roundTrips());
+            } finally {
+                webSocketClient.stop();
+            }
+        }
+    }
+
+    private static URI websocketUrl(URI baseUrl) {
+        return URI.create("ws://" + baseUrl.getAuthority() + "/hello");
+    }
+
+    private static void print(String name, Workload.Result result) {
+        Histogram roundTrips = result.roundTrips();
+        System.out.printf("%s (%s): sent %d, received %d, failed %d, %.0f msg/s%n", name, result.url(),
+                result.sent(), result.received(), result.failed(), result.throughput());
+        var percentiles = new StringBuilder("  round trip µs:");
+        for (double percentile : PERCENTILES) {
+            percentiles.append(String.format(" p%s=%d", percentile, roundTrips.getValueAtPercentile(percentile)));
+        }
+        percentiles.append(" max=").append(roundTrips.getMaxValue());
+        System.out.println(percentiles);
+    }
+
+    private static void printOverhead(Histogram direct, Histogram proxied) {
+        var overhead = new StringBuilder("gateway added latency µs:");
+        for (double percentile : PERCENTILES) {
+            overhead.append(String.format(" p%s=%d", percentile, proxied.getValueAtPercentile(percentile) - direct.getValueAtPercentile(percentile)));
+        }
+        System.out.println(overhead);
+    }
+}
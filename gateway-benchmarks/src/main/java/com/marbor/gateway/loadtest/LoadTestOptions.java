@@ -0,0 +1,38 @@
+package com.marbor.gateway.loadtest;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/// Load test settings, read from `loadtest.*` system properties.
+///
+/// @param sessions          concurrent client sessions per target
+/// @param messagesPerSecond messages each session sends per second
+/// @param messageSize       text message size in characters, at least the 16 characters carrying the send timestamp
+/// @param warmup            leading part of the run excluded from the results
+/// @param duration          measured part of the run
+/// @param startServices     start `upstream-service` and `custom-gateway` from their jars, otherwise they must already run
+/// @param upstreamJar       executable jar of `upstream-service`
+/// @param gatewayJar        executable jar of `custom-gateway`
+record LoadTestOptions(int sessions, int messagesPerSecond, int messageSize, Duration warmup, Duration duration,
+                       boolean startServices, Path upstreamJar, Path gatewayJar) {
+
+    static final int TIMESTAMP_LENGTH = 16;
+
+    LoadTestOptions {
+        if (messageSize < TIMESTAMP_LENGTH) {
+            throw new IllegalArgumentException("loadtest.messageSize must be at least " + TIMESTAMP_LENGTH);
+        }
+    }
+
+    static LoadTestOptions fromSystemProperties() {
+        return new LoadTestOptions(
+                Integer.getInteger("loadtest.sessions", 100),
+                Integer.getInteger("loadtest.messagesPerSecond", 10),
+                Integer.getInteger("loadtest.messageSize", 256),
+                Duration.parse(System.getProperty("loadtest.warmup", "PT10S")),
+                Duration.parse(System.getProperty("loadtest.duration", "PT30S")),
+                Boolean.parseBoolean(System.getProperty("loadtest.startServices", "true")),
+                Path.of(System.getProperty("loadtest.upstreamJar", "upstream-service/target/upstream-service-0.0.1-SNAPSHOT.jar")),
+                Path.of(System.getProperty("loadtest.gatewayJar", "custom-gateway/target/custom-gateway-0.0.1-SNAPSHOT-exec.jar")));
+    }
+}
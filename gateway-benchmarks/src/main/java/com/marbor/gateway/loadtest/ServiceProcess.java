@@ -0,0 +1,99 @@
+package com.marbor.gateway.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/// A service started from its executable jar in a separate JVM, or from another command such as a native executable,
+/// stopped on close. Its output goes to `target/<name>.log` so it does not interleave with the report.
+final class ServiceProcess implements AutoCloseable {
+
+    private static final Duration STARTUP_TIMEOUT = Duration.ofSeconds(60);
+    private final String name;
+    private final Process process;
+    private final long startNanos;
+    private Duration startupTime;
+
+    private ServiceProcess(String name, Process process, long startNanos) {
+        this.name = name;
+        this.process = process;
+        this.startNanos = startNanos;
+    }
+
+    static ServiceProcess start(String name, Path jar, URI baseUrl, HttpClient httpClient) throws IOException, InterruptedException {
+        if (!Files.isRegularFile(jar)) {
+            throw new IllegalStateException(name + " jar not found: " + jar.toAbsolutePath() + ", build it with ./mvnw package -DskipTests");
+        }
+        return start(name, List.of(java(), "-jar", jar.toString()), baseUrl, httpClient);
+    }
+
+    static ServiceProcess start(String name, List<String> command, URI baseUrl, HttpClient httpClient) throws IOException, InterruptedException {
+        Path log = Path.of("target", name + ".log");
+        Files.createDirectories(log.getParent());
+        long startNanos = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        var service = new ServiceProcess(name, process, startNanos);
+        try {
+            service.awaitHealthy(baseUrl, httpClient);
+        } catch (IOException | InterruptedException | RuntimeException startupFailure) {
+            service.close();
+            throw startupFailure;
+        }
+        System.out.printf("Started %s (pid %d) in %d ms, log: %s%n", name, process.pid(), service.startupTime.toMillis(), log.toAbsolutePath());
+        return service;
+    }
+
+    /// The JVM running this process, so services run on the same Java version.
+    static String java() {
+        return ProcessHandle.current().info().command().orElse("java");
+    }
+
+    /// Time from starting the process until its health endpoint answered `200`, precise to the polling interval.
+    Duration startupTime() {
+        return startupTime;
+    }
+
+    /// Time since the process was started.
+    Duration sinceStart() {
+        return Duration.ofNanos(System.nanoTime() - startNanos);
+    }
+
+    private void awaitHealthy(URI baseUrl, HttpClient httpClient) throws IOException, InterruptedException {
+        var health = HttpRequest.newBuilder(baseUrl.resolve("/actuator/health")).build();
+        Instant deadline = Instant.now().plus(STARTUP_TIMEOUT);
+        while (Instant.now().isBefore(deadline)) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException(name + " exited with " + process.exitValue());
+            }
+            try {
+                if (httpClient.send(health, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    startupTime = sinceStart();
+                    return;
+                }
+            } catch (IOException notListeningYet) {
+                // retried until the deadline
+            }
+            Thread.sleep(20);
+        }
+        throw new IllegalStateException(name + " did not become healthy within " + STARTUP_TIMEOUT);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(10, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.marbor.gateway.loadtest;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/// Startup of `custom-gateway` until it proxies its first WebSocket handshake, the time an autoscaled gateway adds
+/// before taking connections.
+///
+/// The gateway is started `startup.runs` times with `startup.gatewayCommand`, by default its executable jar,
+/// so the plain jar, the AOT cache and the native executable can be compared, see the README. Each run reports the time
+/// until `/actuator/health` answered, the latency of the first proxied handshake, and the time from the process start
+/// until that handshake completed. `upstream-service` is started once, as for [LoadTest]:
+///
+/// ```shell
+/// java -Dstartup.runs=5 -cp gateway-benchmarks/target/benchmarks.jar com.marbor.gateway.loadtest.StartupTest
+/// ```
+public class StartupTest {
+
+    private static final URI UPSTREAM_URL = URI.create("http://localhost:8180");
+    private static final URI GATEWAY_URL = URI.create("http://localhost:8080");
+    private static final URI GATEWAY_WEBSOCKET_URL = URI.create("ws://localhost:8080/hello");
+
+    private StartupTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.fromSystemProperties();
+        int runs = Integer.getInteger("startup.runs", 5);
+        String gatewayCommand = System.getProperty("startup.gatewayCommand");
+        List<String> command = gatewayCommand != null
+                ? Arrays.asList(gatewayCommand.trim().split("\\s+"))
+                : List.of(ServiceProcess.java(), "-jar", options.gatewayJar().toString());
+        var httpClient = java.net.http.HttpClient.newHttpClient();
+        try (var upstream = options.startServices() ? ServiceProcess.start("upstream-service", options.upstreamJar(), UPSTREAM_URL, httpClient) : null) {
+            var jettyHttpClient = new HttpClient();
+            jettyHttpClient.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+            var webSocketClient = new WebSocketClient(jettyHttpClient);
+            webSocketClient.start();
+            try {
+                System.out.printf("Gateway command: %s%n", String.join(" ", command));
+                List<Run> results = new ArrayList<>();
+                for (int run = 1; run <= runs; run++) {
+                    Run result = run(command, httpClient, webSocketClient);
+                    System.out.printf("run %d: healthy %d ms, first handshake %d ms, first handshake proxied after %d ms%n", run,
+                            result.healthy().toMillis(), result.firstHandshake().toMillis(), result.firstHandshakeProxied().toMillis());
+                    results.add(result);
+                }
+                System.out.printf("median: healthy %d ms, first handshake %d ms, first handshake proxied after %d ms%n",
+                        median(results, Run::healthy), median(results, Run::firstHandshake), median(results, Run::firstHandshakeProxied));
+            } finally {
+                webSocketClient.stop();
+            }
+        }
+    }
+
+    private static Run run(List<String> command, java.net.http.HttpClient httpClient, WebSocketClient webSocketClient) throws Exception {
+        try (var gateway = ServiceProcess.start("custom-gateway", command, GATEWAY_URL, httpClient)) {
+            long handshakeStartNanos = System.nanoTime();
+            Session session = webSocketClient.connect(new Session.Listener.AutoDemanding() { }, GATEWAY_WEBSOCKET_URL)
+                    .get(30, TimeUnit.SECONDS);
+            var firstHandshake = Duration.ofNanos(System.nanoTime() - handshakeStartNanos);
+            Duration firstHandshakeProxied = gateway.sinceStart();
+            session.close();
+            return new Run(gateway.startupTime(), firstHandshake, firstHandshakeProxied);
+        }
+    }
+
+    private static long median(List<Run> results, Function<Run, Duration> measure) {
+        long[] millis = results.stream().map(measure).mapToLong(Duration::toMillis).sorted().toArray();
+        return millis[millis.length / 2];
+    }
+
+    /// @param healthy               from the process start until the health endpoint answered
+    /// @param firstHandshake        latency of the first handshake proxied to the upstream
+    /// @param firstHandshakeProxied from the process start until the first handshake completed
+    private record Run(Duration healthy, Duration firstHandshake, Duration firstHandshakeProxied) {
+    }
+}
@@ -0,0 +1,114 @@
+package com.marbor.gateway.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.eclipse.jetty.websocket.api.Callback;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/// Drives the configured sessions against one echo endpoint and measures the round trips.
+///
+/// Every session sends on its own virtual thread at a fixed rate. Each message starts with its *intended* send time,
+/// and the round trip is measured from that time to the echo's arrival, so a stalled sender does not hide the latency
+/// of the messages it should have sent meanwhile (coordinated omission).
+final class Workload {
+
+    private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(5);
+    private final WebSocketClient webSocketClient;
+    private final URI url;
+    private final LoadTestOptions options;
+    private final Recorder roundTrips = new Recorder(3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final String padding;
+    private volatile long measureFromNanos;
+
+    Workload(WebSocketClient webSocketClient, URI url, LoadTestOptions options) {
+        this.webSocketClient = webSocketClient;
+        this.url = url;
+        this.options = options;
+        this.padding = "x".repeat(options.messageSize() - LoadTestOptions.TIMESTAMP_LENGTH);
+    }
+
+    Result run() throws Exception {
+        List<Session> sessions = connect();
+        long startNanos = System.nanoTime();
+        measureFromNanos = startNanos + options.warmup().toNanos();
+        long endNanos = measureFromNanos + options.duration().toNanos();
+        try (var senders = Executors.newVirtualThreadPerTaskExecutor()) {
+            sessions.forEach(session -> senders.execute(() -> send(session, startNanos, endNanos)));
+        }
+        awaitEchoes();
+        sessions.forEach(Session::close);
+        return new Result(url, roundTrips.getIntervalHistogram(), sent.sum(), received.sum(), failed.sum(), options.duration());
+    }
+
+    private List<Session> connect() {
+        List<CompletableFuture<Session>> connecting = new ArrayList<>();
+        for (int i = 0; i < options.sessions(); i++) {
+            try {
+                connecting.add(webSocketClient.connect(new EchoListener(), url));
+            } catch (Exception connectFailure) {
+                connecting.add(CompletableFuture.failedFuture(connectFailure));
+            }
+        }
+        return connecting.stream().map(CompletableFuture::join).toList();
+    }
+
+    private void send(Session session, long startNanos, long endNanos) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / options.messagesPerSecond();
+        // spreads the sessions' sends over the interval instead of sending in bursts
+        long intendedNanos = startNanos + ThreadLocalRandom.current().nextLong(intervalNanos);
+        while (intendedNanos < endNanos && session.isOpen()) {
+            long waitNanos = intendedNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+            session.sendText(HexFormat.of().toHexDigits(intendedNanos) + padding, Callback.from(() -> { }, failure -> failed.increment()));
+            if (intendedNanos >= measureFromNanos) {
+                sent.increment();
+            }
+            intendedNanos += intervalNanos;
+        }
+    }
+
+    private void awaitEchoes() throws InterruptedException {
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT.toNanos();
+        while (received.sum() < sent.sum() && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    private final class EchoListener implements Session.Listener.AutoDemanding {
+
+        @Override
+        public void onWebSocketText(String message) {
+            long intendedNanos = HexFormat.fromHexDigitsToLong(message, 0, LoadTestOptions.TIMESTAMP_LENGTH);
+            if (intendedNanos >= measureFromNanos) {
+                roundTrips.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedNanos));
+                received.increment();
+            }
+        }
+    }
+
+    /// @param roundTrips round trip latencies in microseconds
+    record Result(URI url, Histogram roundTrips, long sent, long received, long failed, Duration duration) {
+
+        double throughput() {
+            return received / (duration.toNanos() / 1e9);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.marbor.gateway.websocket;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketContainer;
+import org.eclipse.jetty.websocket.api.WebSocketSessionListener;
+import org.eclipse.jetty.websocket.common.JettyWebSocketFrameHandler;
+import org.eclipse.jetty.websocket.common.JettyWebSocketFrameHandlerMetadata;
+import org.eclipse.jetty.websocket.core.CoreSession;
+import org.eclipse.jetty.websocket.core.OutgoingEntry;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/// Open sessions that complete every send immediately and discard the payload, standing in for the network.
+///
+/// They are plain implementations rather than mocks or dynamic proxies, so `gc.alloc.rate.norm` only reports
+/// the gateway's own allocations, plus the frames Jetty's API layer allocates for the upstream as in production.
+final class InMemorySessions {
+
+    private InMemorySessions() {
+    }
+
+    /// Jetty's own session over an in-memory core session, as the gateway reaches Jetty's core session for batched frames.
+    static Session upstream() {
+        var container = new Container();
+        var frameHandler = new JettyWebSocketFrameHandler(container, new Object(), new JettyWebSocketFrameHandlerMetadata());
+        return new org.eclipse.jetty.websocket.common.WebSocketSession(container, new UpstreamCoreSession(), frameHandler);
+    }
+
+    static WebSocketSession client() {
+        return new Client();
+    }
+
+    /// Discards every frame sent to it, including the batched ones, as written.
+    private static final class UpstreamCoreSession extends CoreSession.Empty {
+
+        @Override
+        public void sendFrame(OutgoingEntry entry) {
+            entry.getCallback().succeeded();
+        }
+
+        @Override
+        public boolean isOutputOpen() {
+            return true;
+        }
+    }
+
+    /// Only lets the upstream session be created, no listener is ever registered.
+    private static final class Container implements WebSocketContainer {
+
+        @Override
+        public Executor getExecutor() {
+            return Runnable::run;
+        }
+
+        @Override
+        public Collection<Session> getOpenSessions() {
+            return List.of();
+        }
+
+        @Override
+        public void addSessionListener(WebSocketSessionListener listener) {
+        }
+
+        @Override
+        public boolean removeSessionListener(WebSocketSessionListener listener) {
+            return false;
+        }
+
+        @Override
+        public void notifySessionListeners(Consumer<WebSocketSessionListener> consumer) {
+        }
+    }
+
+    private static final class Client implements WebSocketSession {
+
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final HttpHeaders handshakeHeaders = new HttpHeaders();
+        private int textMessageSizeLimit;
+        private int binaryMessageSizeLimit;
+
+        @Override
+        public String getId() {
+            return "in-memory";
+        }
+
+        @Override
+        public URI getUri() {
+            return null;
+        }
+
+        @Override
+        public HttpHeaders getHandshakeHeaders() {
+            return handshakeHeaders;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public Principal getPrincipal() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public String getAcceptedProtocol() {
+            return null;
+        }
+
+        @Override
+        public void setTextMessageSizeLimit(int messageSizeLimit) {
+            this.textMessageSizeLimit = messageSizeLimit;
+        }
+
+        @Override
+        public int getTextMessageSizeLimit() {
+            return textMessageSizeLimit;
+        }
+
+        @Override
+        public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+            this.binaryMessageSizeLimit = messageSizeLimit;
+        }
+
+        @Override
+        public int getBinaryMessageSizeLimit() {
+            return binaryMessageSizeLimit;
+        }
+
+        @Override
+        public List<WebSocketExtension> getExtensions() {
+            return List.of();
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void close(CloseStatus status) {
+        }
+
+        @Override
+        public String toString() {
+            return "in-memory client session";
+        }
+    }
+}
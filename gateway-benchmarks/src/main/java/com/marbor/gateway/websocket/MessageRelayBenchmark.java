@@ -0,0 +1,108 @@
+package com.marbor.gateway.websocket;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.websocket.api.Callback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/// Relaying a message through the [WebSocketProxyProperties.Engine#SPRING] engine in both directions,
+/// between [InMemorySessions], so only the gateway's own per-message work is measured.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageRelayBenchmark {
+
+    @Param({"false", "true"})
+    private boolean streaming;
+
+    @Param({"128", "16384"})
+    private int payloadSize;
+
+    /// Client to upstream frames batched with a linger timer instead of flushed one by one.
+    @Param({"false", "true"})
+    private boolean batching;
+
+    private final ScheduledExecutorScheduler scheduler = new ScheduledExecutorScheduler("benchmark-batch-flush", true);
+
+    private WebsocketUpstreamSessionHandler upstreamSessionHandler;
+    private WebSocketClientSessionHandler clientSessionHandler;
+    private WebSocketSession clientSession;
+    private String text;
+    private ByteBuffer binary;
+
+    @Setup
+    public void setUp() throws Exception {
+        var routeProperties = new WebSocketProxyProperties.Route();
+        routeProperties.setStreaming(streaming);
+        routeProperties.getBatching().setEnabled(batching);
+        var meterRegistry = new SimpleMeterRegistry();
+        var metrics = new WebSocketProxyMetrics(meterRegistry).route("benchmark_route");
+        var sessionBuffer = new WebSocketAdmissionControl(new WebSocketProxyProperties(), meterRegistry).sessionBuffer(routeProperties.getLimits());
+        scheduler.start();
+        upstreamSessionHandler = WebsocketUpstreamSessionHandler.create(routeProperties, Runnable::run, scheduler, new KeepaliveWheel(), sessionBuffer, null, null, metrics);
+        upstreamSessionHandler.onWebSocketOpen(InMemorySessions.upstream());
+        clientSessionHandler = upstreamSessionHandler.getClientSessionHandler();
+        clientSession = InMemorySessions.client();
+        clientSessionHandler.afterConnectionEstablished(clientSession);
+
+        text = "x".repeat(payloadSize);
+        var bytes = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        binary = ByteBuffer.wrap(bytes);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        scheduler.stop();
+    }
+
+    @Benchmark
+    public void upstreamToClientText() {
+        if (streaming) {
+            upstreamSessionHandler.onWebSocketPartialText(text, true);
+        } else {
+            upstreamSessionHandler.onWebSocketText(text);
+        }
+    }
+
+    @Benchmark
+    public void upstreamToClientBinary() {
+        if (streaming) {
+            upstreamSessionHandler.onWebSocketPartialBinary(binary, true, Callback.NOOP);
+        } else {
+            upstreamSessionHandler.onWebSocketBinary(binary, Callback.NOOP);
+        }
+    }
+
+    /// Includes creating the `TextMessage`, which Spring's Jetty adapter does for every received message.
+    @Benchmark
+    public void clientToUpstreamText() {
+        clientSessionHandler.handleMessage(clientSession, new TextMessage(text, true));
+    }
+
+    @Benchmark
+    public void clientToUpstreamBinary() {
+        clientSessionHandler.handleMessage(clientSession, new BinaryMessage(binary, true));
+    }
+}
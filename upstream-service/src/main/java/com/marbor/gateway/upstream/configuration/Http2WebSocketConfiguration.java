@@ -0,0 +1,20 @@
+package com.marbor.gateway.upstream.configuration;
+
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.springframework.boot.jetty.JettyServerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/// Lets the gateway proxy WebSocket sessions over HTTP/2, with `server.http2.enabled` serving h2c next to HTTP/1.1.
+@Configuration
+public class Http2WebSocketConfiguration {
+
+    @Bean
+    public JettyServerCustomizer http2WebSocketCustomizer() {
+        return server -> {
+            var http2WebSocketHandler = new Http2WebSocketHandler(server, server.getDescendant(ContextHandler.class));
+            http2WebSocketHandler.setHandler(server.getHandler());
+            server.setHandler(http2WebSocketHandler);
+        };
+    }
+}
@@ -0,0 +1,33 @@
+package com.marbor.gateway.upstream.configuration;
+
+import com.marbor.gateway.upstream.handler.JettyEchoEndpoint;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.websocket.server.WebSocketUpgradeHandler;
+
+/// Serves WebSocket over HTTP/2 (RFC 8441) handshakes for `/hello` with Jetty's native WebSocket API.
+/// They arrive as extended `CONNECT` requests, which Spring's handshake handler rejects,
+/// while HTTP/1.1 handshakes keep going to the Spring [com.marbor.gateway.upstream.handler.CustomHandler].
+class Http2WebSocketHandler extends Handler.Wrapper {
+
+    private final WebSocketUpgradeHandler webSocketUpgradeHandler;
+
+    Http2WebSocketHandler(Server server, ContextHandler contextHandler) {
+        this.webSocketUpgradeHandler = WebSocketUpgradeHandler.from(server, contextHandler, container ->
+                container.addMapping("/hello", (upgradeRequest, upgradeResponse, callback) -> new JettyEchoEndpoint()));
+        addBean(webSocketUpgradeHandler);
+    }
+
+    @Override
+    public boolean handle(Request request, Response response, Callback callback) throws Exception {
+        if (HttpMethod.CONNECT.is(request.getMethod()) && webSocketUpgradeHandler.handle(request, response, callback)) {
+            return true;
+        }
+        return super.handle(request, response, callback);
+    }
+}
@@ -0,0 +1,24 @@
+package com.marbor.gateway.upstream.handler;
+
+import org.eclipse.jetty.websocket.api.Callback;
+import org.eclipse.jetty.websocket.api.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/// Jetty-native counterpart of [CustomHandler], serving WebSocket over HTTP/2 sessions.
+public class JettyEchoEndpoint implements Session.Listener.AutoDemanding {
+
+    private static final Logger log = LoggerFactory.getLogger(JettyEchoEndpoint.class);
+    private volatile Session session;
+
+    @Override
+    public void onWebSocketOpen(Session session) {
+        this.session = session;
+    }
+
+    @Override
+    public void onWebSocketText(String message) {
+        log.info("Message received: {}", message);
+        session.sendText(message, Callback.NOOP);
+    }
+}